@@ -0,0 +1,107 @@
+package org.bonede.cafebit;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse and encode throughput of a compact tracker reply and a multi-MB info dict.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BencodeBenchmark {
+    // 100k pieces and 2000 files, about 2.2 MB encoded
+    private static final int PIECES = 100_000;
+    private static final int FILES = 2000;
+    private static final int PEERS = 50;
+
+    private byte[] trackerReply;
+    private byte[] torrent;
+    private Bencode.BValue torrentValue;
+    private ByteBuffer encodeBuffer;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        byte[] peers = new byte[PEERS * 6];
+        random.nextBytes(peers);
+        trackerReply = Bencode.BValue.dictValue()
+                .put("complete", Bencode.BValue.intValue(120))
+                .put("incomplete", Bencode.BValue.intValue(37))
+                .put("interval", Bencode.BValue.intValue(1800))
+                .put("min interval", Bencode.BValue.intValue(60))
+                .put("peers", Bencode.BValue.bytesValue(peers))
+                .encode();
+
+        byte[] pieces = new byte[PIECES * BTorrent.SHA1_LENGTH];
+        random.nextBytes(pieces);
+        Bencode.BValue files = Bencode.BValue.listValue();
+        long pieceLength = 256 * 1024;
+        long total = pieceLength * PIECES;
+        for(int i = 0; i < FILES; i++){
+            long length = i < FILES - 1 ? total / FILES : total - total / FILES * (FILES - 1);
+            files.add(Bencode.BValue.dictValue()
+                    .put("length", Bencode.BValue.intValue(length))
+                    .put("path", Bencode.BValue.listValue()
+                            .add(Bencode.BValue.bytesValue("dir" + i % 20))
+                            .add(Bencode.BValue.bytesValue("file-" + i + ".bin"))));
+        }
+        torrentValue = Bencode.BValue.dictValue()
+                .put("announce", Bencode.BValue.bytesValue("http://tracker.example.com:6969/announce"))
+                .put("info", Bencode.BValue.dictValue()
+                        .put("name", Bencode.BValue.bytesValue("benchmark"))
+                        .put("piece length", Bencode.BValue.intValue(pieceLength))
+                        .put("pieces", Bencode.BValue.bytesValue(pieces))
+                        .put("files", files));
+        torrent = torrentValue.encode();
+        encodeBuffer = ByteBuffer.allocate(torrentValue.encodedLength());
+    }
+
+    @Benchmark
+    public Bencode.BValue parseTrackerReply() {
+        return Bencode.parse(trackerReply);
+    }
+
+    @Benchmark
+    public Bencode.BTape parseTrackerReplyTape() {
+        return Bencode.parseTape(trackerReply);
+    }
+
+    @Benchmark
+    public BPeersResp decodeTrackerReply() {
+        return new BPeersResp(trackerReply);
+    }
+
+    @Benchmark
+    public Bencode.BValue parseTorrent() {
+        return Bencode.parse(torrent);
+    }
+
+    @Benchmark
+    public Bencode.BTape parseTorrentTape() {
+        return Bencode.parseTape(torrent);
+    }
+
+    @Benchmark
+    public BTorrent loadTorrent() {
+        return new BTorrent(torrent);
+    }
+
+    @Benchmark
+    public byte[] encodeTorrent() {
+        return torrentValue.encode();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeTorrentBuffer() {
+        encodeBuffer.clear();
+        torrentValue.encode(encodeBuffer);
+        return encodeBuffer;
+    }
+}
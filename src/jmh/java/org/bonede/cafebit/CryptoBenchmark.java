@@ -0,0 +1,48 @@
+package org.bonede.cafebit;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing of blocks and pieces, and the info hash encodings used for tracker requests.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CryptoBenchmark {
+    // a block and a typical piece
+    @Param({"16384", "262144"})
+    private int size;
+
+    private byte[] data;
+    private byte[] infoHash;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        data = new byte[size];
+        random.nextBytes(data);
+        infoHash = new byte[BTorrent.SHA1_LENGTH];
+        random.nextBytes(infoHash);
+    }
+
+    @Benchmark
+    public byte[] sha1() {
+        return Crypto.sha1(data);
+    }
+
+    @Benchmark
+    public String hex() {
+        return Crypto.hex(infoHash);
+    }
+
+    @Benchmark
+    public String urlEncodeBytes() {
+        return Crypto.urlEncodeBytes(infoHash);
+    }
+}
@@ -0,0 +1,141 @@
+package org.bonede.cafebit;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Peer wire framing without a network, PeerConn reads from a channel replaying the same messages
+ * and writes to a channel discarding everything.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PeerConnBenchmark {
+    private static final int BLOCK_SIZE = 16 * 1024;
+
+    /**
+     * Endless stream of the same bytes, handed out in reads of at most chunk bytes like a socket.
+     */
+    static class ReplayChannel implements ReadableByteChannel {
+        private final byte[] bytes;
+        private final int chunk;
+        private int position;
+
+        ReplayChannel(byte[] bytes, int chunk) {
+            this.bytes = bytes;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            int n = Math.min(Math.min(dst.remaining(), chunk), bytes.length - position);
+            dst.put(bytes, position, n);
+            position = (position + n) % bytes.length;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    static class NullChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private PeerConn pieceConn;
+    private PeerConn haveConn;
+    private PeerConn outConn;
+    private byte[] requestPayload;
+    private final ByteBuffer pieceBuffer = ByteBuffer.allocateDirect(2 * BLOCK_SIZE);
+
+    private static byte[] message(int id, int... ints) {
+        ByteBuffer buffer = ByteBuffer.allocate(5 + ints.length * 4);
+        buffer.putInt(1 + ints.length * 4).put((byte) id);
+        for(int i : ints){
+            buffer.putInt(i);
+        }
+        return buffer.array();
+    }
+
+    @Setup
+    public void setup() {
+        ByteBuffer piece = ByteBuffer.allocate(13 + BLOCK_SIZE);
+        piece.putInt(9 + BLOCK_SIZE).put((byte) 7).putInt(3).putInt(BLOCK_SIZE);
+        // socket reads rarely return a whole block, replay in MTU sized chunks
+        pieceConn = new PeerConn(new ReplayChannel(piece.array(), 1448), new NullChannel());
+        haveConn = new PeerConn(new ReplayChannel(message(4, 17), 1448), new NullChannel());
+        outConn = new PeerConn(new ReplayChannel(new byte[1], 1), new NullChannel());
+        requestPayload = ByteBuffer.allocate(12).putInt(3).putInt(BLOCK_SIZE).putInt(BLOCK_SIZE).array();
+    }
+
+    @Benchmark
+    public byte[] readBlock() throws IOException {
+        return pieceConn.readBlock();
+    }
+
+    /**
+     * The block decoded straight into a piece buffer, as a session reads it.
+     */
+    @Benchmark
+    public ByteBuffer readPieceInto() throws IOException {
+        pieceConn.readFrame();
+        pieceBuffer.clear().position(BLOCK_SIZE);
+        pieceConn.readPayload(pieceBuffer);
+        return pieceBuffer;
+    }
+
+    @Benchmark
+    public byte[] readMessage() throws IOException {
+        return haveConn.readMessage();
+    }
+
+    @Benchmark
+    public void writeRequest() throws IOException {
+        outConn.writeMessage(6, requestPayload);
+    }
+
+    /**
+     * A window of requests queued and flushed in one write, as a session sends them.
+     */
+    @Benchmark
+    @OperationsPerInvocation(32)
+    public void writeRequestBatch() throws IOException {
+        for(int i = 0; i < 32; i++){
+            outConn.queueRequest(3, i * BLOCK_SIZE, BLOCK_SIZE);
+        }
+        outConn.flush();
+    }
+
+    @Benchmark
+    public void writeInterested() throws IOException {
+        outConn.sendInterested();
+    }
+}
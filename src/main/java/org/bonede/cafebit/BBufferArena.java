@@ -0,0 +1,114 @@
+package org.bonede.cafebit;
+
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Direct buffers shared by peer connections, leased while a connection has bytes to decode or to
+ * send and released afterwards. Buffers come in a few size classes carved out of 1 MiB slabs, which
+ * are allocated as needed and kept for reuse. Requests larger than the largest class get a buffer of
+ * their own that is dropped on release.
+ */
+public class BBufferArena {
+    // a handshake, and the longest fixed size message
+    public static final int HANDSHAKE = 128;
+    // control messages and the read ahead of a connection
+    public static final int CONTROL = 4 * 1024;
+    // a 16 KiB block with its PIECE header
+    public static final int BLOCK = 16 * 1024 + 64;
+    private static final int[] CLASSES = {HANDSHAKE, CONTROL, BLOCK};
+    private static final int SLAB_SIZE = 1024 * 1024;
+
+    private static final BBufferArena SHARED = new BBufferArena();
+
+    // most recently released first, it is the likeliest to still be in cache
+    private final Deque<ByteBuffer>[] free = newFree();
+    private final AtomicLong slabBytes = new AtomicLong();
+    private final AtomicLong leased = new AtomicLong();
+
+    public BBufferArena() {
+        for(int i = 0; i < CLASSES.length; i++){
+            free[i] = new ConcurrentLinkedDeque<>();
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Deque<ByteBuffer>[] newFree(){
+        return new Deque[CLASSES.length];
+    }
+
+    /**
+     * The arena of all connections of the process.
+     */
+    public static BBufferArena shared() {
+        return SHARED;
+    }
+
+    private static int sizeClass(int size){
+        for(int i = 0; i < CLASSES.length; i++){
+            if(size <= CLASSES[i]){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A cleared buffer of at least size bytes.
+     */
+    public ByteBuffer lease(int size) {
+        int c = sizeClass(size);
+        if(c < 0){
+            // rare, a bitfield of a huge torrent or a large extension message
+            return ByteBuffer.allocate(size);
+        }
+        leased.incrementAndGet();
+        ByteBuffer buffer = free[c].pollFirst();
+        if(buffer == null){
+            buffer = carve(c);
+        }
+        return buffer.clear();
+    }
+
+    /**
+     * Slices a new slab into buffers of the class, keeps one and frees the rest.
+     */
+    private ByteBuffer carve(int c){
+        int size = CLASSES[c];
+        ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE - SLAB_SIZE % size);
+        slabBytes.addAndGet(slab.capacity());
+        for(int offset = size; offset < slab.capacity(); offset += size){
+            free[c].offerLast(slab.slice(offset, size));
+        }
+        return slab.slice(0, size);
+    }
+
+    /**
+     * Returns a leased buffer, it must not be used afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        for(int c = 0; c < CLASSES.length; c++){
+            if(buffer.capacity() == CLASSES[c]){
+                leased.decrementAndGet();
+                free[c].offerFirst(buffer);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Bytes of direct memory held by slabs.
+     */
+    public long getSlabBytes() {
+        return slabBytes.get();
+    }
+
+    /**
+     * Pooled buffers currently leased.
+     */
+    public long getLeased() {
+        return leased.get();
+    }
+}
@@ -0,0 +1,212 @@
+package org.bonede.cafebit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The .torrent files of a directory, loaded in parallel at startup. Loading only parses the file and
+ * hashes the info dict, the torrent itself is compiled on first use.
+ */
+public class BCatalog {
+    private static final String SUFFIX = ".torrent";
+
+    private static final Logger logger = LoggerFactory.getLogger(BCatalog.class);
+
+    public static class BEntry{
+        private final Path path;
+        private final byte[] infoHash;
+        private final String name;
+        private final long length;
+        // parsed file, dropped once the torrent is compiled
+        private Bencode.BTape tape;
+        private volatile BTorrent torrent;
+
+        private BEntry(Path path, Bencode.BTape tape){
+            this.path = path;
+            int root = tape.root();
+            if(tape.getTag(root) != Bencode.BValueTag.Dict){
+                throw new BTorrent.BTorrentError("Invalid torrent file");
+            }
+            int info = tape.get(root, BTorrent.INFO);
+            int pieces = info == Bencode.BTape.NONE ? Bencode.BTape.NONE : tape.get(info, BTorrent.PIECES);
+            int name = info == Bencode.BTape.NONE ? Bencode.BTape.NONE : tape.get(info, BTorrent.NAME);
+            if(pieces == Bencode.BTape.NONE || name == Bencode.BTape.NONE){
+                // v2 only torrents need the file tree walk for their length, compile them right away
+                this.torrent = new BTorrent(tape);
+                this.infoHash = torrent.getInfoHash();
+                this.name = torrent.getName();
+                this.length = torrent.getLength();
+                return;
+            }
+            this.tape = tape;
+            this.infoHash = Crypto.sha1(tape.getSource(), tape.getStart(info), tape.getLength(info));
+            this.name = tape.getString(name);
+            this.length = length(tape, info);
+        }
+
+        private static long length(Bencode.BTape tape, int info){
+            int files = tape.get(info, BTorrent.FILES);
+            if(files == Bencode.BTape.NONE){
+                int length = tape.get(info, BTorrent.LENGTH);
+                return length == Bencode.BTape.NONE ? 0 : tape.getIntValue(length);
+            }
+            long length = 0;
+            for(int file = tape.first(files); file != Bencode.BTape.NONE; file = tape.next(file)){
+                int fileLength = tape.get(file, BTorrent.LENGTH);
+                if(fileLength != Bencode.BTape.NONE){
+                    length += tape.getIntValue(fileLength);
+                }
+            }
+            return length;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public byte[] getInfoHash() {
+            return infoHash;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public boolean isLoaded() {
+            return torrent != null;
+        }
+
+        /**
+         * Compiles the torrent on first call, a malformed torrent throws here rather than at load time.
+         */
+        public BTorrent getTorrent() {
+            BTorrent torrent = this.torrent;
+            if(torrent == null){
+                synchronized (this){
+                    torrent = this.torrent;
+                    if(torrent == null){
+                        torrent = new BTorrent(tape);
+                        this.torrent = torrent;
+                        this.tape = null;
+                    }
+                }
+            }
+            return torrent;
+        }
+    }
+
+    private final List<BEntry> entries;
+    private final Map<String, BEntry> byInfoHash;
+    private final List<Path> failed;
+
+    private BCatalog(List<BEntry> entries, List<Path> failed) {
+        this.entries = Collections.unmodifiableList(entries);
+        this.byInfoHash = new HashMap<>(entries.size() * 2);
+        for(BEntry entry : entries){
+            BEntry other = byInfoHash.putIfAbsent(Crypto.hex(entry.infoHash), entry);
+            if(other != null){
+                logger.warn("{} duplicates {}", entry.path, other.path);
+            }
+        }
+        this.failed = Collections.unmodifiableList(failed);
+    }
+
+    /**
+     * Loads every .torrent file directly in dir on the given number of threads. Files that can't be
+     * read or parsed are logged and listed in {@link #getFailed()}.
+     */
+    public static BCatalog load(Path dir, int threads) throws IOException, InterruptedException {
+        List<Path> paths;
+        try(Stream<Path> stream = Files.list(dir)){
+            paths = stream.filter(path -> path.getFileName().toString().endsWith(SUFFIX) && Files.isRegularFile(path))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        List<BEntry> entries = new ArrayList<>(paths.size());
+        List<Path> failed = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<BEntry>> futures = new ArrayList<>(paths.size());
+            for(Path path : paths){
+                futures.add(executor.submit(() -> new BEntry(path, Bencode.parseTape(read(path)))));
+            }
+            for(int i = 0; i < paths.size(); i++){
+                try {
+                    entries.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    logger.warn("failed to load {}: {}", paths.get(i), e.getCause().toString());
+                    failed.add(paths.get(i));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return new BCatalog(entries, failed);
+    }
+
+    public static BCatalog load(Path dir) throws IOException, InterruptedException {
+        return load(dir, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Reads the file through a mapping, copying straight from the page cache without stream buffers.
+     */
+    private static byte[] read(Path path) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+            long size = channel.size();
+            if(size > Integer.MAX_VALUE){
+                throw new IOException("Torrent file too large: " + path);
+            }
+            byte[] bytes = new byte[(int) size];
+            if(size > 0){
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                map.get(bytes);
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Loaded entries in path order.
+     */
+    public List<BEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Entry by wire info hash, null when not in the catalog.
+     */
+    public BEntry get(byte[] infoHash) {
+        return byInfoHash.get(Crypto.hex(infoHash));
+    }
+
+    public List<Path> getFailed() {
+        return failed;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,122 @@
+package org.bonede.cafebit;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Picks the peers of a torrent we upload to. Every round the interested peers are ranked by their
+ * recent rate and the fastest get the regular slots: while downloading the rate they send to us, so
+ * peers that give get back, once seeding the rate they take from us. One more slot goes to a random
+ * choked peer and moves on every few rounds, it gives newcomers a first piece to trade and tries out
+ * peers that may beat the current ones. Not thread safe, rounds of a torrent run on one thread.
+ */
+public class BChoker {
+    public static final int SLOTS = 4;
+    public static final long ROUND_NANOS = 10_000_000_000L;
+    // the optimistic slot moves on every third round, 30 seconds
+    static final int OPTIMISTIC_ROUNDS = 3;
+    // peers connected this recently have nothing to trade yet, they are three times as likely to be tried
+    static final long NEW_PEER_NANOS = 60_000_000_000L;
+
+    public interface Peer {
+        boolean isInterested();
+
+        /**
+         * The rate the peer is ranked by, bytes per second.
+         */
+        double getRate(long nanos);
+
+        /**
+         * System.nanoTime of the connection.
+         */
+        long getConnected();
+    }
+
+    private final int slots;
+    private final Random random;
+    private Peer optimistic;
+    // round the optimistic peer was picked in, it keeps the slot OPTIMISTIC_ROUNDS from there
+    private int optimisticSince;
+    private int rounds;
+
+    public BChoker() {
+        this(SLOTS, new Random());
+    }
+
+    public BChoker(int slots, Random random) {
+        this.slots = slots;
+        this.random = random;
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    /**
+     * Peers that may be unchoked without waiting for the next round, a peer that became interested
+     * while fewer are unchoked gets a free slot right away.
+     */
+    public int getMaxUnchoked() {
+        return slots + 1;
+    }
+
+    /**
+     * Runs a round.
+     * @return the peers to unchoke, every other one is choked
+     */
+    public <P extends Peer> Set<P> unchoke(Collection<P> peers, long nanos) {
+        List<P> interested = new ArrayList<>();
+        Map<P, Double> rates = new IdentityHashMap<>();
+        for(P peer : peers){
+            if(peer.isInterested()){
+                interested.add(peer);
+                // read once, a rate moves while the list is sorted
+                rates.put(peer, peer.getRate(nanos));
+            }
+        }
+        interested.sort((a, b) -> Double.compare(rates.get(b), rates.get(a)));
+        Set<P> unchoke = Collections.newSetFromMap(new IdentityHashMap<>());
+        unchoke.addAll(interested.subList(0, Math.min(slots, interested.size())));
+        List<P> candidates = interested.subList(unchoke.size(), interested.size());
+        boolean kept = optimistic != null && candidates.contains(optimistic);
+        if(!kept || rounds - optimisticSince >= OPTIMISTIC_ROUNDS){
+            optimistic = pick(candidates, nanos);
+            optimisticSince = rounds;
+        }
+        rounds++;
+        if(optimistic != null){
+            @SuppressWarnings("unchecked")
+            P peer = (P) optimistic;
+            unchoke.add(peer);
+        }
+        return unchoke;
+    }
+
+    private Peer pick(List<? extends Peer> candidates, long nanos){
+        int total = 0;
+        for(Peer peer : candidates){
+            total += weight(peer, nanos);
+        }
+        if(total == 0){
+            return null;
+        }
+        int r = random.nextInt(total);
+        for(Peer peer : candidates){
+            r -= weight(peer, nanos);
+            if(r < 0){
+                return peer;
+            }
+        }
+        return null;
+    }
+
+    private static int weight(Peer peer, long nanos){
+        return nanos - peer.getConnected() < NEW_PEER_NANOS ? 3 : 1;
+    }
+}
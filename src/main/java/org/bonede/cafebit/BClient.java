@@ -4,9 +4,9 @@ package org.bonede.cafebit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.FileOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.net.http.HttpClient;
@@ -17,38 +17,104 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.StringJoiner;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class BClient {
+public class BClient implements Closeable {
     private int listenPort;
     private String peerId;
     HttpClient httpClient = HttpClient.newHttpClient();
 
 
     private int BLOCK_SIZE = 16 * 1024;
+    // pieces waiting for verification at a time, on top of the one every session assembles
+    private static final int PIECE_BUFFERS = 4;
+    // corrupt pieces tolerated before the download is abandoned
+    private static final int MAX_HASH_FAILURES = 16;
+    private static final int DEFAULT_MAX_PEERS = 32;
+    private static final int METADATA_PEERS = 8;
+    private static final long METADATA_TIMEOUT_MILLIS = 60_000;
 
     Logger logger = LoggerFactory.getLogger(BClient.class);
 
+    // hashes and writes completed pieces off the connection threads
+    private final ExecutorService verifyExecutor = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2), BThreads.platform("cafebit-verify-"));
+
+
+    // how peer sessions are run, and how many at a time per task
+    private final BThreads.Mode peerThreads;
+    private final int maxPeers;
+    // uploads to peers connecting to listenPort, null until listen
+    private volatile BSeeder seeder;
+    // event loops of Mode.EventLoop downloads, opened on first use, guarded by engineLock
+    private BPeerEngine engine;
+    private final ReentrantLock engineLock = new ReentrantLock();
 
     public BClient() {
+        this(BThreads.Mode.Virtual, DEFAULT_MAX_PEERS);
+    }
+
+    public BClient(BThreads.Mode peerThreads, int maxPeers) {
         this.listenPort = 6881;
         this.peerId = "00112233445566778899";
+        this.peerThreads = peerThreads;
+        this.maxPeers = maxPeers;
+    }
+
+
+
+    /**
+     * Accepts peers on the listen port, tasks downloaded afterwards are seeded from their verified pieces.
+     */
+    public void listen() throws IOException {
+        listen(listenPort);
     }
 
+    /**
+     * Accepts peers on port, 0 for any free port, which is then announced to trackers.
+     */
+    public void listen(int port) throws IOException {
+        if(seeder != null){
+            throw new IOException("Already listening on " + listenPort);
+        }
+        seeder = new BSeeder(peerId, port, peerThreads);
+        listenPort = seeder.getPort();
+    }
 
+    public int getListenPort() {
+        return listenPort;
+    }
 
     public BPeersResp getPeers(BTask bTask) throws IOException, InterruptedException {
+        return getPeers(bTask.getTorrent().getAnnounce(), bTask.getTorrent().getInfoHash(),
+                bTask.getUploaded(), bTask.getDownloaded(), bTask.getLeft(), bTask.getCompact());
+    }
+
+    public BPeersResp getPeers(String announce, byte[] infoHash, long uploaded, long downloaded, long left, int compact) throws IOException, InterruptedException {
         StringJoiner stringJoiner = new StringJoiner("&");
 
-        stringJoiner.add("info_hash" + "=" + Crypto.urlEncodeBytes(bTask.getTorrent().getInfoHash()));
+        stringJoiner.add("info_hash" + "=" + Crypto.urlEncodeBytes(infoHash));
         stringJoiner.add("peer_id" + "=" + this.peerId);
         stringJoiner.add("port" + "=" + this.listenPort);
-        stringJoiner.add("uploaded" + "=" + bTask.getUploaded());
-        stringJoiner.add("downloaded" + "=" + bTask.getDownloaded());
-        stringJoiner.add("left" + "=" + bTask.getLeft());
-        stringJoiner.add("compact" + "=" + bTask.getCompact());
-        String url = bTask.getTorrent().getAnnounce() + "?" + stringJoiner;
+        stringJoiner.add("uploaded" + "=" + uploaded);
+        stringJoiner.add("downloaded" + "=" + downloaded);
+        stringJoiner.add("left" + "=" + left);
+        stringJoiner.add("compact" + "=" + compact);
+        String url = announce + "?" + stringJoiner;
         URI uri = URI.create(url);
 
         HttpRequest request = HttpRequest.newBuilder(uri)
@@ -62,50 +128,590 @@ public class BClient {
        return new BPeersResp(resp.body());
     }
 
+    /**
+     * Resolves a magnet link to a torrent, peers from all trackers of the link are asked for the
+     * info dict in parallel.
+     */
+    public BTorrent fetchTorrent(BMagnet magnet) throws IOException, InterruptedException {
+        Set<InetSocketAddress> peers = new LinkedHashSet<>();
+        for(String tracker : magnet.getTrackers()){
+            try {
+                // the size is unknown until the metadata arrives, report a non-zero left so trackers return seeders
+                peers.addAll(Arrays.asList(getPeers(tracker, magnet.getInfoHash(), 0, 0, 1, 1).getPeers()));
+            } catch (IOException | RuntimeException e) {
+                logger.info("tracker {} failed: {}", tracker, e.toString());
+            }
+        }
+        byte[] info = new BMetadataFetch(peerId, magnet)
+                .fetch(peers.toArray(new InetSocketAddress[0]), METADATA_PEERS, METADATA_TIMEOUT_MILLIS);
+        String announce = magnet.getTrackers().isEmpty() ? null : magnet.getTrackers().get(0);
+        BTorrent bTorrent = BTorrent.fromInfo(info, announce);
+        logger.info("fetched metadata of {} from {} peers", bTorrent.getName(), peers.size());
+        return bTorrent;
+    }
+
     public void download(BTask task) throws IOException, InterruptedException {
         BTorrent bTorrent = task.getTorrent();
-        BPeersResp resp = getPeers(task);
-        PeerConn conn = PeerConn.connect(peerId, resp.getPeers()[0], bTorrent.getInfoHash());
-        byte[] bitField = conn.readBitfield();
-        conn.sendInterested();
-        conn.readUnchoke();
         Path dstPath = Paths.get(task.getDstDir());
+        // data left from an earlier run is kept, only pieces that aren't verified on disk are downloaded
+        BResume resume = BResume.open(task.getResumePath(), bTorrent, dstPath);
+        try {
+            download(task, dstPath, resume, resumeHave(bTorrent, dstPath, resume));
+        } finally {
+            resume.close();
+        }
+    }
+
+    /**
+     * Pieces on disk, trusted from the resume file when their files are unchanged, hashed otherwise.
+     */
+    private BitSet resumeHave(BTorrent bTorrent, Path dstPath, BResume resume) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        BitSet have;
+        if(resume.isLoaded()){
+            have = resume.getHave();
+            BitSet changed = resume.getChanged();
+            changed.and(have);
+            have.andNot(changed);
+            have.or(BRecheck.recheck(bTorrent, dstPath, threads, changed));
+            logger.info("resume trusted {} pieces, rechecked {}", have.cardinality(), changed.cardinality());
+        }else{
+            have = BRecheck.recheck(bTorrent, dstPath, threads);
+        }
+        resume.reset(have);
+        return have;
+    }
+
+    private void download(BTask task, Path dstPath, BResume resume, BitSet have) throws IOException, InterruptedException {
+        BTorrent bTorrent = task.getTorrent();
+        for(int i = have.nextSetBit(0); i >= 0; i = have.nextSetBit(i + 1)){
+            task.addVerified(bTorrent.getPieceLength(i));
+        }
+        // served until the client closes, pieces verified below are added as they are written
+        BSeeder seeder = this.seeder;
+        BSeeder.BSeed seed = seeder != null ? seeder.add(task, dstPath, have) : null;
+        if(have.cardinality() == bTorrent.getPieceNum()){
+            logger.info("all {} pieces verified on disk {}", bTorrent.getPieceNum(), dstPath);
+            return;
+        }
+        logger.info("found {} of {} pieces in {}", have.cardinality(), bTorrent.getPieceNum(), dstPath);
+        InetSocketAddress[] peers = getPeers(task).getPeers();
         Files.createDirectories(dstPath);
-        Path filePath = dstPath.resolve(bTorrent.getName());
-        OutputStream outputStream = new FileOutputStream(filePath.toFile());
-        int fileSize = bTorrent.getLength();
-        int pieceNum = bTorrent.getPieceNum();
-        int pieceLength = bTorrent.getPieceLength();
-        int lastPieceLength = fileSize % pieceLength;
-        ByteBuffer byteBuffer = ByteBuffer.allocate(pieceLength);
-        logger.info("download {} to {}, pieces {}, length {}", bTorrent.getName(), filePath, pieceNum, fileSize);
-        for(int i = 0; i < pieceNum; i++){
-
-            byteBuffer.clear();
-            int pLength = i == pieceNum - 1 ? lastPieceLength : pieceLength;
-            byte[] pieceSha1 = bTorrent.getPieceAt(i);
-            int blocks = pLength / BLOCK_SIZE + 1;
-            int lastBlockSize = pLength % BLOCK_SIZE;
-            logger.info("start download piece {} size {}", i, pLength);
-            for(int b = 0; b < blocks; b++){
-
-                int blockSize = b == blocks - 1 ? lastBlockSize : BLOCK_SIZE;
-                int offset = BLOCK_SIZE * b;
-                logger.info("download block: {}, piece {}, offset {}, block size {}", b, i, offset, blockSize);
-                byte[] block = conn.downloadBlock(i, offset, blockSize);
-                byteBuffer.put(block);
-            }
-            byte[] piece = new byte[pLength];
-            byteBuffer.flip();
-            byteBuffer.get(piece);
-            byte[] sha1 = Crypto.sha1(piece);
-            if(!Arrays.equals(pieceSha1, sha1)){
-                throw new Bencode.BError("sha1 mismatch");
-            }
-            logger.info("write piece: {}", i);
-            outputStream.write(piece);
-        }
-        outputStream.close();
-        logger.info("download complete {}", filePath);
+        logger.info("download {} to {}, files {}, pieces {}, length {}, peers {}", bTorrent.getName(), dstPath,
+                bTorrent.getFiles().length, bTorrent.getPieceNum(), bTorrent.getLength(), peers.length);
+        BPiecePicker picker = new BPiecePicker(bTorrent.getPieceNum(), have);
+        try(BStorage storage = new BStorage(bTorrent, dstPath)){
+            Download download = new Download(task, picker, storage, resume, seed, Math.min(maxPeers, peers.length));
+            try(BTaskScope scope = new BTaskScope(BThreads.factory(peerThreads, "cafebit-peer-"), maxPeers)){
+                download.scope = scope;
+                task.setScope(scope);
+                if(peerThreads == BThreads.Mode.EventLoop){
+                    BPeerEngine engine = engine();
+                    for(InetSocketAddress peer : peers){
+                        if(!scope.begin()){
+                            break;
+                        }
+                        download.connect(engine, peer);
+                    }
+                }else{
+                    for(InetSocketAddress peer : peers){
+                        scope.fork(() -> download.session(peer));
+                    }
+                }
+                try {
+                    scope.join();
+                } finally {
+                    // pieces handed to the verify pool are written before storage closes
+                    download.verifications.arriveAndAwaitAdvance();
+                }
+            } finally {
+                task.setScope(null);
+            }
+        }
+        if(task.isCancelled()){
+            throw new IOException("Download cancelled");
+        }
+        if(!picker.isComplete()){
+            throw new IOException("Download incomplete, pieces missing: " + picker.getPending());
+        }
+        logger.info("download complete {}", dstPath);
+    }
+
+    private BPeerEngine engine() throws IOException {
+        engineLock.lock();
+        try {
+            if(engine == null){
+                engine = new BPeerEngine(peerId, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+            }
+            return engine;
+        } finally {
+            engineLock.unlock();
+        }
+    }
+
+    /**
+     * State of one download shared by its peer sessions, one session per peer on the scope's threads,
+     * or on the event loops of the engine in Mode.EventLoop.
+     */
+    private class Download {
+        private final BTask task;
+        private final BTorrent bTorrent;
+        private final BPiecePicker picker;
+        private final BStorage storage;
+        private final BResume resume;
+        // null when not listening
+        private final BSeeder.BSeed seed;
+        // piece buffers, allocated on demand, two per session so a session's pipeline can run into its
+        // next piece, and a few more for pieces being verified
+        private final BlockingQueue<ByteBuffer> buffers = new LinkedBlockingQueue<>();
+        private final AtomicInteger allocated = new AtomicInteger();
+        private final int maxBuffers;
+        private final AtomicInteger hashFailures = new AtomicInteger();
+        // the download itself plus one party per piece on the verify pool
+        private final Phaser verifications = new Phaser(1);
+        // event loop sessions that found no buffer or piece, requesting again once one is given back
+        private final Set<EngineSession> idle = ConcurrentHashMap.newKeySet();
+        private BTaskScope scope;
+
+        Download(BTask task, BPiecePicker picker, BStorage storage, BResume resume, BSeeder.BSeed seed, int sessions) {
+            this.task = task;
+            this.bTorrent = task.getTorrent();
+            this.picker = picker;
+            this.storage = storage;
+            this.resume = resume;
+            this.seed = seed;
+            this.maxBuffers = 2 * sessions + PIECE_BUFFERS;
+        }
+
+        /**
+         * A free or newly allocated buffer, null when all are in use.
+         */
+        private ByteBuffer pollBuffer() {
+            ByteBuffer buffer = buffers.poll();
+            if(buffer == null && allocated.getAndUpdate(n -> n < maxBuffers ? n + 1 : n) < maxBuffers){
+                // direct, blocks are read into it from the socket and written from it to disk without a copy
+                buffer = ByteBuffer.allocateDirect(bTorrent.getPieceLength());
+            }
+            return buffer;
+        }
+
+        private ByteBuffer takeBuffer() throws InterruptedException {
+            ByteBuffer buffer = pollBuffer();
+            return buffer != null ? buffer : buffers.take();
+        }
+
+        /**
+         * A buffer or a piece was given back, or a piece was done, idle event loop sessions look again.
+         */
+        private void wakeIdle() {
+            for(EngineSession session : idle){
+                if(idle.remove(session)){
+                    session.peer.execute(session::request);
+                }
+            }
+        }
+
+        /**
+         * A piece a session is downloading, blocks are requested in order and may arrive in any order.
+         */
+        private class ActivePiece {
+            private final int index;
+            private final int length;
+            // file data in the piece, the merkle tree doesn't cover the padding of a hybrid torrent
+            private final int dataLength;
+            private final int blocks;
+            private final ByteBuffer buffer;
+            private final BMerkle.BPieceVerifier verifier;
+            private final BPieceHasher hasher;
+            private int requested;
+            private int received;
+
+            ActivePiece(int index, ByteBuffer buffer) {
+                this.index = index;
+                this.length = bTorrent.getPieceLength(index);
+                this.dataLength = bTorrent.isV2() ? bTorrent.getPieceDataLength(index) : length;
+                this.blocks = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+                this.buffer = buffer.clear();
+                // v2 and hybrid torrents are checked block by block against the merkle tree
+                this.verifier = bTorrent.isV2() ? bTorrent.newPieceVerifier(index) : null;
+                this.hasher = verifier == null ? new BPieceHasher(buffer, length, BLOCK_SIZE) : null;
+            }
+
+            int blockLength(int begin){
+                return Math.min(BLOCK_SIZE, length - begin);
+            }
+
+            /**
+             * Gives the piece back unfinished.
+             */
+            void abandon(){
+                if(hasher != null){
+                    hasher.release();
+                }
+                buffers.add(buffer);
+                picker.retry(index);
+                wakeIdle();
+            }
+        }
+
+        void session(InetSocketAddress addr) throws IOException, InterruptedException {
+            PeerConn conn = PeerConn.connect(peerId, addr, bTorrent.getInfoHash());
+            scope.register(conn);
+            List<ActivePiece> active = new ArrayList<>();
+            try {
+                byte[] bitField = Arrays.copyOf(conn.readBitfield(bTorrent.getPieceNum()), (bTorrent.getPieceNum() + 7) / 8);
+                conn.sendInterested();
+                BRequestWindow window = new BRequestWindow(BLOCK_SIZE);
+                // the peer unchokes us when its choker gives us a slot, HAVEs may come first
+                boolean choked = true;
+                while(!scope.isCancelled()){
+                    if(!choked){
+                        request(conn, window, active, bitField);
+                        if(active.isEmpty()){
+                            break;
+                        }
+                    }
+                    int id = conn.readFrame();
+                    if(id == PeerConn.M_PIECE){
+                        received(conn, addr, window, active);
+                    }else if(id == PeerConn.M_CHOKE){
+                        // the peer drops our requests, its pieces go back to the other sessions
+                        choked = true;
+                        window.clear();
+                        active.forEach(ActivePiece::abandon);
+                        active.clear();
+                    }else if(id == PeerConn.M_UNCHOKE){
+                        choked = false;
+                    }else if(id == PeerConn.M_HAVE){
+                        ByteBuffer have = conn.payload();
+                        int index = have.remaining() == 4 ? have.getInt() : -1;
+                        if(index >= 0 && index / 8 < bitField.length){
+                            bitField[index / 8] |= (byte) (0x80 >>> (index % 8));
+                        }
+                    }
+                }
+            } finally {
+                active.forEach(ActivePiece::abandon);
+                scope.unregister(conn);
+                conn.close();
+            }
+        }
+
+        /**
+         * Fills the request window, moving on to new pieces once the active ones are fully requested.
+         * Blocks for a piece only when the session has nothing in flight.
+         */
+        private void request(PeerConn conn, BRequestWindow window, List<ActivePiece> active, byte[] bitField) throws IOException, InterruptedException {
+            try {
+                while(window.hasRoom()){
+                    ActivePiece piece = null;
+                    for(ActivePiece a : active){
+                        if(a.requested < a.blocks){
+                            piece = a;
+                            break;
+                        }
+                    }
+                    if(piece == null){
+                        piece = start(bitField, active.isEmpty());
+                        if(piece == null){
+                            return;
+                        }
+                        active.add(piece);
+                    }
+                    int begin = piece.requested++ * BLOCK_SIZE;
+                    conn.queueRequest(piece.index, begin, piece.blockLength(begin));
+                    window.requested(piece.index, begin, System.nanoTime());
+                }
+            } finally {
+                // the whole batch of requests goes out in one write
+                conn.flush();
+            }
+        }
+
+        private ActivePiece start(byte[] bitField, boolean wait) throws InterruptedException {
+            ByteBuffer buffer = wait ? takeBuffer() : pollBuffer();
+            if(buffer == null){
+                return null;
+            }
+            return start(buffer, wait ? picker.next(bitField) : picker.poll(bitField));
+        }
+
+        /**
+         * The piece to download next without waiting, null when no buffer is free or the peer has none pending.
+         */
+        private ActivePiece poll(byte[] bitField) {
+            ByteBuffer buffer = pollBuffer();
+            return buffer != null ? start(buffer, picker.poll(bitField)) : null;
+        }
+
+        private ActivePiece start(ByteBuffer buffer, int piece){
+            if(piece < 0){
+                buffers.add(buffer);
+                return null;
+            }
+            logger.info("start download piece {} size {}", piece, bTorrent.getPieceLength(piece));
+            return new ActivePiece(piece, buffer);
+        }
+
+        /**
+         * Reads a block straight into its piece, matched by (index, begin), and hands a completed
+         * piece to the verify pool.
+         */
+        private void received(PeerConn conn, InetSocketAddress addr, BRequestWindow window, List<ActivePiece> active) throws IOException {
+            int index = conn.getPieceIndex();
+            int begin = conn.getPieceBegin();
+            int length = conn.getPayloadLength();
+            if(!window.received(index, begin, length, System.nanoTime())){
+                // not requested, or dropped on a choke
+                conn.skipPayload();
+                return;
+            }
+            ActivePiece piece = null;
+            for(ActivePiece a : active){
+                if(a.index == index){
+                    piece = a;
+                }
+            }
+            if(piece == null || length != piece.blockLength(begin)){
+                throw new Bencode.BError("Invalid block size: " + length);
+            }
+            logger.debug("received block piece {}, offset {}, window {}", index, begin, window.getSize());
+            ByteBuffer block = piece.buffer.duplicate().limit(begin + length).position(begin);
+            conn.readPayload(block);
+            stored(addr, piece, begin, length, active);
+        }
+
+        /**
+         * A block was stored in its piece.
+         */
+        private void stored(InetSocketAddress addr, ActivePiece piece, int begin, int length, List<ActivePiece> active) {
+            task.addDownloaded(length);
+            if(seed != null){
+                // ranks the peer for our upload slots
+                seed.received(addr.getAddress(), length);
+            }
+            if(piece.verifier != null && begin < piece.dataLength){
+                int end = Math.min(begin + length, piece.dataLength);
+                piece.verifier.addBlock(begin / BLOCK_SIZE, piece.buffer.duplicate().limit(end).position(begin));
+            }
+            if(piece.hasher != null){
+                piece.hasher.blockReceived(begin);
+            }
+            if(++piece.received == piece.blocks){
+                active.remove(piece);
+                ActivePiece done = piece;
+                verifications.register();
+                verifyExecutor.execute(() -> verify(done.index, done.length, done.buffer, done.verifier, done.hasher));
+            }
+        }
+
+        private void verify(int piece, int pLength, ByteBuffer byteBuffer, BMerkle.BPieceVerifier verifier, BPieceHasher hasher) {
+            try {
+                boolean valid = verifier != null ? verifier.verify() : bTorrent.checkPiece(piece, hasher.digest());
+                if(!valid){
+                    logger.warn("piece {} failed verification", piece);
+                    picker.retry(piece);
+                    if(hashFailures.incrementAndGet() > MAX_HASH_FAILURES){
+                        scope.fail(new Bencode.BError("Too many hash failures"));
+                    }
+                    return;
+                }
+                logger.info("write piece: {}", piece);
+                storage.write(piece, 0, byteBuffer.duplicate().position(0).limit(pLength));
+                resume.setHave(piece);
+                if(seed != null){
+                    seed.setHave(piece);
+                }
+                task.addVerified(pLength);
+                picker.done(piece);
+                if(picker.isComplete()){
+                    // ends sessions still waiting on choked peers
+                    scope.cancel();
+                }
+            } catch (IOException | RuntimeException e) {
+                picker.retry(piece);
+                scope.fail(e);
+            } finally {
+                buffers.add(byteBuffer);
+                verifications.arriveAndDeregister();
+                wakeIdle();
+            }
+        }
+
+        /**
+         * Starts an event loop session with the peer, the scope has counted it already.
+         */
+        void connect(BPeerEngine engine, InetSocketAddress addr) {
+            EngineSession session = new EngineSession();
+            scope.register(session);
+            try {
+                session.peer = engine.connect(addr, bTorrent.getInfoHash(), session);
+            } catch (IOException e) {
+                logger.info("connect {} failed: {}", addr, e.toString());
+                scope.unregister(session);
+                scope.end();
+                return;
+            }
+            if(scope.isCancelled()){
+                session.close();
+            }
+        }
+
+        /**
+         * The session of {@link #session(InetSocketAddress)} driven by the messages of a non-blocking
+         * connection. Its state is used on the connection's event loop thread only.
+         */
+        private class EngineSession implements BPeerEngine.Handler, Closeable {
+            private volatile BPeerEngine.BPeer peer;
+            private final List<ActivePiece> active = new ArrayList<>();
+            private final BRequestWindow window = new BRequestWindow(BLOCK_SIZE);
+            // no pieces until a BITFIELD or HAVEs arrive
+            private final byte[] bitField = new byte[(bTorrent.getPieceNum() + 7) / 8];
+            private boolean choked = true;
+            private boolean closed;
+
+            @Override
+            public void onConnected(BPeerEngine.BPeer peer) {
+                // ahead of connect returning, messages may follow right away
+                this.peer = peer;
+                peer.send(PeerConn.M_INTERESTED, new byte[0]);
+            }
+
+            @Override
+            public void onMessage(BPeerEngine.BPeer peer, int id, ByteBuffer payload) throws IOException {
+                if(id == PeerConn.M_PIECE){
+                    received(payload);
+                    request();
+                }else if(id == PeerConn.M_CHOKE){
+                    // the peer drops our requests, its pieces go back to the other sessions
+                    choked = true;
+                    window.clear();
+                    abandon();
+                }else if(id == PeerConn.M_UNCHOKE){
+                    choked = false;
+                    request();
+                }else if(id == PeerConn.M_HAVE){
+                    int index = payload.remaining() == 4 ? payload.getInt() : -1;
+                    if(index >= 0 && index / 8 < bitField.length){
+                        bitField[index / 8] |= (byte) (0x80 >>> (index % 8));
+                    }
+                    if(active.isEmpty()){
+                        request();
+                    }
+                }else if(id == PeerConn.M_BITFIELD){
+                    if(payload.remaining() != bitField.length){
+                        throw new IOException("Invalid bitfield length: " + payload.remaining());
+                    }
+                    payload.get(bitField);
+                    request();
+                }
+            }
+
+            private void received(ByteBuffer payload) throws IOException {
+                if(payload.remaining() < 8){
+                    throw new IOException("Invalid piece message length: " + payload.remaining());
+                }
+                int index = payload.getInt();
+                int begin = payload.getInt();
+                int length = payload.remaining();
+                if(!window.received(index, begin, length, System.nanoTime())){
+                    // not requested, or dropped on a choke
+                    return;
+                }
+                ActivePiece piece = null;
+                for(ActivePiece a : active){
+                    if(a.index == index){
+                        piece = a;
+                    }
+                }
+                if(piece == null || length != piece.blockLength(begin)){
+                    throw new Bencode.BError("Invalid block size: " + length);
+                }
+                piece.buffer.duplicate().position(begin).put(payload);
+                stored(peer.getAddress(), piece, begin, length, active);
+            }
+
+            /**
+             * Fills the request window like the blocking session, but never waits for a buffer or
+             * a piece, the session goes idle instead and is woken by {@link #wakeIdle()}.
+             */
+            void request() {
+                if(closed || choked){
+                    return;
+                }
+                while(window.hasRoom()){
+                    ActivePiece piece = null;
+                    for(ActivePiece a : active){
+                        if(a.requested < a.blocks){
+                            piece = a;
+                            break;
+                        }
+                    }
+                    if(piece == null){
+                        piece = poll(bitField);
+                        if(piece == null){
+                            if(active.isEmpty() && !picker.wants(bitField)){
+                                // nothing left the peer could give us
+                                peer.close();
+                                return;
+                            }
+                            idle.add(this);
+                            return;
+                        }
+                        active.add(piece);
+                    }
+                    int begin = piece.requested++ * BLOCK_SIZE;
+                    peer.send(PeerConn.M_REQUEST, ByteBuffer.allocate(12)
+                            .putInt(piece.index).putInt(begin).putInt(piece.blockLength(begin)).array());
+                    window.requested(piece.index, begin, System.nanoTime());
+                }
+            }
+
+            private void abandon(){
+                List<ActivePiece> dropped = new ArrayList<>(active);
+                active.clear();
+                // gives the pieces back, which may wake sessions of this loop right away
+                dropped.forEach(ActivePiece::abandon);
+            }
+
+            @Override
+            public void onClosed(BPeerEngine.BPeer peer, Exception cause) {
+                closed = true;
+                idle.remove(this);
+                if(cause != null && !scope.isCancelled()){
+                    logger.info("session failed: {}", cause.toString());
+                }
+                abandon();
+                scope.unregister(this);
+                scope.end();
+            }
+
+            @Override
+            public void close() {
+                BPeerEngine.BPeer peer = this.peer;
+                if(peer != null){
+                    peer.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops seeding, the verify pool and the event loops.
+     */
+    @Override
+    public void close() throws IOException {
+        verifyExecutor.shutdown();
+        engineLock.lock();
+        try {
+            if(engine != null){
+                engine.close();
+            }
+        } finally {
+            engineLock.unlock();
+        }
+        if(seeder != null){
+            seeder.close();
+        }
     }
 }
@@ -0,0 +1,107 @@
+package org.bonede.cafebit;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Magnet link, magnet:?xt=urn:btih:&lt;info hash&gt;&amp;dn=&lt;name&gt;&amp;tr=&lt;tracker&gt;.
+ * The info hash is hex or base32 encoded, v2 links carry a sha2-256 multihash in xt=urn:btmh.
+ */
+public class BMagnet {
+    private static final String SCHEME = "magnet:?";
+    private static final String BTIH = "urn:btih:";
+    private static final String BTMH = "urn:btmh:";
+    // multihash prefix of a sha2-256 digest, function 0x12 and length 0x20
+    private static final String SHA256_MULTIHASH = "1220";
+
+    private final byte[] infoHash;
+    private final byte[] infoHashV2;
+    private final String name;
+    private final List<String> trackers;
+
+    public BMagnet(String uri) {
+        if(!uri.startsWith(SCHEME)){
+            throw new BTorrent.BTorrentError("Not a magnet link: " + uri);
+        }
+        byte[] v1 = null;
+        byte[] v2 = null;
+        String name = null;
+        List<String> trackers = new ArrayList<>();
+        for(String param : uri.substring(SCHEME.length()).split("&")){
+            int eq = param.indexOf('=');
+            if(eq < 0){
+                continue;
+            }
+            String key = param.substring(0, eq);
+            String value = URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8);
+            switch (key) {
+                case "xt":
+                    if(value.regionMatches(true, 0, BTIH, 0, BTIH.length())){
+                        v1 = decodeInfoHash(value.substring(BTIH.length()));
+                    }else if(value.regionMatches(true, 0, BTMH, 0, BTMH.length())){
+                        String multihash = value.substring(BTMH.length());
+                        if(!multihash.startsWith(SHA256_MULTIHASH) || multihash.length() != SHA256_MULTIHASH.length() + 64){
+                            throw new BTorrent.BTorrentError("Unsupported multihash: " + multihash);
+                        }
+                        v2 = Crypto.unhex(multihash.substring(SHA256_MULTIHASH.length()));
+                    }
+                    break;
+                case "dn":
+                    name = value;
+                    break;
+                case "tr":
+                    trackers.add(value);
+                    break;
+                default:
+                    break;
+            }
+        }
+        if(v1 == null && v2 == null){
+            throw new BTorrent.BTorrentError("Missing info hash: " + uri);
+        }
+        this.infoHashV2 = v2;
+        // v2 only swarms use the truncated v2 hash on the wire, like BTorrent.getInfoHash
+        this.infoHash = v1 != null ? v1 : Arrays.copyOf(v2, BTorrent.SHA1_LENGTH);
+        this.name = name;
+        this.trackers = Collections.unmodifiableList(trackers);
+    }
+
+    private static byte[] decodeInfoHash(String hash){
+        if(hash.length() == 40){
+            return Crypto.unhex(hash);
+        }
+        if(hash.length() == 32){
+            return Crypto.base32(hash);
+        }
+        throw new BTorrent.BTorrentError("Invalid info hash: " + hash);
+    }
+
+    /**
+     * Info hash used on the wire and to find peers.
+     */
+    public byte[] getInfoHash() {
+        return infoHash;
+    }
+
+    /**
+     * SHA-256 info hash of a v2 link, null for v1 links.
+     */
+    public byte[] getInfoHashV2() {
+        return infoHashV2;
+    }
+
+    /**
+     * Display name, null when the link has none.
+     */
+    public String getName() {
+        return name;
+    }
+
+    public List<String> getTrackers() {
+        return trackers;
+    }
+}
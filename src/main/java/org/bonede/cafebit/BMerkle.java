@@ -0,0 +1,155 @@
+package org.bonede.cafebit;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * SHA-256 merkle trees of BitTorrent v2 (BEP 52). Leaves are the hashes of 16 KiB blocks,
+ * leaves past the end of a file are zero hashes.
+ */
+public class BMerkle {
+    public static final int BLOCK_SIZE = 16 * 1024;
+    public static final int HASH_LENGTH = 32;
+
+    // initialized before PAD, which is computed with it
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(BMerkle::sha256);
+
+    // PAD[h] is the root of a subtree of height h whose leaves are all zero hashes
+    private static final byte[][] PAD = new byte[64][];
+
+    static {
+        PAD[0] = new byte[HASH_LENGTH];
+        for(int h = 1; h < PAD.length; h++){
+            PAD[h] = hashPair(PAD[h - 1], 0, PAD[h - 1], 0);
+        }
+    }
+
+    public static MessageDigest sha256(){
+        try {
+            return MessageDigest.getInstance("sha-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static byte[] blockHash(ByteBuffer block){
+        MessageDigest sha256 = SHA256.get();
+        sha256.update(block);
+        return sha256.digest();
+    }
+
+    private static byte[] hashPair(byte[] left, int leftOffset, byte[] right, int rightOffset){
+        MessageDigest sha256 = SHA256.get();
+        sha256.update(left, leftOffset, HASH_LENGTH);
+        sha256.update(right, rightOffset, HASH_LENGTH);
+        return sha256.digest();
+    }
+
+    /**
+     * Number of levels above count leaves, count rounded up to a power of two.
+     */
+    public static int height(long count){
+        return count <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(count - 1);
+    }
+
+    /**
+     * Root over count hashes of a layer, the layer is padded to 2^height nodes with roots of
+     * zero subtrees of height padHeight.
+     */
+    public static byte[] root(byte[] layer, int offset, int count, int height, int padHeight){
+        byte[] nodes = Arrays.copyOfRange(layer, offset, offset + count * HASH_LENGTH);
+        for(int level = 0; level < height; level++){
+            int next = (count + 1) / 2;
+            byte[] parents = new byte[next * HASH_LENGTH];
+            for(int i = 0; i < next; i++){
+                int left = 2 * i * HASH_LENGTH;
+                byte[] parent = 2 * i + 1 < count
+                        ? hashPair(nodes, left, nodes, left + HASH_LENGTH)
+                        : hashPair(nodes, left, PAD[padHeight + level], 0);
+                System.arraycopy(parent, 0, parents, i * HASH_LENGTH, HASH_LENGTH);
+            }
+            nodes = parents;
+            count = next;
+        }
+        return nodes;
+    }
+
+    /**
+     * Verifies one piece at block granularity. Every block is hashed as it arrives, so the piece
+     * never needs to be hashed as a whole. Given the block layer of the piece, checked against the
+     * piece hash, each block is also checked on arrival. Downloads don't request block layers from
+     * peers, so there a bad block is only found once the piece is complete.
+     */
+    public static class BPieceVerifier{
+        private final byte[] expected;
+        private final int height;
+        private final byte[][] leaves;
+        private byte[] blockHashes;
+        private int received;
+
+        BPieceVerifier(byte[] expected, int height, int blockNum){
+            this.expected = expected;
+            this.height = height;
+            this.leaves = new byte[blockNum][];
+        }
+
+        public int getBlockNum(){
+            return leaves.length;
+        }
+
+        /**
+         * @return false when the block layer is known and the block doesn't match it
+         */
+        public boolean addBlock(int index, ByteBuffer block){
+            byte[] hash = blockHash(block);
+            if(blockHashes != null && !Arrays.equals(blockHashes, index * HASH_LENGTH, (index + 1) * HASH_LENGTH, hash, 0, HASH_LENGTH)){
+                return false;
+            }
+            if(leaves[index] == null){
+                received++;
+            }
+            leaves[index] = hash;
+            return true;
+        }
+
+        /**
+         * Accepts the block layer of this piece if it hashes up to the piece hash. Blocks already
+         * received that don't match are dropped, see {@link #isBlockReceived(int)}.
+         */
+        public boolean setBlockHashes(byte[] hashes){
+            if(hashes.length != leaves.length * HASH_LENGTH
+                    || !Arrays.equals(root(hashes, 0, leaves.length, height, 0), expected)){
+                return false;
+            }
+            blockHashes = hashes;
+            for(int i = 0; i < leaves.length; i++){
+                if(leaves[i] != null && !Arrays.equals(hashes, i * HASH_LENGTH, (i + 1) * HASH_LENGTH, leaves[i], 0, HASH_LENGTH)){
+                    leaves[i] = null;
+                    received--;
+                }
+            }
+            return true;
+        }
+
+        public boolean isBlockReceived(int index){
+            return leaves[index] != null;
+        }
+
+        public boolean isComplete(){
+            return received == leaves.length;
+        }
+
+        public boolean verify(){
+            if(!isComplete()){
+                return false;
+            }
+            byte[] layer = new byte[leaves.length * HASH_LENGTH];
+            for(int i = 0; i < leaves.length; i++){
+                System.arraycopy(leaves[i], 0, layer, i * HASH_LENGTH, HASH_LENGTH);
+            }
+            return Arrays.equals(root(layer, 0, leaves.length, height, 0), expected);
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package org.bonede.cafebit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches the info dict of a magnet link from peers with the BEP 9 ut_metadata extension.
+ * Metadata pieces are shared by all connected peers through a queue, a piece a peer fails to
+ * deliver goes back for the others. Metadata that doesn't match the info hash is fetched again,
+ * and a peer found to send bad data is dropped, the fetch fails once no peer is left. One shot,
+ * create a new instance for every fetch.
+ */
+public class BMetadataFetch {
+    public static final int PIECE_SIZE = 16 * 1024;
+    // BEP 9 leaves the limit to the client, real info dicts are a few MiB at most
+    public static final int MAX_SIZE = 16 * 1024 * 1024;
+    private static final String UT_METADATA = "ut_metadata";
+    // id peers use for the ut_metadata messages they send us
+    private static final int UT_METADATA_ID = 1;
+    private static final int MSG_REQUEST = 0;
+    private static final int MSG_DATA = 1;
+    private static final int MSG_REJECT = 2;
+    private static final long POLL_MILLIS = 100;
+
+    private static final Bencode.BKey M = Bencode.BKey.of("m");
+    private static final Bencode.BKey METADATA_SIZE = Bencode.BKey.of("metadata_size");
+    private static final Bencode.BKey MSG_TYPE = Bencode.BKey.of("msg_type");
+    private static final Bencode.BKey PIECE = Bencode.BKey.of("piece");
+
+    private static final Logger logger = LoggerFactory.getLogger(BMetadataFetch.class);
+
+    private final String peerId;
+    private final byte[] infoHash;
+    private final byte[] infoHashV2;
+
+    private final CompletableFuture<byte[]> result = new CompletableFuture<>();
+    private final BlockingQueue<Integer> pending = new LinkedBlockingQueue<>();
+    private final Queue<InetSocketAddress> peers = new ConcurrentLinkedQueue<>();
+    private final Set<PeerConn> conns = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger workers = new AtomicInteger();
+    // guarded by this
+    private byte[] metadata;
+    private boolean[] received;
+    // peer each received piece came from
+    private PeerConn[] sources;
+    private int receivedNum;
+    // after metadata assembled from several peers failed the hash, pieces are taken from one peer
+    // at a time, the owner, so a peer sending bad data is found and dropped
+    private boolean singleSource;
+    private PeerConn owner;
+
+    public BMetadataFetch(String peerId, BMagnet magnet) {
+        this.peerId = peerId;
+        this.infoHash = magnet.getInfoHash();
+        this.infoHashV2 = magnet.getInfoHashV2();
+    }
+
+    /**
+     * Fetches from up to parallelism peers at a time and returns the info dict once its hash matches
+     * the info hash.
+     */
+    public byte[] fetch(InetSocketAddress[] addrs, int parallelism, long timeoutMillis) throws IOException, InterruptedException {
+        int threads = Math.min(parallelism, addrs.length);
+        if(threads <= 0){
+            throw new IOException("No peers to fetch metadata from");
+        }
+        peers.addAll(Arrays.asList(addrs));
+        workers.set(threads);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for(int i = 0; i < threads; i++){
+                pool.execute(this::work);
+            }
+            return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException){
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("Metadata fetch timed out");
+        } finally {
+            result.cancel(false);
+            // unblocks workers waiting on a peer
+            for(PeerConn conn : conns){
+                conn.close();
+            }
+            pool.shutdownNow();
+        }
+    }
+
+    private void work(){
+        try {
+            InetSocketAddress addr;
+            while (!result.isDone() && (addr = peers.poll()) != null){
+                try {
+                    fetchFrom(addr);
+                } catch (IOException | RuntimeException e) {
+                    logger.info("metadata fetch from {} failed: {}", addr, e.toString());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if(workers.decrementAndGet() == 0){
+                result.completeExceptionally(new IOException("No peer could serve metadata"));
+            }
+        }
+    }
+
+    private void fetchFrom(InetSocketAddress addr) throws IOException, InterruptedException {
+        PeerConn conn = PeerConn.connect(peerId, addr, infoHash, true);
+        conns.add(conn);
+        try {
+            Bencode.BValue handshake = conn.extendedHandshake(Bencode.BValue.dictValue()
+                    .put(M, Bencode.BValue.dictValue().put(UT_METADATA, Bencode.BValue.intValue(UT_METADATA_ID))));
+            Bencode.BValue m = handshake.get(M);
+            Bencode.BValue utMetadata = m == null ? null : m.get(UT_METADATA);
+            Bencode.BValue size = handshake.get(METADATA_SIZE);
+            if(utMetadata == null || size == null){
+                throw new IOException("Peer doesn't serve metadata");
+            }
+            int metadataSize = init(size.getIntValue());
+            int peerUtMetadata = (int) utMetadata.getIntValue();
+            while (!result.isDone()){
+                if(!claim(conn)){
+                    Thread.sleep(POLL_MILLIS);
+                    continue;
+                }
+                Integer piece = pending.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if(piece == null){
+                    continue;
+                }
+                try {
+                    conn.sendExtended(peerUtMetadata, Bencode.BValue.dictValue()
+                            .put(MSG_TYPE, Bencode.BValue.intValue(MSG_REQUEST))
+                            .put(PIECE, Bencode.BValue.intValue(piece))
+                            .encode());
+                    if(addPiece(conn, piece, readPiece(conn, peerUtMetadata, piece, metadataSize))){
+                        piece = null;
+                    }
+                } finally {
+                    if(piece != null){
+                        pending.add(piece);
+                    }
+                }
+            }
+        } finally {
+            release(conn);
+            conns.remove(conn);
+            conn.close();
+        }
+    }
+
+    /**
+     * Whether the peer may be asked for pieces, in single source mode the first to ask owns the round.
+     */
+    private synchronized boolean claim(PeerConn conn){
+        if(!singleSource){
+            return true;
+        }
+        if(owner == null){
+            owner = conn;
+        }
+        return owner == conn;
+    }
+
+    /**
+     * A peer is gone, if it owned the round its pieces are fetched again from the next owner.
+     */
+    private synchronized void release(PeerConn conn){
+        if(owner == conn){
+            owner = null;
+            reset();
+        }
+    }
+
+    /**
+     * Drops every piece received, they are all requested again.
+     */
+    private void reset(){
+        Arrays.fill(received, false);
+        Arrays.fill(sources, null);
+        receivedNum = 0;
+        pending.clear();
+        for(int i = 0; i < received.length; i++){
+            pending.add(i);
+        }
+    }
+
+    private ByteBuffer readPiece(PeerConn conn, int peerUtMetadata, int piece, int metadataSize) throws IOException {
+        while (true){
+            ByteBuffer msg = conn.readExtended();
+            if(msg.get() != UT_METADATA_ID){
+                continue;
+            }
+            // the dict is followed by the raw piece data
+            // no string of the peer's dict is longer than the metadata
+            Bencode.Parser parser = new Bencode.Parser(metadataSize);
+            if(parser.feed(msg) != Bencode.Parser.Status.Complete){
+                throw new IOException("Truncated ut_metadata message");
+            }
+            Bencode.BValue dict = parser.getValue();
+            Bencode.BValue type = dict.get(MSG_TYPE);
+            Bencode.BValue index = dict.get(PIECE);
+            if(type == null || index == null){
+                throw new IOException("Invalid ut_metadata message");
+            }
+            if(type.getIntValue() == MSG_REQUEST){
+                // we have no metadata to serve yet
+                conn.sendExtended(peerUtMetadata, Bencode.BValue.dictValue()
+                        .put(MSG_TYPE, Bencode.BValue.intValue(MSG_REJECT))
+                        .put(PIECE, index)
+                        .encode());
+                continue;
+            }
+            if(index.getIntValue() != piece){
+                continue;
+            }
+            if(type.getIntValue() == MSG_REJECT){
+                throw new IOException("Metadata piece rejected: " + piece);
+            }
+            if(type.getIntValue() != MSG_DATA){
+                continue;
+            }
+            return msg;
+        }
+    }
+
+    /**
+     * @return the metadata size
+     */
+    private synchronized int init(long size) throws IOException {
+        if(metadata == null){
+            if(size <= 0 || size > MAX_SIZE){
+                throw new IOException("Invalid metadata size: " + size);
+            }
+            metadata = new byte[(int) size];
+            received = new boolean[(int) ((size + PIECE_SIZE - 1) / PIECE_SIZE)];
+            sources = new PeerConn[received.length];
+            for(int i = 0; i < received.length; i++){
+                pending.add(i);
+            }
+        }else if(size != metadata.length){
+            throw new IOException("Metadata size mismatch: " + size);
+        }
+        return metadata.length;
+    }
+
+    /**
+     * @return false when the piece is still missing, it came from a peer that doesn't own the round
+     */
+    private synchronized boolean addPiece(PeerConn conn, int piece, ByteBuffer data) throws IOException {
+        if(piece < 0 || piece >= received.length){
+            throw new IOException("Invalid metadata piece: " + piece);
+        }
+        int offset = piece * PIECE_SIZE;
+        int length = Math.min(PIECE_SIZE, metadata.length - offset);
+        if(data.remaining() != length){
+            throw new IOException("Invalid metadata piece length: " + data.remaining());
+        }
+        if(singleSource && owner != conn){
+            return false;
+        }
+        if(received[piece]){
+            return true;
+        }
+        data.get(metadata, offset, length);
+        received[piece] = true;
+        sources[piece] = conn;
+        if(++receivedNum == received.length){
+            if(Arrays.equals(hash(metadata), infoHashV2 != null ? infoHashV2 : infoHash)){
+                result.complete(metadata);
+                return true;
+            }
+            // which of the peers sent bad data can't be told apart, unless a single one sent it all
+            boolean oneSource = true;
+            for(PeerConn source : sources){
+                oneSource &= source == conn;
+            }
+            reset();
+            if(!oneSource){
+                logger.info("metadata from several peers doesn't match info hash, fetching from one at a time");
+                singleSource = true;
+                owner = null;
+                return true;
+            }
+            if(owner == conn){
+                owner = null;
+            }
+            throw new IOException("Metadata doesn't match info hash");
+        }
+        return true;
+    }
+
+    private byte[] hash(byte[] bytes){
+        if(infoHashV2 != null){
+            MessageDigest sha256 = BMerkle.sha256();
+            return sha256.digest(bytes);
+        }
+        return Crypto.sha1(bytes);
+    }
+}
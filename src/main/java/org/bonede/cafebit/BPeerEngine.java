@@ -0,0 +1,456 @@
+package org.bonede.cafebit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking peer wire engine. Connections are spread over a few event loop threads, each running
+ * a selector over its connections. Every connection runs a read state machine, handshake then length
+ * prefixed messages, and a write queue drained as the socket accepts bytes. Handlers are called on
+ * the connection's event loop thread and must not block. One engine serves all torrents of a session.
+ * A peer that doesn't accept the connection and answer the handshake in time is closed with a timeout.
+ */
+public class BPeerEngine implements Closeable {
+    public static final int HANDSHAKE_LENGTH = 68;
+    // largest message accepted, a bitfield of 8M pieces or a 16 KiB block with room to spare
+    public static final int MAX_MESSAGE_LENGTH = 1024 * 1024;
+    // a peer must accept the connection and answer the handshake in this time
+    public static final long CONNECT_TIMEOUT_NANOS = 10_000_000_000L;
+    // buffers handed to one gathering write, well below the usual IOV_MAX of 1024
+    private static final int MAX_GATHER = 64;
+    private static final byte[] MAGIC = "BitTorrent protocol".getBytes();
+
+    private static final Logger logger = LoggerFactory.getLogger(BPeerEngine.class);
+
+    /**
+     * Callbacks of one connection, called on its event loop thread.
+     */
+    public interface Handler{
+        /**
+         * Handshake with the peer completed.
+         */
+        void onConnected(BPeer peer) throws IOException;
+
+        /**
+         * A message arrived, payload holds the bytes after the message id and is only valid during the call.
+         */
+        void onMessage(BPeer peer, int id, ByteBuffer payload) throws IOException;
+
+        /**
+         * The connection is closed, cause is null when closed locally.
+         */
+        void onClosed(BPeer peer, Exception cause);
+    }
+
+    private enum ReadState{
+        Handshake,
+        Message
+    }
+
+    public static class BPeer{
+        private final Loop loop;
+        private final SocketChannel channel;
+        private final InetSocketAddress address;
+        private final byte[] infoHash;
+        private final Handler handler;
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        private SelectionKey key;
+        // leased from the arena while bytes are waiting to be decoded, null otherwise
+        private ByteBuffer input;
+        private ReadState readState = ReadState.Handshake;
+        private byte[] reserved;
+        private byte[] peerId;
+        // System.nanoTime the connect and the handshake must be done by
+        private long deadline;
+        private volatile boolean closed;
+
+        private BPeer(Loop loop, SocketChannel channel, InetSocketAddress address, byte[] infoHash, Handler handler){
+            this.loop = loop;
+            this.channel = channel;
+            this.address = address;
+            this.infoHash = infoHash;
+            this.handler = handler;
+        }
+
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        public byte[] getInfoHash() {
+            return infoHash;
+        }
+
+        /**
+         * Reserved bytes of the peer's handshake, null before the handshake.
+         */
+        public byte[] getReserved() {
+            return reserved;
+        }
+
+        public byte[] getPeerId() {
+            return peerId;
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * Queues a message, safe to call from any thread.
+         */
+        public void send(int id, byte[] payload) {
+            ByteBuffer message = ByteBuffer.allocate(5 + payload.length);
+            message.putInt(1 + payload.length).put((byte) id).put(payload).flip();
+            write(message);
+        }
+
+        /**
+         * Queues raw bytes, the buffer must not be touched until written.
+         */
+        public void write(ByteBuffer bytes) {
+            if(closed){
+                return;
+            }
+            outbound.add(bytes);
+            loop.execute(this::enableWrite);
+        }
+
+        public void close() {
+            loop.execute(() -> loop.close(this, null));
+        }
+
+        /**
+         * Runs task on the connection's event loop thread, right away when called from it.
+         */
+        public void execute(Runnable task) {
+            loop.execute(task);
+        }
+
+        private void enableWrite(){
+            if(!closed && key != null && key.isValid() && (key.interestOps() & SelectionKey.OP_WRITE) == 0){
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private final String peerId;
+    private final BBufferArena arena = BBufferArena.shared();
+    private final Loop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+    private final long connectNanos;
+
+    public BPeerEngine(String peerId, int threads) throws IOException {
+        this(peerId, threads, CONNECT_TIMEOUT_NANOS);
+    }
+
+    BPeerEngine(String peerId, int threads, long connectNanos) throws IOException {
+        this.peerId = peerId;
+        this.connectNanos = connectNanos;
+        this.loops = new Loop[Math.max(1, threads)];
+        for(int i = 0; i < loops.length; i++){
+            loops[i] = new Loop(i);
+            loops[i].thread.start();
+        }
+    }
+
+    /**
+     * Starts connecting, the handshake is sent once connected and handler.onConnected follows its reply.
+     */
+    public BPeer connect(InetSocketAddress address, byte[] infoHash, Handler handler) throws IOException {
+        Loop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        BPeer peer = new BPeer(loop, channel, address, infoHash, handler);
+        peer.deadline = System.nanoTime() + connectNanos;
+        // queued first so it goes out ahead of anything sent while connecting
+        peer.outbound.add(handshake(infoHash));
+        boolean connected;
+        try {
+            connected = channel.connect(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        loop.execute(() -> loop.register(peer, connected));
+        return peer;
+    }
+
+    private ByteBuffer handshake(byte[] infoHash){
+        ByteBuffer handshake = ByteBuffer.allocate(HANDSHAKE_LENGTH);
+        handshake.put((byte) MAGIC.length).put(MAGIC).put(new byte[8]).put(infoHash).put(peerId.getBytes());
+        return handshake.flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for(Loop loop : loops){
+            loop.shutdown();
+        }
+        for(Loop loop : loops){
+            try {
+                loop.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    private class Loop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        private volatile boolean running = true;
+
+        Loop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "cafebit-loop-" + index);
+            thread.setDaemon(true);
+        }
+
+        /**
+         * Runs the task on the loop thread, right away when called from it.
+         */
+        void execute(Runnable task){
+            if(Thread.currentThread() == thread){
+                task.run();
+            }else{
+                tasks.add(task);
+                selector.wakeup();
+            }
+        }
+
+        void shutdown(){
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                // deadlines are checked at least this often
+                long checkMillis = Math.max(1, Math.min(1000, connectNanos / 4_000_000));
+                while(running){
+                    selector.select(checkMillis);
+                    for(Runnable task; (task = tasks.poll()) != null; ){
+                        task.run();
+                    }
+                    expire();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while(keys.hasNext()){
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        BPeer peer = (BPeer) key.attachment();
+                        try {
+                            if(key.isValid() && key.isConnectable()){
+                                finishConnect(peer);
+                            }
+                            if(key.isValid() && key.isReadable()){
+                                read(peer);
+                            }
+                            if(key.isValid() && key.isWritable()){
+                                write(peer);
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            close(peer, e);
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                logger.warn("event loop failed", e);
+            } finally {
+                for(SelectionKey key : selector.keys()){
+                    close((BPeer) key.attachment(), null);
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    logger.warn("close selector", e);
+                }
+            }
+        }
+
+        /**
+         * Fails connections still connecting or waiting for the handshake past their deadline.
+         */
+        private void expire(){
+            long nanos = System.nanoTime();
+            // copied, a handler may connect again from onClosed and register on this loop
+            for(SelectionKey key : new ArrayList<>(selector.keys())){
+                BPeer peer = (BPeer) key.attachment();
+                if(peer.readState == ReadState.Handshake && nanos - peer.deadline > 0){
+                    close(peer, new SocketTimeoutException("Connect timed out"));
+                }
+            }
+        }
+
+        void register(BPeer peer, boolean connected){
+            try {
+                peer.key = peer.channel.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, peer);
+                if(connected){
+                    connected(peer);
+                }
+            } catch (IOException e) {
+                close(peer, e);
+            }
+        }
+
+        private void finishConnect(BPeer peer) throws IOException {
+            if(peer.channel.finishConnect()){
+                connected(peer);
+            }
+        }
+
+        private void connected(BPeer peer){
+            peer.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        private void read(BPeer peer) throws IOException {
+            if(peer.input == null){
+                peer.input = arena.lease(BBufferArena.CONTROL);
+            }
+            int n = peer.channel.read(peer.input);
+            if(n < 0){
+                throw new IOException("Connection closed by peer");
+            }
+            ByteBuffer input = peer.input;
+            input.flip();
+            while(!peer.closed){
+                if(peer.readState == ReadState.Handshake){
+                    if(input.remaining() < HANDSHAKE_LENGTH){
+                        break;
+                    }
+                    readHandshake(peer, input);
+                    peer.readState = ReadState.Message;
+                    peer.handler.onConnected(peer);
+                    continue;
+                }
+                if(input.remaining() < 4){
+                    break;
+                }
+                int length = input.getInt(input.position());
+                if(length < 0 || length > MAX_MESSAGE_LENGTH){
+                    throw new IOException("Invalid message length: " + length);
+                }
+                if(input.remaining() < 4 + length){
+                    if(input.capacity() < 4 + length){
+                        // a message larger than the buffer, move to one that fits the whole message
+                        ByteBuffer larger = arena.lease(4 + length);
+                        larger.put(input);
+                        arena.release(input);
+                        peer.input = larger;
+                        return;
+                    }
+                    break;
+                }
+                input.position(input.position() + 4);
+                if(length == 0){
+                    continue;
+                }
+                int end = input.position() + length;
+                int id = input.get() & 0xff;
+                ByteBuffer payload = input.slice().limit(length - 1);
+                input.position(end);
+                peer.handler.onMessage(peer, id, payload);
+            }
+            if(peer.input == null){
+                return;
+            }
+            if(input.hasRemaining()){
+                input.compact();
+            }else{
+                // everything decoded, an idle connection holds no buffer
+                arena.release(input);
+                peer.input = null;
+            }
+        }
+
+        private void readHandshake(BPeer peer, ByteBuffer input) throws IOException {
+            byte[] magic = new byte[MAGIC.length];
+            if(input.get() != MAGIC.length){
+                throw new IOException("Invalid handshake");
+            }
+            input.get(magic);
+            if(!Arrays.equals(magic, MAGIC)){
+                throw new IOException("Invalid handshake");
+            }
+            peer.reserved = new byte[8];
+            input.get(peer.reserved);
+            byte[] infoHash = new byte[BTorrent.SHA1_LENGTH];
+            input.get(infoHash);
+            if(!Arrays.equals(infoHash, peer.infoHash)){
+                throw new IOException("Info hash mismatch");
+            }
+            peer.peerId = new byte[20];
+            input.get(peer.peerId);
+        }
+
+        private void write(BPeer peer) throws IOException {
+            while(!peer.outbound.isEmpty()){
+                // queued messages go out together in one gathering write
+                int n = 0;
+                long queued = 0;
+                for(ByteBuffer buffer : peer.outbound){
+                    if(n == gather.length){
+                        break;
+                    }
+                    gather[n++] = buffer;
+                    queued += buffer.remaining();
+                }
+                long written;
+                try {
+                    written = peer.channel.write(gather, 0, n);
+                } finally {
+                    Arrays.fill(gather, 0, n, null);
+                }
+                for(ByteBuffer buffer; (buffer = peer.outbound.peek()) != null && !buffer.hasRemaining(); ){
+                    peer.outbound.poll();
+                }
+                if(written < queued){
+                    // the socket buffer is full
+                    return;
+                }
+            }
+            peer.key.interestOps(peer.key.interestOps() & ~SelectionKey.OP_WRITE);
+            // a send racing with the check above re-enables the interest through its task
+        }
+
+        void close(BPeer peer, Exception cause){
+            if(peer.closed){
+                return;
+            }
+            peer.closed = true;
+            if(peer.key != null){
+                peer.key.cancel();
+            }
+            try {
+                peer.channel.close();
+            } catch (IOException e) {
+                logger.warn("close {}", peer.address, e);
+            }
+            peer.outbound.clear();
+            if(peer.input != null){
+                arena.release(peer.input);
+                peer.input = null;
+            }
+            peer.handler.onClosed(peer, cause);
+        }
+    }
+}
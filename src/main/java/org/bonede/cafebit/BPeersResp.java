@@ -9,6 +9,13 @@ import java.nio.ByteOrder;
 import java.util.Arrays;
 
 public class BPeersResp {
+    private static final Bencode.BKey FAILURE_REASON = Bencode.BKey.of("failure reason");
+    private static final Bencode.BKey INTERVAL = Bencode.BKey.of("interval");
+    private static final Bencode.BKey COMPLETE = Bencode.BKey.of("complete");
+    private static final Bencode.BKey INCOMPLETE = Bencode.BKey.of("incomplete");
+    private static final Bencode.BKey MIN_INTERVAL = Bencode.BKey.of("min interval");
+    private static final Bencode.BKey PEERS = Bencode.BKey.of("peers");
+
     private int interval;
     private int complete;
     private int incomplete;
@@ -38,16 +45,17 @@ public class BPeersResp {
     public BPeersResp(byte[] bytes) {
 
 
-        Bencode.BValue bValue = Bencode.parse(bytes);
-        Bencode.BValue failure = bValue.get("failure reason");
-        if(failure != null){
-            throw new Bencode.BError(new String(failure.getBytesValue()));
+        Bencode.BTape tape = Bencode.parseTape(bytes);
+        int root = tape.root();
+        int failure = tape.get(root, FAILURE_REASON);
+        if(failure != Bencode.BTape.NONE){
+            throw new Bencode.BError(tape.getString(failure));
         }
-        this.interval = bValue.get("interval").getIntValue();
-        this.complete = bValue.get("complete").getIntValue();
-        this.incomplete = bValue.get("incomplete").getIntValue();
-        this.minInterval = bValue.get("min interval").getIntValue();
-        byte[] peersBytes = bValue.get("peers").getBytesValue();
+        this.interval = (int) tape.getIntValue(tape.get(root, INTERVAL));
+        this.complete = (int) tape.getIntValue(tape.get(root, COMPLETE));
+        this.incomplete = (int) tape.getIntValue(tape.get(root, INCOMPLETE));
+        this.minInterval = (int) tape.getIntValue(tape.get(root, MIN_INTERVAL));
+        byte[] peersBytes = tape.getBytesValue(tape.get(root, PEERS));
         int peesNum = peersBytes.length / 6;
         this.peers = new InetSocketAddress[peesNum];
         ByteBuffer buffer = ByteBuffer.wrap(peersBytes);
@@ -0,0 +1,80 @@
+package org.bonede.cafebit;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Incremental SHA-1 of one piece, updated as blocks land in the piece buffer. Blocks may arrive in
+ * any order, the digest advances over the contiguous prefix and picks up later blocks from the buffer
+ * once a gap is filled, so the piece is never hashed in one go after it is assembled.
+ * Not thread safe, hand it over together with the piece buffer.
+ */
+public class BPieceHasher {
+    // digests are reset by digest() and shared by all pieces in flight
+    private static final Queue<MessageDigest> POOL = new ConcurrentLinkedQueue<>();
+
+    private final ByteBuffer view;
+    private final int length;
+    private final int blockSize;
+    private final boolean[] received;
+    private MessageDigest sha1;
+    private int hashed;
+
+    /**
+     * @param piece buffer the piece is assembled in, the piece starts at index 0
+     */
+    public BPieceHasher(ByteBuffer piece, int length, int blockSize) {
+        this.view = piece.duplicate();
+        this.length = length;
+        this.blockSize = blockSize;
+        this.received = new boolean[(length + blockSize - 1) / blockSize];
+        MessageDigest sha1 = POOL.poll();
+        this.sha1 = sha1 != null ? sha1 : Crypto.newSha1();
+    }
+
+    /**
+     * Marks the block starting at begin as written to the piece buffer.
+     */
+    public void blockReceived(int begin) {
+        if(begin % blockSize != 0 || begin < 0 || begin >= length){
+            throw new IllegalArgumentException("Invalid block: " + begin);
+        }
+        received[begin / blockSize] = true;
+        while(hashed < length && received[hashed / blockSize]){
+            int n = Math.min(blockSize, length - hashed);
+            view.clear();
+            view.position(hashed).limit(hashed + n);
+            sha1.update(view);
+            hashed += n;
+        }
+    }
+
+    public boolean isComplete() {
+        return hashed == length;
+    }
+
+    /**
+     * SHA-1 of the complete piece, the digest goes back to the pool.
+     */
+    public byte[] digest() {
+        if(!isComplete()){
+            throw new IllegalStateException("Piece incomplete: " + hashed + "/" + length);
+        }
+        byte[] digest = sha1.digest();
+        release();
+        return digest;
+    }
+
+    /**
+     * Returns the digest to the pool without finishing, for an abandoned piece.
+     */
+    public void release() {
+        if(sha1 != null){
+            sha1.reset();
+            POOL.offer(sha1);
+            sha1 = null;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.bonede.cafebit;
+
+import java.util.BitSet;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out the missing pieces of a task to its peer sessions, in order, each piece to one session
+ * at a time. A piece stays in flight until it is verified, a failed piece goes back for any session.
+ */
+public class BPiecePicker {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final int pieceNum;
+    // guarded by lock
+    private final BitSet pending;
+    private final BitSet inFlight = new BitSet();
+
+    public BPiecePicker(int pieceNum, BitSet have) {
+        this.pieceNum = pieceNum;
+        this.pending = new BitSet(pieceNum);
+        pending.set(0, pieceNum);
+        pending.andNot(have);
+    }
+
+    public static boolean has(byte[] bitfield, int piece){
+        return piece / 8 < bitfield.length && (bitfield[piece / 8] & (0x80 >>> (piece % 8))) != 0;
+    }
+
+    /**
+     * Next pending piece the peer has. Waits while the peer has pieces in flight with other sessions,
+     * they may fail and come back.
+     * @return -1 when the peer has nothing left to give
+     */
+    public int next(byte[] bitfield) throws InterruptedException {
+        lock.lock();
+        try {
+            while(true){
+                boolean waiting = false;
+                int piece = take(bitfield);
+                if(piece >= 0){
+                    return piece;
+                }
+                for(int i = inFlight.nextSetBit(0); i >= 0 && !waiting; i = inFlight.nextSetBit(i + 1)){
+                    waiting = has(bitfield, i);
+                }
+                if(!waiting){
+                    return -1;
+                }
+                changed.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Next pending piece the peer has, without waiting.
+     * @return -1 when none is pending right now
+     */
+    public int poll(byte[] bitfield) {
+        lock.lock();
+        try {
+            return take(bitfield);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether the peer has a piece pending, or in flight with a session, it may fail and come back.
+     */
+    public boolean wants(byte[] bitfield) {
+        lock.lock();
+        try {
+            for(int i = pending.nextSetBit(0); i >= 0; i = pending.nextSetBit(i + 1)){
+                if(has(bitfield, i)){
+                    return true;
+                }
+            }
+            for(int i = inFlight.nextSetBit(0); i >= 0; i = inFlight.nextSetBit(i + 1)){
+                if(has(bitfield, i)){
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int take(byte[] bitfield){
+        for(int i = pending.nextSetBit(0); i >= 0; i = pending.nextSetBit(i + 1)){
+            if(has(bitfield, i)){
+                pending.clear(i);
+                inFlight.set(i);
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The piece is verified and stored.
+     */
+    public void done(int piece) {
+        lock.lock();
+        try {
+            inFlight.clear(piece);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The piece failed to download or verify, another session may take it.
+     */
+    public void retry(int piece) {
+        lock.lock();
+        try {
+            inFlight.clear(piece);
+            pending.set(piece);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Pieces neither verified nor in flight.
+     */
+    public int getPending() {
+        lock.lock();
+        try {
+            return pending.cardinality();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isComplete() {
+        lock.lock();
+        try {
+            return pending.isEmpty() && inFlight.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getPieceNum() {
+        return pieceNum;
+    }
+}
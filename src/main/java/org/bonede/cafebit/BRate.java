@@ -0,0 +1,73 @@
+package org.bonede.cafebit;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Transfer rate over a sliding window of the last seconds, bytes are counted in one bucket per
+ * second so adding is a couple of array writes and the buckets that left the window are dropped as
+ * time moves on. Updated by the session of a connection and read by the choker.
+ */
+public class BRate {
+    // the rolling average BitTorrent ranks peers by
+    public static final int WINDOW_SECONDS = 20;
+    private static final long SECOND_NANOS = 1_000_000_000L;
+
+    private final long[] buckets = new long[WINDOW_SECONDS];
+    // second of the newest bucket, and of the first bytes
+    private long second;
+    private long start;
+    private boolean started;
+    private long total;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public void add(long bytes, long nanos) {
+        long now = Math.floorDiv(nanos, SECOND_NANOS);
+        lock.lock();
+        try {
+            if(!started){
+                second = now;
+                start = now;
+                started = true;
+            }
+            advance(now);
+            buckets[Math.floorMod(now, WINDOW_SECONDS)] += bytes;
+            total += bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Bytes per second over the window, or since the first bytes while the window isn't full yet.
+     */
+    public double get(long nanos) {
+        long now = Math.floorDiv(nanos, SECOND_NANOS);
+        lock.lock();
+        try {
+            if(!started){
+                return 0;
+            }
+            advance(now);
+            long seconds = Math.min(WINDOW_SECONDS, Math.max(1, now - start + 1));
+            return (double) total / seconds;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Empties the buckets of the seconds passed since the newest one.
+     */
+    private void advance(long now){
+        if(now <= second){
+            return;
+        }
+        long passed = Math.min(WINDOW_SECONDS, now - second);
+        for(long s = second + 1; s <= second + passed; s++){
+            int i = Math.floorMod(s, WINDOW_SECONDS);
+            total -= buckets[i];
+            buckets[i] = 0;
+        }
+        second = now;
+    }
+}
@@ -0,0 +1,197 @@
+package org.bonede.cafebit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Verifies the data already on disk against the piece hashes. Pieces are checked in parallel, every
+ * worker takes a contiguous run of pieces and reads it through memory mapped windows like
+ * {@link BTorrentBuilder}. Missing or short files only fail the pieces they cover.
+ */
+public class BRecheck {
+    private static final int MAP_SIZE = 64 * 1024 * 1024;
+    private static final int RUNS_PER_THREAD = 4;
+    // padding files are not stored, they hash as zeros
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(BMerkle.BLOCK_SIZE).asReadOnlyBuffer();
+
+    private final BTorrent torrent;
+    private final Path[] paths;
+    private final long[] sizes;
+
+    private BRecheck(BTorrent torrent, Path dir) throws IOException {
+        this.torrent = torrent;
+        BStorage storage = new BStorage(torrent, dir);
+        BTorrent.BFile[] files = torrent.getFiles();
+        this.paths = new Path[files.length];
+        this.sizes = new long[files.length];
+        for(int i = 0; i < files.length; i++){
+            paths[i] = storage.getPath(files[i]);
+            try {
+                sizes[i] = files[i].isPadding() ? files[i].getLength() : Files.size(paths[i]);
+            } catch (NoSuchFileException e) {
+                sizes[i] = -1;
+            }
+        }
+    }
+
+    /**
+     * @return the pieces whose data on disk matches the torrent
+     */
+    public static BitSet recheck(BTorrent torrent, Path dir, int threads) throws IOException, InterruptedException {
+        return new BRecheck(torrent, dir).run(threads, null);
+    }
+
+    /**
+     * Checks only the given pieces.
+     * @return the given pieces whose data on disk matches the torrent
+     */
+    public static BitSet recheck(BTorrent torrent, Path dir, int threads, BitSet pieces) throws IOException, InterruptedException {
+        if(pieces.isEmpty()){
+            return new BitSet();
+        }
+        return new BRecheck(torrent, dir).run(threads, pieces);
+    }
+
+    private BitSet run(int threads, BitSet pieces) throws IOException, InterruptedException {
+        BitSet have = new BitSet(torrent.getPieceNum());
+        boolean any = false;
+        for(int i = 0; i < sizes.length; i++){
+            any |= sizes[i] > 0 && !torrent.getFiles()[i].isPadding();
+        }
+        if(!any){
+            return have;
+        }
+        int pieceNum = torrent.getPieceNum();
+        int runs = Math.max(1, Math.min(pieceNum, threads * RUNS_PER_THREAD));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<BitSet>> futures = new ArrayList<>(runs);
+            for(int r = 0; r < runs; r++){
+                int first = (int) ((long) pieceNum * r / runs);
+                int last = (int) ((long) pieceNum * (r + 1) / runs);
+                futures.add(executor.submit(() -> checkRun(first, last, pieces)));
+            }
+            // runs share words of the bit set, every run fills its own and they are merged here
+            for(Future<BitSet> future : futures){
+                have.or(future.get());
+            }
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException){
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return have;
+    }
+
+    private BitSet checkRun(int first, int last, BitSet pieces) throws IOException {
+        BitSet have = new BitSet();
+        MessageDigest sha1 = Crypto.newSha1();
+        try(Windows windows = new Windows()){
+            for(int piece = first; piece < last; piece++){
+                if(pieces != null && !pieces.get(piece)){
+                    continue;
+                }
+                if(torrent.isV2() ? checkV2(piece, windows) : checkV1(piece, windows, sha1)){
+                    have.set(piece);
+                }
+            }
+        }
+        return have;
+    }
+
+    private boolean checkV1(int piece, Windows windows, MessageDigest sha1) throws IOException {
+        sha1.reset();
+        long offset = (long) piece * torrent.getPieceLength();
+        long end = offset + torrent.getPieceLength(piece);
+        BTorrent.BFile[] files = torrent.getFiles();
+        for(int i = torrent.getFileIndex(offset); offset < end; i++){
+            BTorrent.BFile file = files[i];
+            long fileOffset = offset - file.getOffset();
+            int length = (int) Math.min(end - offset, file.getLength() - fileOffset);
+            if(sizes[i] < fileOffset + length){
+                return false;
+            }
+            if(file.isPadding()){
+                for(int n = length; n > 0; n -= ZEROS.capacity()){
+                    sha1.update(ZEROS.duplicate().limit(Math.min(n, ZEROS.capacity())));
+                }
+            }else if(length > 0){
+                sha1.update(windows.slice(i, fileOffset, length));
+            }
+            offset += length;
+        }
+        return torrent.checkPiece(piece, sha1.digest());
+    }
+
+    /**
+     * v2 pieces never cross files, every block is hashed into the piece's merkle verifier. Padding
+     * after the file in a hybrid torrent isn't covered by the merkle hashes.
+     */
+    private boolean checkV2(int piece, Windows windows) throws IOException {
+        long offset = (long) piece * torrent.getPieceLength();
+        int index = torrent.getFileIndex(offset);
+        long fileOffset = offset - torrent.getFiles()[index].getOffset();
+        int length = torrent.getPieceDataLength(piece);
+        if(sizes[index] < fileOffset + length){
+            return false;
+        }
+        BMerkle.BPieceVerifier verifier = torrent.newPieceVerifier(piece);
+        for(int b = 0; b < verifier.getBlockNum(); b++){
+            int begin = b * BMerkle.BLOCK_SIZE;
+            verifier.addBlock(b, windows.slice(index, fileOffset + begin, Math.min(BMerkle.BLOCK_SIZE, length - begin)));
+        }
+        return verifier.verify();
+    }
+
+    /**
+     * The mapped window a run reads from, moved forward as the run advances through the files.
+     */
+    private class Windows implements AutoCloseable {
+        private int file = -1;
+        private FileChannel channel;
+        private MappedByteBuffer window;
+        private long windowStart;
+
+        ByteBuffer slice(int index, long position, int length) throws IOException {
+            if(index != file){
+                close();
+                channel = FileChannel.open(paths[index], StandardOpenOption.READ);
+                file = index;
+            }
+            if(window == null || position < windowStart || position + length > windowStart + window.capacity()){
+                long size = Math.min(Math.max(MAP_SIZE, length), sizes[index] - position);
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                windowStart = position;
+            }
+            int start = (int) (position - windowStart);
+            return window.duplicate().position(start).limit(start + length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            window = null;
+            file = -1;
+            if(channel != null){
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+}
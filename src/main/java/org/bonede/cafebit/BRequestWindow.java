@@ -0,0 +1,139 @@
+package org.bonede.cafebit;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Block requests outstanding with one peer, keyed by (index, begin) so replies may come in any
+ * order. The window is sized from the peer's delivery rate and its minimum round trip, twice the
+ * bandwidth-delay product: while the window limits the rate every rate sample doubles it, once the
+ * link limits the rate it settles, and it shrinks when the rate drops. A full window keeps a queue
+ * at the peer that inflates every round trip, so once per period the window drops to the minimum
+ * for one round trip to measure it again. Not thread safe, owned by the session of the connection.
+ */
+public class BRequestWindow {
+    public static final int MIN_SIZE = 2;
+    public static final int MAX_SIZE = 256;
+    static final int INITIAL_SIZE = 4;
+    // delivery rate is sampled over intervals of this length and smoothed
+    static final long RATE_INTERVAL_NANOS = 250_000_000L;
+    // the minimum round trip is measured again after this period, so a changed route is picked up
+    static final long MIN_RTT_PERIOD_NANOS = 10_000_000_000L;
+    private static final double GAIN = 2;
+
+    private final int blockSize;
+    // request send time by block key
+    private final Map<Long, Long> outstanding = new HashMap<>();
+    private int size = INITIAL_SIZE;
+    private double rate;
+    private long rateStart;
+    private long rateBytes;
+    private long minRtt = Long.MAX_VALUE;
+    private long periodMinRtt = Long.MAX_VALUE;
+    private long periodStart = -1;
+    private boolean probing;
+    // first request sent with the window drained, -1 until then
+    private long probeSent = -1;
+
+    public BRequestWindow(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    private static long key(int index, int begin){
+        return (long) index << 32 | (begin & 0xffffffffL);
+    }
+
+    public boolean hasRoom() {
+        return outstanding.size() < (probing ? MIN_SIZE : size);
+    }
+
+    public boolean isEmpty() {
+        return outstanding.isEmpty();
+    }
+
+    public int getOutstanding() {
+        return outstanding.size();
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Smoothed delivery rate in bytes per second, 0 before the first sample.
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * Minimum round trip in nanoseconds, Long.MAX_VALUE before the first reply.
+     */
+    public long getMinRtt() {
+        return minRtt;
+    }
+
+    public void requested(int index, int begin, long nanos) {
+        if(periodStart < 0){
+            periodStart = nanos;
+        }
+        if(probing && probeSent < 0){
+            probeSent = nanos;
+        }
+        if(outstanding.isEmpty()){
+            // the pipe ran dry, time spent idle says nothing about the peer's rate
+            rateStart = nanos;
+            rateBytes = 0;
+        }
+        outstanding.put(key(index, begin), nanos);
+    }
+
+    /**
+     * A block arrived.
+     * @return false for a block that isn't outstanding, never requested, already received or cancelled
+     */
+    public boolean received(int index, int begin, int length, long nanos) {
+        Long sent = outstanding.remove(key(index, begin));
+        if(sent == null){
+            return false;
+        }
+        long rtt = nanos - sent;
+        periodMinRtt = Math.min(periodMinRtt, rtt);
+        minRtt = Math.min(minRtt, rtt);
+        if(probing){
+            if(probeSent >= 0 && sent >= probeSent){
+                // sent with no queue ahead of it at the peer
+                minRtt = periodMinRtt;
+                periodMinRtt = Long.MAX_VALUE;
+                periodStart = nanos;
+                probing = false;
+                rateStart = nanos;
+                rateBytes = 0;
+            }
+            return true;
+        }
+        if(nanos - periodStart >= MIN_RTT_PERIOD_NANOS){
+            probing = true;
+            probeSent = -1;
+            return true;
+        }
+        rateBytes += length;
+        long elapsed = nanos - rateStart;
+        if(elapsed >= RATE_INTERVAL_NANOS){
+            double sample = rateBytes * 1e9 / elapsed;
+            rate = rate == 0 ? sample : rate * 0.75 + sample * 0.25;
+            rateStart = nanos;
+            rateBytes = 0;
+            double bdp = rate * minRtt / 1e9 / blockSize;
+            size = (int) Math.max(MIN_SIZE, Math.min(MAX_SIZE, Math.ceil(GAIN * bdp)));
+        }
+        return true;
+    }
+
+    /**
+     * Forgets every outstanding request, the peer choked us and dropped them.
+     */
+    public void clear() {
+        outstanding.clear();
+    }
+}
@@ -0,0 +1,223 @@
+package org.bonede.cafebit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fast resume file of a task, memory mapped and updated in place as pieces verify. It holds the
+ * verified pieces as a bitfield and the size and mtime of every file as of the last piece written
+ * to it. On restart, verified pieces are trusted without hashing as long as their files are unchanged.
+ * <pre>
+ * magic, version, info hash, piece count, file count
+ * file count * (size, mtime nanos), -1 size for a missing file
+ * bitfield, high bit of the first byte is piece 0
+ * </pre>
+ */
+public class BResume implements Closeable {
+    private static final int MAGIC = 0x43425253;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + BTorrent.SHA1_LENGTH + 4 + 4;
+    private static final int FILE_ENTRY_SIZE = 8 + 8;
+
+    private final BTorrent torrent;
+    private final Path[] paths;
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final int bitsOffset;
+    private final boolean loaded;
+    // guards the map
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private BResume(Path file, BTorrent torrent, Path dir) throws IOException {
+        this.torrent = torrent;
+        BStorage storage = new BStorage(torrent, dir);
+        BTorrent.BFile[] files = torrent.getFiles();
+        this.paths = new Path[files.length];
+        for(int i = 0; i < files.length; i++){
+            paths[i] = storage.getPath(files[i]);
+        }
+        this.bitsOffset = HEADER_SIZE + files.length * FILE_ENTRY_SIZE;
+        int size = bitsOffset + (torrent.getPieceNum() + 7) / 8;
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean matches = channel.size() == size;
+        if(!matches){
+            channel.truncate(0);
+        }
+        this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        this.loaded = matches && headerMatches();
+        if(!loaded){
+            map.clear();
+            map.putInt(MAGIC).putInt(VERSION).put(torrent.getInfoHash()).putInt(torrent.getPieceNum()).putInt(files.length);
+            while(map.hasRemaining()){
+                map.put((byte) 0);
+            }
+            for(int i = 0; i < files.length; i++){
+                putStat(i, -1, 0);
+            }
+        }
+    }
+
+    /**
+     * Opens the resume file of a task downloading to dir, a missing file or one written for another
+     * torrent is started over.
+     */
+    public static BResume open(Path file, BTorrent torrent, Path dir) throws IOException {
+        return new BResume(file, torrent, dir);
+    }
+
+    private boolean headerMatches(){
+        byte[] infoHash = new byte[BTorrent.SHA1_LENGTH];
+        map.clear();
+        if(map.getInt() != MAGIC || map.getInt() != VERSION){
+            return false;
+        }
+        map.get(infoHash);
+        return Arrays.equals(infoHash, torrent.getInfoHash())
+                && map.getInt() == torrent.getPieceNum()
+                && map.getInt() == torrent.getFiles().length;
+    }
+
+    /**
+     * Whether the file held state of this torrent when it was opened.
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public BitSet getHave() {
+        lock.lock();
+        try {
+            BitSet have = new BitSet(torrent.getPieceNum());
+            for(int i = 0; i < torrent.getPieceNum(); i++){
+                if((map.get(bitsOffset + i / 8) & (0x80 >>> (i % 8))) != 0){
+                    have.set(i);
+                }
+            }
+            return have;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Pieces touching a file whose size or mtime differs from the one recorded, their data can't be trusted.
+     */
+    public BitSet getChanged() throws IOException {
+        lock.lock();
+        try {
+            BitSet changed = new BitSet(torrent.getPieceNum());
+            BTorrent.BFile[] files = torrent.getFiles();
+            long[] stat = new long[2];
+            for(int i = 0; i < files.length; i++){
+                if(files[i].isPadding() || files[i].getLength() == 0){
+                    continue;
+                }
+                stat(i, stat);
+                int entry = HEADER_SIZE + i * FILE_ENTRY_SIZE;
+                if(stat[0] != map.getLong(entry) || stat[1] != map.getLong(entry + 8)){
+                    changed.set(firstPiece(files[i]), lastPiece(files[i]) + 1);
+                }
+            }
+            return changed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the whole state, after a recheck.
+     */
+    public void reset(BitSet have) throws IOException {
+        lock.lock();
+        try {
+            for(int i = 0; i < (torrent.getPieceNum() + 7) / 8; i++){
+                int bits = 0;
+                for(int b = 0; b < 8; b++){
+                    if(have.get(i * 8 + b)){
+                        bits |= 0x80 >>> b;
+                    }
+                }
+                map.put(bitsOffset + i, (byte) bits);
+            }
+            long[] stat = new long[2];
+            for(int i = 0; i < paths.length; i++){
+                stat(i, stat);
+                putStat(i, stat[0], stat[1]);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records a piece that was verified and written, and the new size and mtime of its files.
+     */
+    public void setHave(int piece) throws IOException {
+        lock.lock();
+        try {
+            int index = bitsOffset + piece / 8;
+            map.put(index, (byte) (map.get(index) | (0x80 >>> (piece % 8))));
+            long offset = (long) piece * torrent.getPieceLength();
+            long end = offset + torrent.getPieceLength(piece);
+            BTorrent.BFile[] files = torrent.getFiles();
+            long[] stat = new long[2];
+            for(int i = torrent.getFileIndex(offset); i < files.length && files[i].getOffset() < end; i++){
+                stat(i, stat);
+                putStat(i, stat[0], stat[1]);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int firstPiece(BTorrent.BFile file){
+        return (int) (file.getOffset() / torrent.getPieceLength());
+    }
+
+    private int lastPiece(BTorrent.BFile file){
+        return (int) ((file.getOffset() + file.getLength() - 1) / torrent.getPieceLength());
+    }
+
+    private void stat(int index, long[] stat) throws IOException {
+        if(torrent.getFiles()[index].isPadding()){
+            stat[0] = -1;
+            stat[1] = 0;
+            return;
+        }
+        try {
+            stat[0] = Files.size(paths[index]);
+            stat[1] = Files.getLastModifiedTime(paths[index]).to(TimeUnit.NANOSECONDS);
+        } catch (NoSuchFileException e) {
+            stat[0] = -1;
+            stat[1] = 0;
+        }
+    }
+
+    private void putStat(int index, long size, long mtime){
+        int entry = HEADER_SIZE + index * FILE_ENTRY_SIZE;
+        map.putLong(entry, size);
+        map.putLong(entry + 8, mtime);
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            map.force();
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
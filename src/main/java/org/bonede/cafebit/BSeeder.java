@@ -0,0 +1,481 @@
+package org.bonede.cafebit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Uploads to peers connecting to the listen port, up to a limit of connections. Every accepted
+ * connection gets a blocking session on its own thread: responder handshake, our bitfield, then
+ * REQUESTs for verified pieces are served straight from the files with transferTo. Torrents are
+ * served while registered, pieces verified later are announced to connected peers with HAVE. Who
+ * gets served is up to the {@link BChoker} of the torrent, run every round on the control thread.
+ * HAVEs, chokes and unchokes are queued for a writer thread of each connection, a peer slow to read
+ * holds up its own messages only. The control thread also closes connections that don't handshake in
+ * time or go silent, so they can't keep the connection slots.
+ */
+public class BSeeder implements Closeable {
+    // largest block we serve, BEP 3 clients ask for 16 KiB
+    public static final int MAX_REQUEST_LENGTH = 128 * 1024;
+    // connections served at a time, more are closed on accept
+    public static final int MAX_CONNECTIONS = 128;
+    // a connection must complete its handshake in this time
+    public static final long HANDSHAKE_TIMEOUT_NANOS = 20_000_000_000L;
+    // and then send a message at least this often, BEP 3 peers send keep-alives every two minutes
+    public static final long IDLE_TIMEOUT_NANOS = 150_000_000_000L;
+
+    private static final Logger logger = LoggerFactory.getLogger(BSeeder.class);
+
+    private final String peerId;
+    private final ServerSocketChannel server;
+    private final ThreadFactory sessionThreads;
+    private final Thread acceptor;
+    private final Semaphore connections;
+    // accepted connections not served yet, by System.nanoTime of the accept
+    private final Map<SocketChannel, Long> handshaking = new ConcurrentHashMap<>();
+    private final long handshakeNanos;
+    private final long idleNanos;
+    // chokers run here one round at a time, their chokes and unchokes are only queued here
+    private final ScheduledExecutorService control = Executors.newSingleThreadScheduledExecutor(BThreads.platform("cafebit-control-"));
+    private final Map<String, BSeed> seeds = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    /**
+     * A torrent being served.
+     */
+    public class BSeed implements Closeable {
+        private final BTask task;
+        private final BStorage storage;
+        // guarded by lock
+        private final BitSet have;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Set<SeedPeer> peers = ConcurrentHashMap.newKeySet();
+        // used on the control thread only
+        private final BChoker choker = new BChoker();
+        // rate our downloads get from each address, what peers give us is what they get back
+        private final Map<InetAddress, BRate> received = new ConcurrentHashMap<>();
+
+        private BSeed(BTask task, Path dir, BitSet have) {
+            this.task = task;
+            this.storage = new BStorage(task.getTorrent(), dir);
+            this.have = (BitSet) have.clone();
+        }
+
+        public BTask getTask() {
+            return task;
+        }
+
+        public boolean has(int piece) {
+            lock.lock();
+            try {
+                return have.get(piece);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * A piece was verified and written, it is served from now on and announced to connected peers.
+         */
+        public void setHave(int piece) {
+            lock.lock();
+            try {
+                have.set(piece);
+                // under the lock, a peer being added either sees the piece in have or gets the HAVE
+                for(SeedPeer peer : peers){
+                    peer.send(conn -> conn.queueHave(piece));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Bytes of the torrent downloaded from a peer at address, on a connection of our own.
+         */
+        public void received(InetAddress address, long bytes) {
+            // added inside the map's update, a prune of the same address in rechoke can't orphan the rate
+            received.compute(address, (a, rate) -> {
+                BRate r = rate != null ? rate : new BRate();
+                r.add(bytes, System.nanoTime());
+                return r;
+            });
+        }
+
+        boolean isComplete() {
+            lock.lock();
+            try {
+                return have.cardinality() == task.getTorrent().getPieceNum();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        double receivedRate(InetAddress address, long nanos) {
+            BRate rate = received.get(address);
+            return rate != null ? rate.get(nanos) : 0;
+        }
+
+        /**
+         * A choker round, on the control thread.
+         */
+        void rechoke(long nanos) {
+            Set<SeedPeer> unchoke = choker.unchoke(peers, nanos);
+            for(SeedPeer peer : peers){
+                peer.setChoked(!unchoke.contains(peer));
+            }
+            for(InetAddress address : received.keySet()){
+                received.computeIfPresent(address, (a, rate) -> rate.get(nanos) == 0 ? null : rate);
+            }
+        }
+
+        /**
+         * A peer became interested, on the control thread. A free slot is given right away instead
+         * of at the next round.
+         */
+        void interested(SeedPeer peer) {
+            int unchoked = 0;
+            for(SeedPeer p : peers){
+                if(!p.choked){
+                    unchoked++;
+                }
+            }
+            if(peer.interested && unchoked < choker.getMaxUnchoked()){
+                peer.setChoked(false);
+            }
+        }
+
+        byte[] bitfield() {
+            byte[] bitfield = new byte[(task.getTorrent().getPieceNum() + 7) / 8];
+            lock.lock();
+            try {
+                for(int i = have.nextSetBit(0); i >= 0; i = have.nextSetBit(i + 1)){
+                    bitfield[i / 8] |= (byte) (0x80 >>> (i % 8));
+                }
+            } finally {
+                lock.unlock();
+            }
+            return bitfield;
+        }
+
+        /**
+         * Stops serving the torrent and drops its peers.
+         */
+        @Override
+        public void close() throws IOException {
+            seeds.remove(Crypto.hex(task.getTorrent().getInfoHash()), this);
+            for(SeedPeer peer : peers){
+                closeQuietly(peer.conn);
+            }
+            storage.close();
+        }
+    }
+
+    /**
+     * A peer connected to us, choked until its choker says otherwise.
+     */
+    private static class SeedPeer implements BChoker.Peer {
+        private interface Message{
+            void queue(PeerConn conn) throws IOException;
+        }
+
+        private final BSeed seed;
+        private final PeerConn conn;
+        // control messages waiting for the writer
+        private final BlockingQueue<Message> outbox = new LinkedBlockingQueue<>();
+        private final InetAddress address;
+        private final long connected = System.nanoTime();
+        // what we sent it
+        private final BRate uploaded = new BRate();
+        private volatile boolean interested;
+        // written on the control thread only
+        private volatile boolean choked = true;
+
+        SeedPeer(BSeed seed, PeerConn conn, InetAddress address) {
+            this.seed = seed;
+            this.conn = conn;
+            this.address = address;
+        }
+
+        @Override
+        public boolean isInterested() {
+            return interested;
+        }
+
+        @Override
+        public double getRate(long nanos) {
+            // a seed gets nothing back, it favors the peers that take pieces fastest
+            return seed.isComplete() ? uploaded.get(nanos) : seed.receivedRate(address, nanos);
+        }
+
+        @Override
+        public long getConnected() {
+            return connected;
+        }
+
+        void setChoked(boolean choked) {
+            if(this.choked == choked){
+                return;
+            }
+            this.choked = choked;
+            int id = choked ? PeerConn.M_CHOKE : PeerConn.M_UNCHOKE;
+            send(conn -> conn.queueMessage(id, new byte[0]));
+        }
+
+        void send(Message message) {
+            outbox.add(message);
+        }
+
+        /**
+         * Writes queued messages until interrupted, the ones queued meanwhile go out in one flush.
+         */
+        void write() {
+            try {
+                while(true){
+                    outbox.take().queue(conn);
+                    for(Message message; (message = outbox.poll()) != null; ){
+                        message.queue(conn);
+                    }
+                    conn.flush();
+                }
+            } catch (InterruptedException e) {
+                // the session ended
+            } catch (IOException e) {
+                closeQuietly(conn);
+            }
+        }
+    }
+
+    public BSeeder(String peerId, int port, BThreads.Mode mode) throws IOException {
+        this(peerId, port, mode, MAX_CONNECTIONS);
+    }
+
+    public BSeeder(String peerId, int port, BThreads.Mode mode, int maxConnections) throws IOException {
+        this(peerId, port, mode, maxConnections, HANDSHAKE_TIMEOUT_NANOS, IDLE_TIMEOUT_NANOS);
+    }
+
+    BSeeder(String peerId, int port, BThreads.Mode mode, int maxConnections, long handshakeNanos, long idleNanos) throws IOException {
+        this.peerId = peerId;
+        this.connections = new Semaphore(maxConnections);
+        this.handshakeNanos = handshakeNanos;
+        this.idleNanos = idleNanos;
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        this.sessionThreads = BThreads.factory(mode, "cafebit-seed-");
+        this.acceptor = BThreads.platform("cafebit-accept-").newThread(this::accept);
+        acceptor.start();
+        control.scheduleAtFixedRate(this::rechoke, BChoker.ROUND_NANOS, BChoker.ROUND_NANOS, TimeUnit.NANOSECONDS);
+        // a timeout is noticed within a quarter of it
+        long expireNanos = Math.min(handshakeNanos, idleNanos) / 4;
+        control.scheduleAtFixedRate(this::expire, expireNanos, expireNanos, TimeUnit.NANOSECONDS);
+        logger.info("listening on {}", server.getLocalAddress());
+    }
+
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    /**
+     * Serves the pieces of task in have from dir, and the ones added with {@link BSeed#setHave(int)}.
+     */
+    public BSeed add(BTask task, Path dir, BitSet have) {
+        BSeed seed = new BSeed(task, dir, have);
+        BSeed replaced = seeds.put(Crypto.hex(task.getTorrent().getInfoHash()), seed);
+        if(replaced != null){
+            // the torrent was downloaded again, its old peers go with the old state
+            closeQuietly(replaced);
+        }
+        return seed;
+    }
+
+    private void rechoke() {
+        long nanos = System.nanoTime();
+        for(BSeed seed : seeds.values()){
+            try {
+                seed.rechoke(nanos);
+            } catch (RuntimeException e) {
+                // a failed round must not cancel the schedule
+                logger.warn("choker round failed", e);
+            }
+        }
+    }
+
+    /**
+     * Closes connections silent for too long, on the control thread. Closing the channel ends the
+     * blocked read of the session, which gives back its connection.
+     */
+    private void expire() {
+        long nanos = System.nanoTime();
+        handshaking.forEach((channel, accepted) -> {
+            if(nanos - accepted > handshakeNanos){
+                logger.info("handshake timed out");
+                closeQuietly(channel);
+            }
+        });
+        for(BSeed seed : seeds.values()){
+            for(SeedPeer peer : seed.peers){
+                if(nanos - peer.conn.getLastFrame() > idleNanos){
+                    logger.info("peer {} idle", peer.address);
+                    closeQuietly(peer.conn);
+                }
+            }
+        }
+    }
+
+    private void accept() {
+        while(!closed){
+            try {
+                SocketChannel channel = server.accept();
+                if(!connections.tryAcquire()){
+                    closeQuietly(channel);
+                    continue;
+                }
+                handshaking.put(channel, System.nanoTime());
+                try {
+                    sessionThreads.newThread(() -> {
+                        try {
+                            session(channel);
+                        } finally {
+                            handshaking.remove(channel);
+                            connections.release();
+                        }
+                    }).start();
+                } catch (RuntimeException e) {
+                    handshaking.remove(channel);
+                    connections.release();
+                    closeQuietly(channel);
+                    throw e;
+                }
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                logger.warn("accept failed", e);
+            }
+        }
+    }
+
+    private void session(SocketChannel channel) {
+        PeerConn conn;
+        try {
+            conn = PeerConn.accept(peerId, channel, infoHash -> seeds.containsKey(Crypto.hex(infoHash)));
+        } catch (IOException e) {
+            logger.info("handshake failed: {}", e.toString());
+            closeQuietly(channel);
+            return;
+        }
+        BSeed seed = seeds.get(Crypto.hex(conn.getInfoHash()));
+        if(seed == null){
+            closeQuietly(conn);
+            return;
+        }
+        SeedPeer peer = new SeedPeer(seed, conn, ((InetSocketAddress) channel.socket().getRemoteSocketAddress()).getAddress());
+        Thread writer = sessionThreads.newThread(peer::write);
+        try {
+            // the bitfield goes out first, a HAVE may follow once the peer is added
+            byte[] sent = seed.bitfield();
+            conn.sendBitfield(sent);
+            byte[] now;
+            seed.lock.lock();
+            try {
+                seed.peers.add(peer);
+                now = seed.bitfield();
+            } finally {
+                seed.lock.unlock();
+            }
+            // idle from here on
+            handshaking.remove(channel);
+            writer.start();
+            // pieces verified in between made neither
+            for(int i = 0; i < seed.task.getTorrent().getPieceNum(); i++){
+                if(!BPiecePicker.has(sent, i) && BPiecePicker.has(now, i)){
+                    int piece = i;
+                    peer.send(c -> c.queueHave(piece));
+                }
+            }
+            serve(seed, peer);
+        } catch (IOException | RuntimeException e) {
+            if(!closed){
+                logger.info("seed session ended: {}", e.toString());
+            }
+        } finally {
+            seed.peers.remove(peer);
+            writer.interrupt();
+            closeQuietly(conn);
+        }
+    }
+
+    private void serve(BSeed seed, SeedPeer peer) throws IOException {
+        BTorrent torrent = seed.task.getTorrent();
+        PeerConn conn = peer.conn;
+        while(!closed){
+            int id = conn.readFrame();
+            if(id == PeerConn.M_INTERESTED && !peer.interested){
+                peer.interested = true;
+                control.execute(() -> seed.interested(peer));
+            }else if(id == PeerConn.M_NOT_INTERESTED){
+                // keeps its slot until the next round
+                peer.interested = false;
+            }else if(id == PeerConn.M_REQUEST){
+                ByteBuffer request = conn.payload();
+                if(request.remaining() != 12){
+                    throw new IOException("Invalid request length: " + request.remaining());
+                }
+                int index = request.getInt();
+                int begin = request.getInt();
+                int length = request.getInt();
+                if(peer.choked){
+                    // requests sent before our choke arrived
+                    continue;
+                }
+                if(index < 0 || index >= torrent.getPieceNum() || !seed.has(index) || begin < 0 || length <= 0
+                        || length > MAX_REQUEST_LENGTH || (long) begin + length > torrent.getPieceLength(index)){
+                    throw new IOException("Invalid request: " + index + ", " + begin + ", " + length);
+                }
+                conn.sendPiece(index, begin, length, seed.storage);
+                seed.task.addUploaded(length);
+                peer.uploaded.add(length, System.nanoTime());
+            }else if(id == PeerConn.M_PIECE){
+                conn.skipPayload();
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable){
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // already failing
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        for(BSeed seed : seeds.values()){
+            seed.close();
+        }
+        control.shutdownNow();
+    }
+}
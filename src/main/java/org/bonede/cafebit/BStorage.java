@@ -0,0 +1,166 @@
+package org.bonede.cafebit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reads and writes piece data over the files of a torrent. A block that crosses file boundaries
+ * is split into one positional read or write per file segment. Padding files are not stored, they read as zeros.
+ */
+public class BStorage implements Closeable {
+    // padding files are not stored, they are sent as zeros
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(16 * 1024).asReadOnlyBuffer();
+
+    private final BTorrent torrent;
+    private final Path dir;
+    // opened on first use, guarded by lock
+    private final FileChannel[] channels;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public BStorage(BTorrent torrent, Path dir) {
+        this.torrent = torrent;
+        this.dir = dir;
+        this.channels = new FileChannel[torrent.getFiles().length];
+    }
+
+    public Path getPath(BTorrent.BFile file){
+        Path path = dir;
+        for(String element : file.getPath()){
+            path = path.resolve(element);
+        }
+        return path;
+    }
+
+    private FileChannel channel(int index) throws IOException {
+        lock.lock();
+        try {
+            FileChannel channel = channels[index];
+            if(channel == null){
+                Path path = getPath(torrent.getFiles()[index]);
+                Files.createDirectories(path.getParent());
+                channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                channels[index] = channel;
+            }
+            return channel;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of src at offset begin of the piece.
+     */
+    public void write(int piece, int begin, ByteBuffer src) throws IOException {
+        long offset = (long) piece * torrent.getPieceLength() + begin;
+        BTorrent.BFile[] files = torrent.getFiles();
+        int limit = src.limit();
+        for(int i = torrent.getFileIndex(offset); src.hasRemaining(); i++){
+            if(i == files.length){
+                throw new IOException("Out of torrent bounds: " + offset);
+            }
+            BTorrent.BFile file = files[i];
+            long fileOffset = offset - file.getOffset();
+            int length = (int) Math.min(src.remaining(), file.getLength() - fileOffset);
+            if(file.isPadding()){
+                src.position(src.position() + length);
+                offset += length;
+                continue;
+            }
+            src.limit(src.position() + length);
+            FileChannel channel = channel(i);
+            while(src.hasRemaining()){
+                channel.write(src, fileOffset + length - src.remaining());
+            }
+            src.limit(limit);
+            offset += length;
+        }
+    }
+
+    /**
+     * Fills the remaining space of dst from offset begin of the piece.
+     */
+    public void read(int piece, int begin, ByteBuffer dst) throws IOException {
+        long offset = (long) piece * torrent.getPieceLength() + begin;
+        BTorrent.BFile[] files = torrent.getFiles();
+        int limit = dst.limit();
+        for(int i = torrent.getFileIndex(offset); dst.hasRemaining(); i++){
+            if(i == files.length){
+                throw new IOException("Out of torrent bounds: " + offset);
+            }
+            BTorrent.BFile file = files[i];
+            long fileOffset = offset - file.getOffset();
+            int length = (int) Math.min(dst.remaining(), file.getLength() - fileOffset);
+            dst.limit(dst.position() + length);
+            if(file.isPadding()){
+                while(dst.hasRemaining()){
+                    dst.put((byte) 0);
+                }
+                dst.limit(limit);
+                offset += length;
+                continue;
+            }
+            FileChannel channel = channel(i);
+            while(dst.hasRemaining()){
+                if(channel.read(dst, fileOffset + length - dst.remaining()) < 0){
+                    dst.limit(limit);
+                    throw new IOException("Unexpected end of file: " + file);
+                }
+            }
+            dst.limit(limit);
+            offset += length;
+        }
+    }
+
+    /**
+     * Sends length bytes from offset begin of the piece to target with FileChannel.transferTo, from the
+     * page cache to a socket without passing through the heap.
+     */
+    public void transferTo(int piece, int begin, int length, WritableByteChannel target) throws IOException {
+        long offset = (long) piece * torrent.getPieceLength() + begin;
+        long end = offset + length;
+        BTorrent.BFile[] files = torrent.getFiles();
+        for(int i = torrent.getFileIndex(offset); offset < end; i++){
+            if(i == files.length){
+                throw new IOException("Out of torrent bounds: " + offset);
+            }
+            BTorrent.BFile file = files[i];
+            long fileOffset = offset - file.getOffset();
+            long n = Math.min(end - offset, file.getLength() - fileOffset);
+            if(file.isPadding()){
+                for(long left = n; left > 0; left -= ZEROS.capacity()){
+                    ByteBuffer zeros = ZEROS.duplicate().limit((int) Math.min(left, ZEROS.capacity()));
+                    while(zeros.hasRemaining()){
+                        target.write(zeros);
+                    }
+                }
+                offset += n;
+                continue;
+            }
+            FileChannel channel = channel(i);
+            for(long sent = 0; sent < n; ){
+                long count = channel.transferTo(fileOffset + sent, n - sent, target);
+                if(count == 0 && fileOffset + sent >= channel.size()){
+                    throw new IOException("Unexpected end of file: " + file);
+                }
+                sent += count;
+            }
+            offset += n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for(FileChannel channel : channels){
+            if(channel != null){
+                channel.close();
+            }
+        }
+    }
+}
@@ -1,11 +1,19 @@
 package org.bonede.cafebit;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.LongAdder;
+
 public class BTask {
     private BTorrent torrent;
-    private int uploaded;
-    private int downloaded;
-    private int left;
+    // updated from the transfer threads for every block, striped to keep contention off the hot path
+    private final LongAdder uploaded = new LongAdder();
+    private final LongAdder downloaded = new LongAdder();
+    private final LongAdder verified = new LongAdder();
     private int compact;
+    private volatile boolean cancelled;
+    // sessions of the running download, cancelled with the task
+    private volatile BTaskScope scope;
 
     public String getDstDir() {
         return dstDir;
@@ -13,16 +21,23 @@ public class BTask {
 
     private String dstDir;
 
-    public int getUploaded() {
-        return uploaded;
+    /**
+     * Fast resume file, kept hidden in the download directory.
+     */
+    public Path getResumePath() {
+        return Paths.get(dstDir, "." + Crypto.hex(torrent.getInfoHash()) + ".resume");
+    }
+
+    public long getUploaded() {
+        return uploaded.sum();
     }
 
-    public int getDownloaded() {
-        return downloaded;
+    public long getDownloaded() {
+        return downloaded.sum();
     }
 
-    public int getLeft() {
-        return left;
+    public long getLeft() {
+        return torrent.getLength() - verified.sum();
     }
 
     public int getCompact() {
@@ -33,11 +48,45 @@ public class BTask {
         return torrent;
     }
 
+    public void addUploaded(long bytes) {
+        uploaded.add(bytes);
+    }
+
+    public void addDownloaded(long bytes) {
+        downloaded.add(bytes);
+    }
+
+    /**
+     * Counts a piece that passed hash verification, it no longer contributes to {@link #getLeft()}.
+     */
+    public void addVerified(long bytes) {
+        verified.add(bytes);
+    }
+
+    /**
+     * Stops the running download, its peer sessions are interrupted and their connections closed.
+     */
+    public void cancel() {
+        cancelled = true;
+        BTaskScope scope = this.scope;
+        if(scope != null){
+            scope.cancel();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    void setScope(BTaskScope scope) {
+        this.scope = scope;
+        if(cancelled && scope != null){
+            scope.cancel();
+        }
+    }
+
     public BTask(BTorrent torrent, String dstDir) {
         this.torrent = torrent;
-        this.uploaded = 0;
-        this.downloaded = 0;
-        this.left = torrent.getLength();
         this.compact = 1;
         this.dstDir = dstDir;
     }
@@ -0,0 +1,188 @@
+package org.bonede.cafebit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Peer sessions of one task, each on its own thread or on an event loop, at most a fixed number at a time. Cancelling the
+ * scope interrupts its threads and closes the resources they registered, which unblocks their socket
+ * I/O, and close() doesn't return before every session has ended.
+ */
+public class BTaskScope implements AutoCloseable {
+    public interface Session{
+        void run() throws Exception;
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(BTaskScope.class);
+
+    private final ThreadFactory factory;
+    private final Semaphore permits;
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    private final Set<Closeable> resources = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition finished = lock.newCondition();
+    // guarded by lock
+    private int running;
+    private Exception failure;
+    private volatile boolean cancelled;
+
+    public BTaskScope(ThreadFactory factory, int maxSessions) {
+        this.factory = factory;
+        this.permits = new Semaphore(maxSessions);
+    }
+
+    /**
+     * Starts a session, waits while the scope is at its limit. A failing session is logged, use
+     * {@link #fail(Exception)} for failures that must end the whole task.
+     */
+    public void fork(Session session) throws InterruptedException {
+        if(!begin()){
+            return;
+        }
+        Thread thread = factory.newThread(() -> {
+            try {
+                session.run();
+            } catch (Exception e) {
+                if(!cancelled){
+                    logger.info("session failed: {}", e.toString());
+                }
+            } finally {
+                threads.remove(Thread.currentThread());
+                end();
+            }
+        });
+        threads.add(thread);
+        thread.start();
+    }
+
+    /**
+     * Counts a session that runs without a thread of its own, on an event loop, waits while the
+     * scope is at its limit. A session that began must {@link #end()}.
+     * @return false when the scope is cancelled, the session must not start
+     */
+    public boolean begin() throws InterruptedException {
+        permits.acquire();
+        lock.lock();
+        try {
+            if(cancelled){
+                permits.release();
+                return false;
+            }
+            running++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void end() {
+        permits.release();
+        lock.lock();
+        try {
+            running--;
+            finished.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closed when the scope is cancelled, registered resources are unregistered by their session.
+     */
+    public void register(Closeable resource) {
+        resources.add(resource);
+        if(cancelled){
+            closeQuietly(resource);
+        }
+    }
+
+    public void unregister(Closeable resource) {
+        resources.remove(resource);
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Cancels every session of the scope, the failure is reported by {@link #join()}.
+     */
+    public void fail(Exception e) {
+        lock.lock();
+        try {
+            if(failure == null){
+                failure = e;
+            }
+        } finally {
+            lock.unlock();
+        }
+        cancel();
+    }
+
+    public void cancel() {
+        cancelled = true;
+        for(Closeable resource : resources){
+            closeQuietly(resource);
+        }
+        for(Thread thread : threads){
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Waits until every session has ended, and throws the failure passed to {@link #fail(Exception)}.
+     */
+    public void join() throws IOException, InterruptedException {
+        lock.lock();
+        try {
+            while(running > 0){
+                finished.await();
+            }
+            if(failure instanceof IOException){
+                throw (IOException) failure;
+            }
+            if(failure instanceof RuntimeException){
+                throw (RuntimeException) failure;
+            }
+            if(failure != null){
+                throw new IOException(failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void closeQuietly(Closeable resource){
+        try {
+            resource.close();
+        } catch (IOException e) {
+            // closing to unblock, nothing to report
+        }
+    }
+
+    /**
+     * Cancels the scope and waits for its sessions. Their threads are interrupted already, so an
+     * interrupt of the caller doesn't end the wait, it stays set on return.
+     */
+    @Override
+    public void close() {
+        cancel();
+        lock.lock();
+        try {
+            while(running > 0){
+                finished.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
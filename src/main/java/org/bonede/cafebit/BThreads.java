@@ -0,0 +1,64 @@
+package org.bonede.cafebit;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread factories for blocking peer sessions. Virtual threads are looked up reflectively, the build
+ * targets Java 17 and the runtime may be 21 or later. Code they run blocks under ReentrantLock rather
+ * than synchronized, blocking in a monitor pins the carrier thread.
+ */
+public final class BThreads {
+    private static final Method OF_VIRTUAL = method("java.lang.Thread", "ofVirtual");
+    private static final Method NAME = method("java.lang.Thread$Builder", "name", String.class, long.class);
+    private static final Method FACTORY = method("java.lang.Thread$Builder", "factory");
+
+    public enum Mode{
+        // one platform thread per peer
+        Platform,
+        // one virtual thread per peer, platform threads when the runtime has none
+        Virtual,
+        // downloads on the event loops of a BPeerEngine, blocking work on platform threads
+        EventLoop
+    }
+
+    private BThreads() {
+    }
+
+    private static Method method(String className, String name, Class<?>... parameters){
+        try {
+            return Class.forName(className).getMethod(name, parameters);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    public static boolean hasVirtualThreads(){
+        return OF_VIRTUAL != null && NAME != null && FACTORY != null;
+    }
+
+    public static ThreadFactory factory(Mode mode, String prefix){
+        if(mode == Mode.Virtual && hasVirtualThreads()){
+            try {
+                Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 0L);
+                return (ThreadFactory) FACTORY.invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                // fall through to platform threads
+            }
+        }
+        return platform(prefix);
+    }
+
+    /**
+     * Daemon platform threads named prefix0, prefix1, ...
+     */
+    public static ThreadFactory platform(String prefix){
+        AtomicInteger next = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + next.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
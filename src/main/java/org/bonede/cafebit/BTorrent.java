@@ -1,10 +1,12 @@
 package org.bonede.cafebit;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class BTorrent {
     public static class BTorrentError extends RuntimeException{
@@ -12,66 +14,503 @@ public class BTorrent {
             super(msg);
         }
     }
-    private Bencode.BValue bValue;
+    static final Bencode.BKey INFO = Bencode.BKey.of("info");
+    static final Bencode.BKey LENGTH = Bencode.BKey.of("length");
+    static final Bencode.BKey NAME = Bencode.BKey.of("name");
+    private static final Bencode.BKey PIECE_LENGTH = Bencode.BKey.of("piece length");
+    static final Bencode.BKey PIECES = Bencode.BKey.of("pieces");
+    private static final Bencode.BKey ANNOUNCE = Bencode.BKey.of("announce");
+    static final Bencode.BKey FILES = Bencode.BKey.of("files");
+    private static final Bencode.BKey PATH = Bencode.BKey.of("path");
+    private static final Bencode.BKey ATTR = Bencode.BKey.of("attr");
+    private static final Bencode.BKey META_VERSION = Bencode.BKey.of("meta version");
+    private static final Bencode.BKey FILE_TREE = Bencode.BKey.of("file tree");
+    private static final Bencode.BKey FILE_ENTRY = Bencode.BKey.of("");
+    private static final Bencode.BKey PIECES_ROOT = Bencode.BKey.of("pieces root");
+    private static final Bencode.BKey PIECE_LAYERS = Bencode.BKey.of("piece layers");
+
+    public static final int SHA1_LENGTH = 20;
+
+    public static class BFile{
+        // path elements below the download directory, starting with the torrent name for multi-file torrents
+        private final String[] path;
+        private final long length;
+        private final long offset;
+        // v1 padding file of a hybrid torrent, never stored on disk
+        private final boolean padding;
+        // v2 merkle root of the file, null for v1 torrents and empty files
+        private final byte[] piecesRoot;
+
+        BFile(String[] path, long length, long offset){
+            this(path, length, offset, false, null);
+        }
+
+        BFile(String[] path, long length, long offset, boolean padding, byte[] piecesRoot){
+            this.path = path;
+            this.length = length;
+            this.offset = offset;
+            this.padding = padding;
+            this.piecesRoot = piecesRoot;
+        }
+
+        public String[] getPath() {
+            return path;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * Offset of the first byte of this file in the concatenated torrent data.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        public boolean isPadding() {
+            return padding;
+        }
+
+        public byte[] getPiecesRoot() {
+            return piecesRoot;
+        }
+
+        @Override
+        public String toString(){
+            return String.join("/", path);
+        }
+    }
+
+    private final Bencode.BTape tape;
+    private final int info;
+    private final byte[] infoHash;
+    // 1 for v1, 2 for v2 and hybrid torrents
+    private final int metaVersion;
+    private final byte[] infoHashV2;
+    private final String announce;
+    private final String name;
+    private final long length;
+    private final int pieceLength;
+    private final int pieceNum;
+    // piece hashes, SHA1_LENGTH bytes each, read in place from the torrent source
+    private final byte[] pieces;
+    private final int piecesOffset;
+    private final BFile[] files;
+    private final boolean multiFile;
+    // start offset of every file, ascending, for binary search
+    private final long[] fileOffsets;
+    // per file offset of its v2 piece layer in the torrent source, -1 when the file fits in one piece
+    private final int[] pieceLayers;
 
 
     public BTorrent(InputStream inputStream) {
-        Bencode.BValue bValue = null;
+        this(readAllBytes(inputStream));
+    }
+
+    /**
+     * Wraps an info dict, fetched from peers for a magnet link, into a torrent. The info dict is kept
+     * byte for byte so the info hash is unchanged, announce may be null.
+     */
+    public static BTorrent fromInfo(byte[] info, String announce) {
+        Bencode.BValue dict = Bencode.BValue.dictValue();
+        if(announce != null){
+            dict.put(ANNOUNCE, Bencode.BValue.bytesValue(announce));
+        }
+        // "info" sorts after "announce", append it as the last entry of the encoded dict
+        int length = dict.encodedLength() + INFO.toString().length() + 2 + info.length;
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        dict.encode(buffer);
+        buffer.position(buffer.position() - 1);
+        Bencode.BValue.bytesValue(INFO.toString()).encode(buffer);
+        buffer.put(info);
+        buffer.put((byte) 'e');
+        return new BTorrent(buffer.array());
+    }
+
+    public BTorrent(byte[] bytes) {
+        this(Bencode.parseTape(bytes));
+    }
+
+    BTorrent(Bencode.BTape tape) {
+        if(tape.getTag(tape.root()) != Bencode.BValueTag.Dict){
+            throw new BTorrentError("Invalid torrent file");
+        }
+        this.tape = tape;
+        this.info = require(tape.root(), INFO);
+        int metaVersionNode = tape.get(info, META_VERSION);
+        this.metaVersion = metaVersionNode == Bencode.BTape.NONE ? 1 : (int) tape.getIntValue(metaVersionNode);
+        if(metaVersion != 1 && metaVersion != 2){
+            throw new BTorrentError("Unsupported meta version: " + metaVersion);
+        }
+        int piecesNode = tape.get(info, PIECES);
+        if(metaVersion == 1 && piecesNode == Bencode.BTape.NONE){
+            throw new BTorrentError("Missing field: " + PIECES);
+        }
+        // hash the info dict as it appears in the file, re-encoding it is only correct for canonical input
+        if(metaVersion == 2){
+            MessageDigest sha256 = BMerkle.sha256();
+            sha256.update(tape.getSource(), tape.getStart(info), tape.getLength(info));
+            this.infoHashV2 = sha256.digest();
+        }else{
+            this.infoHashV2 = null;
+        }
+        this.infoHash = piecesNode == Bencode.BTape.NONE
+                ? Arrays.copyOf(infoHashV2, SHA1_LENGTH)
+                : Crypto.sha1(tape.getSource(), tape.getStart(info), tape.getLength(info));
+        int announceNode = tape.get(tape.root(), ANNOUNCE);
+        this.announce = announceNode == Bencode.BTape.NONE ? null : tape.getString(announceNode);
+        this.name = tape.getString(require(info, NAME));
+        long pieceLength = tape.getIntValue(require(info, PIECE_LENGTH));
+        if(pieceLength <= 0 || pieceLength > Integer.MAX_VALUE){
+            throw new BTorrentError("Invalid piece length: " + pieceLength);
+        }
+        if(metaVersion == 2 && (pieceLength < BMerkle.BLOCK_SIZE || Long.bitCount(pieceLength) != 1)){
+            throw new BTorrentError("Invalid v2 piece length: " + pieceLength);
+        }
+        this.pieceLength = (int) pieceLength;
+        int filesNode = tape.get(info, FILES);
+        if(piecesNode == Bencode.BTape.NONE){
+            // v2 only, every file starts on a piece boundary
+            this.files = readFileTree(require(info, FILE_TREE), true);
+            this.multiFile = files.length > 1 || files[0].path.length > 1;
+        }else{
+            this.multiFile = filesNode != Bencode.BTape.NONE;
+            if(filesNode == Bencode.BTape.NONE){
+                this.files = new BFile[]{new BFile(new String[]{checkPathElement(name)}, tape.getIntValue(require(info, LENGTH)), 0)};
+            }else{
+                this.files = readFiles(filesNode);
+            }
+            if(metaVersion == 2){
+                addPiecesRoots(readFileTree(require(info, FILE_TREE), false));
+            }
+        }
+        this.fileOffsets = new long[files.length];
+        for(int i = 0; i < files.length; i++){
+            fileOffsets[i] = files[i].offset;
+        }
+        BFile last = files[files.length - 1];
+        this.length = last.offset + last.length;
+        if(piecesNode == Bencode.BTape.NONE){
+            this.pieces = null;
+            this.piecesOffset = 0;
+            this.pieceNum = (int) ((length + pieceLength - 1) / pieceLength);
+        }else{
+            if(tape.getLength(piecesNode) % SHA1_LENGTH != 0){
+                throw new BTorrentError("Invalid pieces length: " + tape.getLength(piecesNode));
+            }
+            this.pieces = tape.getSource();
+            this.piecesOffset = tape.getStart(piecesNode);
+            this.pieceNum = tape.getLength(piecesNode) / SHA1_LENGTH;
+            if((long) pieceNum * this.pieceLength < length || (long) (pieceNum - 1) * this.pieceLength >= length){
+                throw new BTorrentError("Pieces don't match length: " + pieceNum);
+            }
+        }
+        this.pieceLayers = metaVersion == 2 ? readPieceLayers() : null;
+    }
+
+    /**
+     * Reads the v2 file tree in key order. With aligned set, files are laid out as in a v2 only
+     * torrent, each starting on a piece boundary.
+     */
+    private BFile[] readFileTree(int fileTree, boolean aligned){
+        List<BFile> files = new ArrayList<>();
+        boolean single = tape.size(fileTree) == 2 && tape.get(tape.getItem(fileTree, 1), FILE_ENTRY) != Bencode.BTape.NONE;
+        List<String> path = new ArrayList<>();
+        if(!single){
+            path.add(checkPathElement(name));
+        }
+        readFileTree(fileTree, path, files, aligned);
+        if(files.isEmpty()){
+            throw new BTorrentError("Empty file tree");
+        }
+        return files.toArray(new BFile[0]);
+    }
+
+    private void readFileTree(int dir, List<String> path, List<BFile> files, boolean aligned){
+        for(int k = tape.first(dir); k != Bencode.BTape.NONE; k = tape.next(tape.next(k))){
+            int node = tape.next(k);
+            path.add(checkPathElement(tape.getString(k)));
+            int entry = tape.get(node, FILE_ENTRY);
+            if(entry == Bencode.BTape.NONE){
+                readFileTree(node, path, files, aligned);
+            }else{
+                long fileLength = tape.getIntValue(require(entry, LENGTH));
+                if(fileLength < 0){
+                    throw new BTorrentError("Invalid file length: " + fileLength);
+                }
+                byte[] root = null;
+                if(fileLength > 0){
+                    int rootNode = require(entry, PIECES_ROOT);
+                    if(tape.getLength(rootNode) != BMerkle.HASH_LENGTH){
+                        throw new BTorrentError("Invalid pieces root: " + path);
+                    }
+                    root = tape.getBytesValue(rootNode);
+                }
+                long offset = 0;
+                if(!files.isEmpty()){
+                    BFile prev = files.get(files.size() - 1);
+                    offset = prev.offset + prev.length;
+                    if(aligned){
+                        offset = (offset + pieceLength - 1) / pieceLength * pieceLength;
+                    }
+                }
+                files.add(new BFile(path.toArray(new String[0]), fileLength, offset, false, root));
+            }
+            path.remove(path.size() - 1);
+        }
+    }
+
+    /**
+     * Hybrid torrents list the same files in the v1 file list, plus padding files.
+     */
+    private void addPiecesRoots(BFile[] tree){
+        int t = 0;
+        for(int i = 0; i < files.length; i++){
+            BFile file = files[i];
+            if(file.padding){
+                continue;
+            }
+            if(t == tree.length || tree[t].length != file.length || !Arrays.equals(tree[t].path, file.path)){
+                throw new BTorrentError("File tree doesn't match files: " + file);
+            }
+            files[i] = new BFile(file.path, file.length, file.offset, false, tree[t++].piecesRoot);
+        }
+        if(t != tree.length){
+            throw new BTorrentError("File tree doesn't match files");
+        }
+    }
+
+    /**
+     * Finds the piece layer of every file larger than a piece and checks it against the file's pieces root.
+     */
+    private int[] readPieceLayers(){
+        int[] layers = new int[files.length];
+        Arrays.fill(layers, -1);
+        int layersNode = tape.get(tape.root(), PIECE_LAYERS);
+        int padHeight = BMerkle.height(pieceLength / BMerkle.BLOCK_SIZE);
+        for(int i = 0; i < files.length; i++){
+            BFile file = files[i];
+            if(file.piecesRoot == null || file.length <= pieceLength){
+                continue;
+            }
+            if(layersNode == Bencode.BTape.NONE){
+                throw new BTorrentError("Missing field: " + PIECE_LAYERS);
+            }
+            int layer = tape.get(layersNode, Bencode.BKey.of(file.piecesRoot));
+            if(layer == Bencode.BTape.NONE){
+                throw new BTorrentError("Missing piece layer: " + file);
+            }
+            int count = (int) ((file.length + pieceLength - 1) / pieceLength);
+            if(tape.getLength(layer) != count * BMerkle.HASH_LENGTH){
+                throw new BTorrentError("Invalid piece layer length: " + file);
+            }
+            byte[] root = BMerkle.root(tape.getSource(), tape.getStart(layer), count, BMerkle.height(count), padHeight);
+            if(!Arrays.equals(root, file.piecesRoot)){
+                throw new BTorrentError("Piece layer doesn't match pieces root: " + file);
+            }
+            layers[i] = tape.getStart(layer);
+        }
+        return layers;
+    }
+
+    private BFile[] readFiles(int filesNode){
+        int size = tape.size(filesNode);
+        if(size == 0){
+            throw new BTorrentError("Empty files");
+        }
+        BFile[] files = new BFile[size];
+        long offset = 0;
+        for(int i = 0; i < size; i++){
+            int file = tape.getItem(filesNode, i);
+            long fileLength = tape.getIntValue(require(file, LENGTH));
+            if(fileLength < 0){
+                throw new BTorrentError("Invalid file length: " + fileLength);
+            }
+            int pathNode = require(file, PATH);
+            String[] path = new String[tape.size(pathNode) + 1];
+            path[0] = checkPathElement(name);
+            for(int p = 1; p < path.length; p++){
+                path[p] = checkPathElement(tape.getString(tape.getItem(pathNode, p - 1)));
+            }
+            if(path.length == 1){
+                throw new BTorrentError("Empty path");
+            }
+            int attr = tape.get(file, ATTR);
+            boolean padding = attr != Bencode.BTape.NONE && tape.getString(attr).indexOf('p') >= 0;
+            files[i] = new BFile(path, fileLength, offset, padding, null);
+            offset += fileLength;
+        }
+        return files;
+    }
+
+    private static String checkPathElement(String element){
+        if(element.isEmpty() || element.equals(".") || element.equals("..")
+                || element.indexOf('/') >= 0 || element.indexOf('\\') >= 0){
+            throw new BTorrentError("Invalid path element: " + element);
+        }
+        return element;
+    }
+
+    private static byte[] readAllBytes(InputStream inputStream){
         try {
-            bValue = Bencode.parse(inputStream.readAllBytes());
+            return inputStream.readAllBytes();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        if(bValue.getTag() != Bencode.BValueTag.Dict){
-            throw new BTorrentError("Invalid torrent file");
+    }
+
+    private int require(int dict, Bencode.BKey key){
+        int node = tape.get(dict, key);
+        if(node == Bencode.BTape.NONE){
+            throw new BTorrentError("Missing field: " + key);
         }
-        this.bValue = bValue;
+        return node;
     }
 
     public Bencode.BValue getInfo(){
-        return bValue.get("info");
+        return tape.toValue(info);
     }
 
-    public int getLength(){
-        return getInfo().get("length").getIntValue();
+    public long getLength(){
+        return length;
     }
 
     public String getName(){
-        return new String(getInfo().get("name").getBytesValue());
+        return name;
     }
 
     public int getPieceLength(){
-        return getInfo().get("piece length").getIntValue();
+        return pieceLength;
+    }
+
+    /**
+     * Length of the given piece, only the last piece (of each file in a v2 only torrent) can be shorter than the piece length.
+     */
+    public int getPieceLength(int num){
+        long start = (long) num * pieceLength;
+        long end = length;
+        if(pieces == null){
+            BFile file = files[getFileIndex(start)];
+            end = file.offset + file.length;
+        }
+        return (int) Math.min(pieceLength, end - start);
+    }
+
+    /**
+     * Bytes of file data in piece num of a v2 or hybrid torrent, what its merkle hashes cover. In a
+     * hybrid torrent this leaves out the padding that aligns the next file to a piece.
+     */
+    public int getPieceDataLength(int num){
+        long start = (long) num * pieceLength;
+        BFile file = files[getFileIndex(start)];
+        return (int) Math.min(pieceLength, file.offset + file.length - start);
     }
 
     public int getPieceNum(){
-        byte[] bytes = getInfo().get("pieces").getBytesValue();
-        return bytes.length / 20;
+        return pieceNum;
     }
 
 
     public byte[] getPieceAt(int num){
-        byte[] bytes = getInfo().get("pieces").getBytesValue();
-        return  Arrays.copyOfRange(bytes, num * 20, (num + 1) * 20);
+        if(pieces == null){
+            throw new BTorrentError("No v1 piece hashes");
+        }
+        int start = piecesOffset + num * SHA1_LENGTH;
+        return  Arrays.copyOfRange(pieces, start, start + SHA1_LENGTH);
     }
 
+    /**
+     * Compares a computed digest against the hash of piece num without copying it out.
+     */
+    public boolean checkPiece(int num, byte[] sha1){
+        if(pieces == null){
+            throw new BTorrentError("No v1 piece hashes");
+        }
+        int start = piecesOffset + num * SHA1_LENGTH;
+        return Arrays.equals(pieces, start, start + SHA1_LENGTH, sha1, 0, sha1.length);
+    }
+
+
+    public BFile[] getFiles(){
+        return files;
+    }
+
+    public boolean isMultiFile(){
+        return multiFile;
+    }
+
+    /**
+     * Index of the file holding the byte at offset of the concatenated torrent data, found by binary search.
+     * Empty files are skipped, they share their offset with the following file.
+     */
+    public int getFileIndex(long offset){
+        int low = 0;
+        int high = fileOffsets.length - 1;
+        while(low < high){
+            int mid = (low + high + 1) >>> 1;
+            if(fileOffsets[mid] <= offset){
+                low = mid;
+            }else{
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
 
+    /**
+     * Tracker url, null for a trackerless torrent.
+     */
     public String getAnnounce(){
-        return new String(this.bValue.get("announce").getBytesValue());
+        return announce;
     }
 
 
 
 
+    /**
+     * Info hash used on the wire, the v1 SHA-1 hash, or the truncated v2 hash for a v2 only torrent.
+     */
     public byte[] getInfoHash(){
-        Bencode.BValue info = getInfo();
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        try {
-            info.encode(outputStream);
-            outputStream.close();
-            return Crypto.sha1(outputStream.toByteArray());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        return infoHash;
+    }
+
+    public int getMetaVersion(){
+        return metaVersion;
+    }
+
+    public boolean isV2(){
+        return metaVersion == 2;
+    }
+
+    /**
+     * SHA-256 info hash of a v2 or hybrid torrent, null for v1.
+     */
+    public byte[] getInfoHashV2(){
+        return infoHashV2;
+    }
+
+    /**
+     * Block level verifier of a v2 piece, checked against the file's piece layer, or the pieces root
+     * when the file fits in one piece.
+     */
+    public BMerkle.BPieceVerifier newPieceVerifier(int num){
+        if(!isV2()){
+            throw new BTorrentError("Not a v2 torrent");
+        }
+        long start = (long) num * pieceLength;
+        int index = getFileIndex(start);
+        BFile file = files[index];
+        if(file.piecesRoot == null){
+            throw new BTorrentError("No v2 hashes for piece: " + num);
+        }
+        int length = getPieceDataLength(num);
+        int blockNum = (length + BMerkle.BLOCK_SIZE - 1) / BMerkle.BLOCK_SIZE;
+        if(pieceLayers[index] < 0){
+            return new BMerkle.BPieceVerifier(file.piecesRoot, BMerkle.height(blockNum), blockNum);
         }
+        int layer = pieceLayers[index] + (int) ((start - file.offset) / pieceLength) * BMerkle.HASH_LENGTH;
+        byte[] expected = Arrays.copyOfRange(tape.getSource(), layer, layer + BMerkle.HASH_LENGTH);
+        return new BMerkle.BPieceVerifier(expected, BMerkle.height(pieceLength / BMerkle.BLOCK_SIZE), blockNum);
     }
 }
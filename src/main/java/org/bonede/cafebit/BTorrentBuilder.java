@@ -0,0 +1,208 @@
+package org.bonede.cafebit;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Creates a torrent from a file or a directory. Pieces are hashed in parallel, every worker takes a
+ * contiguous run of pieces and reads it through memory mapped windows of the files it covers.
+ */
+public class BTorrentBuilder {
+    public static final int DEFAULT_PIECE_LENGTH = 256 * 1024;
+    // size of one memory mapped window, a worker maps each file region in steps of this size
+    private static final int MAP_SIZE = 64 * 1024 * 1024;
+    // runs handed out per thread, more runs than threads keeps the pool busy when file systems differ in speed
+    private static final int RUNS_PER_THREAD = 4;
+
+    private final Path source;
+    private String name;
+    private String announce;
+    private int pieceLength = DEFAULT_PIECE_LENGTH;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private Path[] paths;
+    private long[] lengths;
+    private long[] offsets;
+
+    public BTorrentBuilder(Path source) {
+        this.source = source;
+        this.name = source.getFileName().toString();
+    }
+
+    public BTorrentBuilder name(String name) {
+        this.name = name;
+        return this;
+    }
+
+    public BTorrentBuilder announce(String announce) {
+        this.announce = announce;
+        return this;
+    }
+
+    public BTorrentBuilder pieceLength(int pieceLength) {
+        if(pieceLength <= 0){
+            throw new IllegalArgumentException("Invalid piece length: " + pieceLength);
+        }
+        this.pieceLength = pieceLength;
+        return this;
+    }
+
+    public BTorrentBuilder threads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    public BTorrent buildTorrent() throws IOException, InterruptedException {
+        return new BTorrent(build());
+    }
+
+    /**
+     * @return the encoded .torrent file
+     */
+    public byte[] build() throws IOException, InterruptedException {
+        boolean multiFile = Files.isDirectory(source);
+        List<Path> files;
+        if(multiFile){
+            try(Stream<Path> stream = Files.walk(source)){
+                files = stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+            if(files.isEmpty()){
+                throw new IOException("No files in: " + source);
+            }
+        }else{
+            files = List.of(source);
+        }
+        paths = files.toArray(new Path[0]);
+        lengths = new long[paths.length];
+        offsets = new long[paths.length];
+        long length = 0;
+        for(int i = 0; i < paths.length; i++){
+            lengths[i] = Files.size(paths[i]);
+            offsets[i] = length;
+            length += lengths[i];
+        }
+        long pieceNum = (length + pieceLength - 1) / pieceLength;
+        if(pieceNum * BTorrent.SHA1_LENGTH > Integer.MAX_VALUE){
+            throw new IOException("Too many pieces: " + pieceNum);
+        }
+        byte[] pieces = hashPieces(length, (int) pieceNum);
+
+        Bencode.BValue info = Bencode.BValue.dictValue()
+                .put("name", Bencode.BValue.bytesValue(name))
+                .put("piece length", Bencode.BValue.intValue(pieceLength))
+                .put("pieces", Bencode.BValue.bytesValue(pieces));
+        if(multiFile){
+            Bencode.BValue fileList = Bencode.BValue.listValue();
+            for(int i = 0; i < paths.length; i++){
+                Bencode.BValue path = Bencode.BValue.listValue();
+                for(Path element : source.relativize(paths[i])){
+                    path.add(Bencode.BValue.bytesValue(element.toString()));
+                }
+                fileList.add(Bencode.BValue.dictValue()
+                        .put("length", Bencode.BValue.intValue(lengths[i]))
+                        .put("path", path));
+            }
+            info.put("files", fileList);
+        }else{
+            info.put("length", Bencode.BValue.intValue(length));
+        }
+        Bencode.BValue torrent = Bencode.BValue.dictValue().put("info", info);
+        if(announce != null){
+            torrent.put("announce", Bencode.BValue.bytesValue(announce));
+        }
+        return torrent.encode();
+    }
+
+    private byte[] hashPieces(long length, int pieceNum) throws IOException, InterruptedException {
+        byte[] pieces = new byte[pieceNum * BTorrent.SHA1_LENGTH];
+        int runs = Math.max(1, Math.min(pieceNum, threads * RUNS_PER_THREAD));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<?>> futures = new ArrayList<>(runs);
+            for(int r = 0; r < runs; r++){
+                int first = (int) ((long) pieceNum * r / runs);
+                int last = (int) ((long) pieceNum * (r + 1) / runs);
+                futures.add(executor.submit(() -> {
+                    hashRun(first, last, length, pieces);
+                    return null;
+                }));
+            }
+            for(Future<?> future : futures){
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException){
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return pieces;
+    }
+
+    /**
+     * Hashes pieces [first, last), the run starts on a piece boundary so it doesn't depend on other runs.
+     */
+    private void hashRun(int first, int last, long length, byte[] pieces) throws IOException {
+        MessageDigest sha1 = Crypto.newSha1();
+        long start = (long) first * pieceLength;
+        long end = Math.min(length, (long) last * pieceLength);
+        int piece = first;
+        int pieceRemaining = (int) Math.min(pieceLength, length - start);
+        for(int i = fileIndex(start); start < end; i++){
+            long fileStart = start - offsets[i];
+            long fileEnd = Math.min(lengths[i], end - offsets[i]);
+            if(fileStart >= fileEnd){
+                continue;
+            }
+            try(FileChannel channel = FileChannel.open(paths[i], StandardOpenOption.READ)){
+                for(long position = fileStart; position < fileEnd; ){
+                    int size = (int) Math.min(MAP_SIZE, fileEnd - position);
+                    MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                    while(window.hasRemaining()){
+                        int n = Math.min(window.remaining(), pieceRemaining);
+                        window.limit(window.position() + n);
+                        sha1.update(window);
+                        window.limit(size);
+                        pieceRemaining -= n;
+                        if(pieceRemaining == 0){
+                            System.arraycopy(sha1.digest(), 0, pieces, piece * BTorrent.SHA1_LENGTH, BTorrent.SHA1_LENGTH);
+                            piece++;
+                            pieceRemaining = (int) Math.min(pieceLength, length - (long) piece * pieceLength);
+                        }
+                    }
+                    position += size;
+                }
+            }
+            start = offsets[i] + fileEnd;
+        }
+    }
+
+    private int fileIndex(long offset){
+        int low = 0;
+        int high = offsets.length - 1;
+        while(low < high){
+            int mid = (low + high + 1) >>> 1;
+            if(offsets[mid] <= offset){
+                low = mid;
+            }else{
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+}
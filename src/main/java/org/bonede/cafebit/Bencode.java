@@ -2,7 +2,6 @@ package org.bonede.cafebit;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -21,7 +20,6 @@ public class Bencode {
         }
     }
 
-    public final static int BUFFER_SIZE = 1024 * 1024;
     public static class BPair{
         private BValue key;
         private BValue value;
@@ -42,52 +40,129 @@ public class Bencode {
         Dict
     }
 
+    /**
+     * Pre-encoded dict key, so a lookup doesn't encode the key string on every call.
+     */
+    public static class BKey{
+        private final byte[] bytes;
+
+        private BKey(byte[] bytes){
+            this.bytes = bytes;
+        }
+
+        public static BKey of(String key){
+            return new BKey(key.getBytes());
+        }
+
+        public static BKey of(byte[] key){
+            return new BKey(key.clone());
+        }
+
+        @Override
+        public String toString(){
+            return new String(bytes);
+        }
+    }
+
     public final static int STACK_SIZE = 1024;
     public static class BValue{
-        private int sp;
-        private BValue[] stack;
         private BValueTag tag;
-        private int intValue;
+        // keys of a parsed dict are normally sorted and can be binary searched
+        private boolean unsorted;
+        private long intValue;
         private byte[] bytesValue;
         public void encode(OutputStream outputStream) throws IOException {
+            outputStream.write(encode());
+        }
+
+        /**
+         * Encodes into an array sized by {@link #encodedLength()}, allocated once.
+         */
+        public byte[] encode(){
+            ByteBuffer buffer = ByteBuffer.allocate(encodedLength());
+            encode(buffer);
+            return buffer.array();
+        }
 
+        public void encode(ByteBuffer buffer){
             switch (tag){
                 case Int: {
-                    outputStream.write('i');
-                    outputStream.write(String.valueOf(intValue).getBytes());
-                    outputStream.write('e');
+                    buffer.put((byte) 'i');
+                    putDigits(buffer, intValue);
+                    buffer.put((byte) 'e');
                 } break;
                 case Bytes: {
-                    outputStream.write(String.valueOf(bytesValue.length).getBytes());
-                    outputStream.write(':');
-                    outputStream.write(bytesValue);
+                    putDigits(buffer, bytesValue.length);
+                    buffer.put((byte) ':');
+                    buffer.put(bytesValue);
                     break;
                 }case Dict: {
-                    outputStream.write('d');
+                    buffer.put((byte) 'd');
                     for(BPair pair : dictValue){
-                        pair.key.encode(outputStream);
-                        pair.value.encode(outputStream);
+                        pair.key.encode(buffer);
+                        pair.value.encode(buffer);
                     }
-                    outputStream.write('e');
+                    buffer.put((byte) 'e');
                     break;
                 }case List: {
-                    outputStream.write('l');
+                    buffer.put((byte) 'l');
                     for(BValue value : listValue){
-                        value.encode(outputStream);
+                        value.encode(buffer);
                     }
-                    outputStream.write('e');
+                    buffer.put((byte) 'e');
                     break;
                 }
             }
         }
+
+        public int encodedLength(){
+            switch (tag){
+                case Int: return digitLength(intValue) + 2;
+                case Bytes: return digitLength(bytesValue.length) + 1 + bytesValue.length;
+                case Dict: {
+                    int length = 2;
+                    for(BPair pair : dictValue){
+                        length += pair.key.encodedLength() + pair.value.encodedLength();
+                    }
+                    return length;
+                }
+                default: {
+                    int length = 2;
+                    for(BValue value : listValue){
+                        length += value.encodedLength();
+                    }
+                    return length;
+                }
+            }
+        }
         public BValueTag getTag(){
             return tag;
         }
 
         public BValue get(String key){
-            byte[] bytes = key.getBytes();
-            for(BPair pair : dictValue){
-                if(Arrays.equals(pair.key.bytesValue, bytes)){
+            return get(BKey.of(key));
+        }
+
+        public BValue get(BKey key){
+            if(unsorted){
+                for(BPair pair : dictValue){
+                    if(Arrays.equals(pair.key.bytesValue, key.bytes)){
+                        return pair.value;
+                    }
+                }
+                return null;
+            }
+            int low = 0;
+            int high = dictValue.size() - 1;
+            while(low <= high){
+                int mid = (low + high) >>> 1;
+                BPair pair = dictValue.get(mid);
+                int cmp = Arrays.compareUnsigned(pair.key.bytesValue, key.bytes);
+                if(cmp < 0){
+                    low = mid + 1;
+                }else if(cmp > 0){
+                    high = mid - 1;
+                }else{
                     return pair.value;
                 }
             }
@@ -95,7 +170,7 @@ public class Bencode {
         }
 
 
-        public int getIntValue() {
+        public long getIntValue() {
             return intValue;
         }
 
@@ -113,38 +188,6 @@ public class Bencode {
 
         private ArrayList<BValue> listValue;
         private ArrayList<BPair> dictValue;
-        private void push(BValue bValue){
-            this.stack[sp++] = bValue;
-        }
-        private void pop(){
-            this.sp--;
-        }
-        private void addListItem(BValue bValue){
-            this.top().listValue.add(bValue);
-            push(bValue);
-        }
-        private void addDictItem(){
-            BValue key = BValue.bytesValue();
-            BPair pair = new BPair();
-            pair.key = key;
-            this.top().dictValue.add(pair);
-            push(key);
-        }
-
-        private void addDictValue(BValue bValue){
-            this.top().dictValue.get(this.top().dictValue.size() - 1).value = bValue;
-            push(bValue);
-        }
-
-
-        public BValue(){
-            this.stack = new BValue[STACK_SIZE];
-            push(this);
-        }
-
-        public BValue top(){
-            return this.stack[sp-1];
-        }
 
         public static BValue intValue(){
             BValue value = new BValue();
@@ -172,6 +215,69 @@ public class Bencode {
             return value;
         }
 
+        public static BValue intValue(long intValue){
+            BValue value = intValue();
+            value.intValue = intValue;
+            return value;
+        }
+
+        public static BValue bytesValue(byte[] bytesValue){
+            BValue value = bytesValue();
+            value.bytesValue = bytesValue;
+            return value;
+        }
+
+        public static BValue bytesValue(String bytesValue){
+            return bytesValue(bytesValue.getBytes());
+        }
+
+        public BValue add(BValue value){
+            listValue.add(value);
+            return this;
+        }
+
+        public BValue put(String key, BValue value){
+            return put(BKey.of(key), value);
+        }
+
+        /**
+         * Inserts or replaces a dict entry, keeping keys sorted as the encoding requires.
+         */
+        public BValue put(BKey key, BValue value){
+            if(unsorted){
+                for(BPair pair : dictValue){
+                    if(Arrays.equals(pair.key.bytesValue, key.bytes)){
+                        pair.value = value;
+                        return this;
+                    }
+                }
+                BPair pair = new BPair();
+                pair.key = bytesValue(key.bytes);
+                pair.value = value;
+                dictValue.add(pair);
+                return this;
+            }
+            int low = 0;
+            int high = dictValue.size() - 1;
+            while(low <= high){
+                int mid = (low + high) >>> 1;
+                int cmp = Arrays.compareUnsigned(dictValue.get(mid).key.bytesValue, key.bytes);
+                if(cmp < 0){
+                    low = mid + 1;
+                }else if(cmp > 0){
+                    high = mid - 1;
+                }else{
+                    dictValue.get(mid).value = value;
+                    return this;
+                }
+            }
+            BPair pair = new BPair();
+            pair.key = bytesValue(key.bytes);
+            pair.value = value;
+            dictValue.add(low, pair);
+            return this;
+        }
+
         @Override
         public String toString(){
             switch (tag){
@@ -185,12 +291,419 @@ public class Bencode {
 
     }
 
+    static int digitLength(long value){
+        int length = value < 0 ? 2 : 1;
+        for(long v = value; v <= -10 || v >= 10; v /= 10){
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Writes the decimal digits of value as ASCII, without going through a String.
+     */
+    static void putDigits(ByteBuffer buffer, long value){
+        int start = buffer.position();
+        int end = start + digitLength(value);
+        if(value < 0){
+            buffer.put(start, (byte) '-');
+        }
+        int i = end - 1;
+        do{
+            // digits are taken from the remainder's magnitude so Long.MIN_VALUE needs no special case
+            buffer.put(i--, (byte) ('0' + Math.abs(value % 10)));
+            value /= 10;
+        }while(value != 0);
+        buffer.position(end);
+    }
+
+    /**
+     * Compact parse result. Every node is a fixed size record in one int array,
+     * holding its tag, its byte range in the source and a link to its next sibling.
+     * Byte strings and ints are not copied, they are read from the source on demand.
+     * Nodes are addressed by index, {@link #root()} is the top level value.
+     */
+    public static class BTape{
+        public static final int NONE = -1;
+
+        private static final int TAG = 0;
+        private static final int START = 1;
+        private static final int END = 2;
+        private static final int NEXT = 3;
+        private static final int SIZE = 4;
+        private static final int CHILDREN = 5;
+        private static final int STRIDE = 6;
+
+        private static final int TAG_MASK = 0xff;
+        private static final int UNSORTED = 0x100;
+
+        private static final BValueTag[] TAGS = BValueTag.values();
+
+        private final byte[] src;
+        private final int[] nodes;
+        private final int count;
+        // child node indexes of every container, contiguous per container
+        private final int[] children;
+
+        private BTape(byte[] src, int[] nodes, int count, int[] children){
+            this.src = src;
+            this.nodes = nodes;
+            this.count = count;
+            this.children = children;
+        }
+
+        public byte[] getSource(){
+            return src;
+        }
+
+        public int getNodeCount(){
+            return count;
+        }
+
+        public int root(){
+            return 0;
+        }
+
+        public BValueTag getTag(int node){
+            return TAGS[nodes[node * STRIDE + TAG] & TAG_MASK];
+        }
+
+        /**
+         * Start offset of the node in the source. For byte strings this is the first payload byte,
+         * for other values the leading 'i', 'l' or 'd'.
+         */
+        public int getStart(int node){
+            return nodes[node * STRIDE + START];
+        }
+
+        /**
+         * End offset (exclusive) of the node in the source.
+         */
+        public int getEnd(int node){
+            return nodes[node * STRIDE + END];
+        }
+
+        public int getLength(int node){
+            return getEnd(node) - getStart(node);
+        }
+
+        /**
+         * Number of children of a list, or number of keys and values of a dict.
+         */
+        public int size(int node){
+            return nodes[node * STRIDE + SIZE];
+        }
+
+        public int first(int node){
+            return size(node) > 0 ? node + 1 : NONE;
+        }
+
+        public int next(int node){
+            return nodes[node * STRIDE + NEXT];
+        }
+
+        /**
+         * The index-th child of a list or dict, in a dict keys and values alternate.
+         */
+        public int getItem(int node, int index){
+            if(index < 0 || index >= size(node)){
+                return NONE;
+            }
+            return children[nodes[node * STRIDE + CHILDREN] + index];
+        }
+
+        public long getIntValue(int node){
+            expect(node, Int);
+            int start = getStart(node) + 1;
+            int end = getEnd(node) - 1;
+            boolean negative = src[start] == '-';
+            long value = 0;
+            for(int i = negative ? start + 1 : start; i < end; i++){
+                value = value * 10 + (src[i] - '0');
+            }
+            // the parser already rejected values out of range
+            return negative ? -value : value;
+        }
+
+        public byte[] getBytesValue(int node){
+            expect(node, Bytes);
+            return Arrays.copyOfRange(src, getStart(node), getEnd(node));
+        }
+
+        public String getString(int node){
+            expect(node, Bytes);
+            return new String(src, getStart(node), getLength(node));
+        }
+
+        public int get(int node, String key){
+            return get(node, BKey.of(key));
+        }
+
+        public int get(int node, BKey key){
+            expect(node, Dict);
+            byte[] bytes = key.bytes;
+            int offset = nodes[node * STRIDE + CHILDREN];
+            if((nodes[node * STRIDE + TAG] & UNSORTED) != 0){
+                for(int k = first(node); k != NONE; k = next(next(k))){
+                    if(Arrays.equals(src, getStart(k), getEnd(k), bytes, 0, bytes.length)){
+                        return next(k);
+                    }
+                }
+                return NONE;
+            }
+            int low = 0;
+            int high = size(node) / 2 - 1;
+            while(low <= high){
+                int mid = (low + high) >>> 1;
+                int k = children[offset + mid * 2];
+                int cmp = Arrays.compareUnsigned(src, getStart(k), getEnd(k), bytes, 0, bytes.length);
+                if(cmp < 0){
+                    low = mid + 1;
+                }else if(cmp > 0){
+                    high = mid - 1;
+                }else{
+                    return children[offset + mid * 2 + 1];
+                }
+            }
+            return NONE;
+        }
+
+        public BValue toValue(int node){
+            switch (getTag(node)){
+                case Int: {
+                    BValue value = BValue.intValue();
+                    value.intValue = getIntValue(node);
+                    return value;
+                }
+                case Bytes: {
+                    BValue value = BValue.bytesValue();
+                    value.bytesValue = getBytesValue(node);
+                    return value;
+                }
+                case List: {
+                    BValue value = BValue.listValue();
+                    for(int i = first(node); i != NONE; i = next(i)){
+                        value.listValue.add(toValue(i));
+                    }
+                    return value;
+                }
+                default: {
+                    BValue value = BValue.dictValue();
+                    value.unsorted = (nodes[node * STRIDE + TAG] & UNSORTED) != 0;
+                    for(int k = first(node); k != NONE; k = next(next(k))){
+                        BPair pair = new BPair();
+                        pair.key = toValue(k);
+                        pair.value = toValue(next(k));
+                        value.dictValue.add(pair);
+                    }
+                    return value;
+                }
+            }
+        }
+
+        private void expect(int node, BValueTag tag){
+            if(node == NONE){
+                throw new BError("Missing value, expecting: " + tag);
+            }
+            if(getTag(node) != tag){
+                throw new BError(String.format("Unexpect: %s, expecting: %s", getTag(node), tag));
+            }
+        }
+    }
+
+    interface Builder{
+        void startList(int start);
+        void startDict(int start);
+        void end(int end);
+        void intValue(long value, int start, int end);
+        /**
+         * @param bytes the payload when the parser has no source array to refer to, otherwise null
+         */
+        void bytesValue(byte[] bytes, int start, int end);
+    }
+
+    static class ValueBuilder implements Builder{
+        private final byte[] src;
+        private final BValue[] stack = new BValue[STACK_SIZE];
+        private int sp;
+        private BValue value;
 
+        ValueBuilder(byte[] src){
+            this.src = src;
+        }
 
+        private void add(BValue bValue){
+            if(sp == 0){
+                value = bValue;
+                return;
+            }
+            BValue top = stack[sp - 1];
+            if(top.tag == List){
+                top.listValue.add(bValue);
+                return;
+            }
+            ArrayList<BPair> dict = top.dictValue;
+            if(!dict.isEmpty() && dict.get(dict.size() - 1).value == null){
+                dict.get(dict.size() - 1).value = bValue;
+            }else{
+                if(!dict.isEmpty() && Arrays.compareUnsigned(dict.get(dict.size() - 1).key.bytesValue, bValue.bytesValue) >= 0){
+                    top.unsorted = true;
+                }
+                BPair pair = new BPair();
+                pair.key = bValue;
+                dict.add(pair);
+            }
+        }
+
+        @Override
+        public void startList(int start) {
+            BValue bValue = BValue.listValue();
+            add(bValue);
+            stack[sp++] = bValue;
+        }
+
+        @Override
+        public void startDict(int start) {
+            BValue bValue = BValue.dictValue();
+            add(bValue);
+            stack[sp++] = bValue;
+        }
+
+        @Override
+        public void end(int end) {
+            sp--;
+        }
+
+        @Override
+        public void intValue(long value, int start, int end) {
+            BValue bValue = BValue.intValue();
+            bValue.intValue = value;
+            add(bValue);
+        }
+
+        @Override
+        public void bytesValue(byte[] bytes, int start, int end) {
+            BValue bValue = BValue.bytesValue();
+            bValue.bytesValue = bytes != null ? bytes : Arrays.copyOfRange(src, start, end);
+            add(bValue);
+        }
+    }
+
+    static class TapeBuilder implements Builder{
+        private final byte[] src;
+        private int[] nodes;
+        private int count;
+        private final int[] parents = new int[STACK_SIZE];
+        private final int[] lastChildren = new int[STACK_SIZE];
+        private int sp;
+        // children of the open containers, moved to children when their container ends
+        private int[] pending = new int[64];
+        private int pendingSize;
+        private int[] children;
+        private int childCount;
+
+        TapeBuilder(byte[] src){
+            this.src = src;
+            // roughly one node per 16 bytes of input, grown on demand
+            this.nodes = new int[Math.max(16, src.length / 16) * BTape.STRIDE];
+            this.children = new int[Math.max(16, src.length / 16)];
+        }
+
+        private int add(BValueTag tag, int start, int end){
+            if((count + 1) * BTape.STRIDE > nodes.length){
+                nodes = Arrays.copyOf(nodes, nodes.length * 2);
+            }
+            int node = count++;
+            int offset = node * BTape.STRIDE;
+            nodes[offset + BTape.TAG] = tag.ordinal();
+            nodes[offset + BTape.START] = start;
+            nodes[offset + BTape.END] = end;
+            nodes[offset + BTape.NEXT] = BTape.NONE;
+            nodes[offset + BTape.SIZE] = 0;
+            nodes[offset + BTape.CHILDREN] = 0;
+            if(sp > 0){
+                nodes[parents[sp - 1] * BTape.STRIDE + BTape.SIZE]++;
+                if(lastChildren[sp - 1] != BTape.NONE){
+                    nodes[lastChildren[sp - 1] * BTape.STRIDE + BTape.NEXT] = node;
+                }
+                lastChildren[sp - 1] = node;
+                if(pendingSize == pending.length){
+                    pending = Arrays.copyOf(pending, pending.length * 2);
+                }
+                pending[pendingSize++] = node;
+            }
+            return node;
+        }
+
+        private void push(int node){
+            parents[sp] = node;
+            lastChildren[sp] = BTape.NONE;
+            sp++;
+        }
+
+        @Override
+        public void startList(int start) {
+            push(add(List, start, start));
+        }
+
+        @Override
+        public void startDict(int start) {
+            push(add(Dict, start, start));
+        }
+
+        @Override
+        public void end(int end) {
+            int offset = parents[--sp] * BTape.STRIDE;
+            int size = nodes[offset + BTape.SIZE];
+            nodes[offset + BTape.END] = end;
+            if(childCount + size > children.length){
+                children = Arrays.copyOf(children, Math.max(children.length * 2, childCount + size));
+            }
+            System.arraycopy(pending, pendingSize - size, children, childCount, size);
+            nodes[offset + BTape.CHILDREN] = childCount;
+            if(nodes[offset + BTape.TAG] == Dict.ordinal() && !isSorted(childCount, size)){
+                nodes[offset + BTape.TAG] |= BTape.UNSORTED;
+            }
+            childCount += size;
+            pendingSize -= size;
+        }
+
+        private boolean isSorted(int offset, int size){
+            for(int i = 2; i < size; i += 2){
+                int prev = children[offset + i - 2] * BTape.STRIDE;
+                int key = children[offset + i] * BTape.STRIDE;
+                if(Arrays.compareUnsigned(src, nodes[prev + BTape.START], nodes[prev + BTape.END],
+                        src, nodes[key + BTape.START], nodes[key + BTape.END]) >= 0){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void intValue(long value, int start, int end) {
+            add(Int, start, end);
+        }
+
+        @Override
+        public void bytesValue(byte[] bytes, int start, int end) {
+            add(Bytes, start, end);
+        }
+
+        BTape getTape(){
+            return new BTape(src, nodes, count, children);
+        }
+    }
+
+    /**
+     * Push parser, driven one byte at a time by {@link #send(byte)} or by chunks with {@link #feed(ByteBuffer)}.
+     * A parser created with {@link #Parser(int)} keeps no source array, so input can be handed over
+     * as it arrives and byte strings are copied out of the chunks, up to a maximum length as their
+     * buffer is allocated from the length prefix.
+     */
     public static class Parser{
         private byte[] src;
-        private static int BUFFER_SIZE = 1024 * 1024;
-        private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private Builder builder;
 
         enum Context{
             ContextRoot,
@@ -198,20 +711,20 @@ public class Bencode {
             ContextInt,
             ContextBytes,
             ContextDict,
-            ContextDictKey,
             ContextDictValue,
         }
         enum State{
             StateStart,
             StateEnd,
             StateE,
-            StateColon,
             StateI,
             StateNegate,
             StateDigit,
             StateBytes,
-            StateL,
-            StateD
+        }
+        public enum Status{
+            NeedInput,
+            Complete
         }
         private State state;
 
@@ -220,6 +733,19 @@ public class Bencode {
 
         private int sp;
 
+        // offset of the current event in the source
+        private int pos;
+        // start of the int or bytes payload being read
+        private int valueStart;
+        private int bytesRemaining;
+        // int value or length prefix accumulated digit by digit
+        private long number;
+        private boolean negative;
+        // payload of the byte string being read, only used without a source array
+        private byte[] bytes;
+        // longest byte string accepted without a source array
+        private final int maxBytes;
+
         public Context context(){
             if(sp == 0){
                 return null;
@@ -229,26 +755,43 @@ public class Bencode {
         }
 
         private void push(Context context){
+            if(sp == stack.length){
+                throw new BError("Nesting exceeded limit: " + STACK_SIZE);
+            }
             stack[sp++] = context;
         }
 
-        private int vsp;
-
         public Parser(String src){
-            this.src = src.getBytes();
-            init();
+            this(src.getBytes());
         }
 
         private void init(){
             this.stack = new Context[STACK_SIZE];
             this.sp = 0;
-            this.vsp = 0;
+            this.pos = 0;
             this.state = StateStart;
             push(ContextRoot);
         }
 
         public Parser(byte[] src){
+            this(src, new ValueBuilder(src));
+        }
+
+        /**
+         * A parser fed with chunks, byte strings longer than maxBytes are rejected.
+         */
+        public Parser(int maxBytes){
+            this(null, new ValueBuilder(null), maxBytes);
+        }
+
+        Parser(byte[] src, Builder builder){
+            this(src, builder, Integer.MAX_VALUE - 8);
+        }
+
+        private Parser(byte[] src, Builder builder, int maxBytes){
             this.src = src;
+            this.builder = builder;
+            this.maxBytes = maxBytes;
             init();
         }
 
@@ -272,17 +815,11 @@ public class Bencode {
             return event == 'd';
         }
 
-        private int readBufferAsInt(){
-            byte[] bytes = new byte[buffer.position()];
-            readBuffer(bytes);
-            this.buffer.limit(BUFFER_SIZE);
-            return Integer.parseInt(new String(bytes));
-        }
-
-        private void readBuffer(byte[] bytes) {
-            buffer.flip();
-            buffer.get(bytes);
-            buffer.rewind();
+        private long readNumber(){
+            long value = negative ? -number : number;
+            number = 0;
+            negative = false;
+            return value;
         }
 
 
@@ -302,33 +839,51 @@ public class Bencode {
             return new BError(String.format("Unexpect: %s, expecting: %s", value, expectedMsg));
         }
 
-        private BValue value;
-
         private void stateStart(byte event){
+            startValue(event);
+        }
+
+        private void startValue(byte event){
             if(isI(event)){
                 push(ContextInt);
-                this.value = BValue.intValue();
+                valueStart = pos;
                 setState(StateI, event);
             }else if(isL(event)){
                 push(ContextList);
-                this.value = BValue.listValue();
-                setState(StateL, event);
+                builder.startList(pos);
+                setState(StateE, event);
             }else if(isD(event)){
-                this.value = BValue.dictValue();
                 push(ContextDict);
-                setState(StateD, event);
+                builder.startDict(pos);
+                setState(StateE, event);
             }else if(isDigit(event)){
-                this.value = BValue.bytesValue();
-                writeBuffer(event);
                 push(ContextBytes);
+                writeDigit(event);
                 setState(StateDigit, event);
             }else{
                 throw unexpected(event, "i", "l", "d", "<digit>");
             }
         }
 
-        void writeBuffer(byte event){
-            this.buffer.put(event);
+        /**
+         * Called after a value has been fully read, the enclosing dict alternates between key and value.
+         */
+        private void endValue(byte event){
+            Context context = context();
+            if(context == ContextDict){
+                stack[sp - 1] = ContextDictValue;
+            }else if(context == ContextDictValue){
+                stack[sp - 1] = ContextDict;
+            }
+            setState(context == ContextRoot ? StateEnd : StateE, event);
+        }
+
+        private void writeDigit(byte event){
+            int digit = event - '0';
+            if(number > (Long.MAX_VALUE - digit) / 10){
+                throw new BError("Int out of range at: " + pos);
+            }
+            number = number * 10 + digit;
         }
 
         public boolean isColon(byte event){
@@ -339,23 +894,36 @@ public class Bencode {
             Context context = context();
             if(context == ContextInt){
                 if(isDigit(event)){
-                    writeBuffer(event);
+                    writeDigit(event);
                     setState(StateDigit, event);
                 }else if(isE(event)){
                     pop();
-                    setState(StateE, event);
-                    // TODO handleValue
-                    value.top().intValue = readBufferAsInt();
-                    value.pop();
+                    builder.intValue(readNumber(), valueStart, pos + 1);
+                    endValue(event);
                 }else{
                     throw unexpected(event, "e", "<digit>");
                 }
             }else if(context == ContextBytes){
                 if(isDigit(event)){
-                    writeBuffer(event);
+                    writeDigit(event);
                     setState(StateDigit, event);
                 }else if(isColon(event)){
-                    setState(StateColon, event);
+                    long length = readNumber();
+                    if(length > maxBytes){
+                        throw new BError("Bytes exceeded limit: " + length);
+                    }
+                    bytesRemaining = (int) length;
+                    valueStart = pos + 1;
+                    if(src == null){
+                        bytes = new byte[bytesRemaining];
+                    }else if(bytesRemaining > src.length - valueStart){
+                        throw new BError("Bytes exceeded input: " + bytesRemaining);
+                    }
+                    if(bytesRemaining == 0){
+                        endBytes(pos + 1, event);
+                    }else{
+                        setState(StateBytes, event);
+                    }
                 }else{
                     throw unexpected(event, ":", "<digit>");
                 }
@@ -369,7 +937,7 @@ public class Bencode {
             Context context = context();
             if(context == ContextInt){
                 if(isDigit(event)){
-                    writeBuffer(event);
+                    writeDigit(event);
                     setState(StateDigit, event);
                 }else{
                     throw unexpected(event, "<digit>");
@@ -380,67 +948,33 @@ public class Bencode {
 
         }
 
-        private boolean isEOF(byte event){
-            return event == 0;
-        }
         public BValue getValue(){
-            return value;
+            return builder instanceof ValueBuilder ? ((ValueBuilder) builder).value : null;
         }
         private void stateE(byte event){
             Context context = context();
-            if(context == ContextRoot){
-                if(isEOF(event)){
-                    setState(StateEnd, event);
-                }else{
-                    throw unexpected(event, "<EOF>");
-                }
-            }else if(context == ContextList){
+            if(context == ContextList){
                 if(isE(event)){
                     pop();
-                    setState(StateE, event);
-                }else if(isI(event)){
-                    push(ContextInt);
-                    value.addListItem(BValue.intValue());
-                    setState(StateI, event);
-                }else if(isL(event)){
-                    push(ContextList);
-                    value.addListItem(BValue.listValue());
-                    setState(StateL, event);
-                }else if(isD(event)){
-                    push(ContextDict);
-                    value.addListItem(BValue.dictValue());
-                    setState(StateD, event);
-                }else if(isDigit(event)){
-                    writeBuffer(event);
-                    push(ContextBytes);
-                    value.addListItem(BValue.bytesValue());
-                    setState(StateDigit, event);
+                    builder.end(pos + 1);
+                    endValue(event);
                 }else{
-                    throw unexpected(event, "e", "i", "d", "l", "<digits>");
+                    startValue(event);
                 }
             }else if(context == ContextDict){
-                if(isEOF(event)){
-                    pop();
-                    setState(StateEnd, event);
-                }else{
-                    throw unexpected(event, "<EOF>");
-                }
-            }else if(context == ContextDictValue){
                 if(isE(event)){
                     pop();
-                    setState(StateE, event);
+                    builder.end(pos + 1);
+                    endValue(event);
                 }else if(isDigit(event)){
-                    push(ContextDictKey);
-                    push(ContextBytes);
-                    value.addDictItem();
-                    writeBuffer(event);
-                    setState(StateDigit, event);
-                }else if(isEOF(event)){
-                    pop();
-                    setState(StateEnd, event);
+                    startValue(event);
                 }else{
-                    throw unexpected(event, "e", "i", "d", "l", "<digits>");
+                    throw unexpected(event, "e", "<digit>");
                 }
+            }else if(context == ContextDictValue){
+                startValue(event);
+            }else{
+                throw invalidContext(context);
             }
 
         }
@@ -458,10 +992,10 @@ public class Bencode {
             Context top = context();
             if(top == ContextInt){
                 if(isNegate(event)){
-                    writeBuffer(event);
+                    negative = true;
                     setState(StateNegate, event);
                 }else if(isDigit(event)){
-                    writeBuffer(event);
+                    writeDigit(event);
                     setState(StateDigit, event);
                 }else{
                     throw unexpected(event, "-", "<digit>");
@@ -472,153 +1006,38 @@ public class Bencode {
 
         }
 
-        private void resetBufferLimit(int limit){
-            this.buffer.limit(limit);
-            this.buffer.position(0);
-        }
-
-        private void stateColon(byte event) {
-            Context context = context();
-            if(context == ContextBytes){
-                int length = readBufferAsInt();
-                value.top().bytesValue = new byte[length];
-                resetBufferLimit(length);
-                setState(StateBytes, event);
-                writeBuffer(event);
-            }else{
-                throw invalidContext(context);
-            }
-
-        }
-
         private void stateBytes(byte event) {
-            if(!buffer.hasRemaining()){
-                pop();
-                // TODO
-                readBuffer(value.top().bytesValue);
-                value.pop();
+            if(bytes != null){
+                bytes[bytes.length - bytesRemaining] = event;
             }
-            Context top = context();
-            if(top == ContextRoot){
-                if(isEOF(event)){
-                    setState(StateEnd, event);
-                }else {
-                    throw new BError("Bytes exceeded limit: " + value.top().bytesValue.length);
-                }
-            }else if(top == ContextList){
-                if(isI(event)){
-                    push(ContextInt);
-                    value.addListItem(BValue.intValue());
-                    setState(StateI, event);
-                }else if(isL(event)){
-                    push(ContextList);
-                    value.addListItem(BValue.listValue());
-                    setState(StateL, event);
-                }else if(isD(event)){
-                    push(ContextDict);
-                    value.addListItem(BValue.dictValue());
-                    setState(StateD, event);
-                }else if(isDigit(event)){
-                    writeBuffer(event);
-                    push(ContextBytes);
-                    value.addListItem(BValue.bytesValue());
-                    setState(StateDigit, event);
-                }else if(isE(event)){
-                    pop();
-                    value.pop();
-                    setState(StateE, event);
-                }else{
-                    throw unexpected(event, "e", "i", "l", "d", "<digit>");
-                }
-            }else if(top == ContextDictKey){
-                if(isI(event)){
-                    pop();
-                    push(ContextDictValue);
-                    push(ContextInt);
-                    value.addDictValue(BValue.intValue());
-                    setState(StateI, event);
-                }else if(isL(event)){
-                    pop();
-                    push(ContextDictValue);
-                    push(ContextList);
-                    value.addDictValue(BValue.listValue());
-                    setState(StateL, event);
-                }else if(isD(event)){
-                    pop();
-                    push(ContextDictValue);
-                    value.addDictValue(BValue.dictValue());
-                    setState(StateD, event);
-                }else if(isDigit(event)){
-                    pop();
-                    push(ContextDictValue);
-                    push(ContextBytes);
-                    writeBuffer(event);
-                    value.addDictValue(BValue.bytesValue());
-                    setState(StateDigit, event);
-                }else{
-                    throw unexpected(event, "i", "l", "d", "<digit>");
-                }
-            }else if(top == ContextDictValue){
-                if(isE(event)){
-                    pop();
-                    setState(StateE, event);
-                }else if(isDigit(event)){
-                    pop();
-                    push(ContextDictKey);
-                    push(ContextBytes);
-                    writeBuffer(event);
-                    value.addDictItem();
-                    setState(StateDigit, event);
-                }else{
-                    throw unexpected(event, "i", "l", "d", "<digit>");
-                }
-            }else {
-                setState(StateBytes, event);
-                writeBuffer(event);
+            if(--bytesRemaining == 0){
+                endBytes(pos + 1, event);
             }
         }
 
-        private void stateL(byte event) {
-            if(isI(event)){
-                push(ContextInt);
-                value.addListItem(BValue.intValue());
-                setState(StateI, event);
-            }else if(isL(event)){
-                push(ContextList);
-                value.addListItem(BValue.listValue());
-                setState(StateL, event);
-            }else if(isD(event)){
-                value.addListItem(BValue.dictValue());
-                push(ContextDict);
-                setState(StateD, event);
-            }else if(isDigit(event)){
-                value.addListItem(BValue.bytesValue());
-                push(ContextBytes);
-                setState(StateDigit, event);
-                writeBuffer(event);
-            }else if(isE(event)){
-                pop();
-                value.pop();
-                setState(StateE, event);
+        /**
+         * Fast path for byte string payloads, copies (or skips over when the source array is kept)
+         * as much of the payload as the chunk holds in one step.
+         */
+        private void readBytes(ByteBuffer chunk){
+            int length = Math.min(bytesRemaining, chunk.remaining());
+            if(bytes != null){
+                chunk.get(bytes, bytes.length - bytesRemaining, length);
             }else{
-                throw unexpected(event, "i", "l", "d", "<digit>");
+                chunk.position(chunk.position() + length);
+            }
+            pos += length;
+            bytesRemaining -= length;
+            if(bytesRemaining == 0){
+                endBytes(pos, chunk.get(chunk.position() - 1));
             }
         }
 
-        private void stateD(byte event) {
-            if(isDigit(event)){
-                push(ContextDictKey);
-                push(ContextBytes);
-                writeBuffer(event);
-                value.addDictItem();
-                setState(StateDigit, event);
-            }else if(isE(event)){
-                pop();
-                value.pop();
-                setState(StateE, event);
-            }else{
-                throw unexpected(event, "<digit>");
-            }
+        private void endBytes(int end, byte event){
+            pop();
+            builder.bytesValue(bytes, valueStart, end);
+            bytes = null;
+            endValue(event);
         }
 
 
@@ -629,12 +1048,11 @@ public class Bencode {
                 case StateNegate: stateNegate(event); break;
                 case StateDigit: stateDigit(event); break;
                 case StateE: stateE(event); break;
-                case StateColon: stateColon(event); break;
                 case StateBytes: stateBytes(event); break;
-                case StateL: stateL(event); break;
-                case StateD: stateD(event); break;
+                case StateEnd: throw unexpected(event, "<EOF>");
                 default: throw new BError("Invalid state: " + state);
             }
+            pos++;
         }
 
 
@@ -642,11 +1060,25 @@ public class Bencode {
             return this.state == State.StateEnd;
         }
 
+        /**
+         * Consumes the chunk until the top level value is complete. Bytes after the value are left in the chunk.
+         */
+        public Status feed(ByteBuffer chunk){
+            while(state != StateEnd && chunk.hasRemaining()){
+                if(state == StateBytes){
+                    readBytes(chunk);
+                }else{
+                    send(chunk.get());
+                }
+            }
+            return state == StateEnd ? Status.Complete : Status.NeedInput;
+        }
+
         public void parse(){
-            for(byte event : this.src){
-                this.send(event);
+            ByteBuffer input = ByteBuffer.wrap(this.src);
+            if(feed(input) == Status.Complete && input.hasRemaining()){
+                throw unexpected(input.get(), "<EOF>");
             }
-            this.send((byte) 0);
         }
 
         public State getState(){
@@ -661,7 +1093,17 @@ public class Bencode {
         if(!parser.accepted()){
             throw new BError("Invalid bencode input");
         }
-        return parser.value;
+        return parser.getValue();
+    }
+
+    public static BTape parseTape(byte[] bytes){
+        TapeBuilder builder = new TapeBuilder(bytes);
+        Bencode.Parser parser = new Bencode.Parser(bytes, builder);
+        parser.parse();
+        if(!parser.accepted()){
+            throw new BError("Invalid bencode input");
+        }
+        return builder.getTape();
     }
 
 
@@ -1,19 +1,38 @@
 package org.bonede.cafebit;
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
 
 public class Crypto {
-    public static byte[] sha1(byte[] input){
+    // getInstance walks the provider list on every call, keep one digest per thread, digest() resets it
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(Crypto::newSha1);
+
+    public static MessageDigest newSha1(){
         try {
-            MessageDigest sha1 = MessageDigest.getInstance("sha1");
-            return sha1.digest(input);
+            return MessageDigest.getInstance("sha1");
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
     }
 
+    public static byte[] sha1(byte[] input){
+        return sha1(input, 0, input.length);
+    }
+
+    public static byte[] sha1(byte[] input, int offset, int length){
+        MessageDigest sha1 = SHA1.get();
+        sha1.update(input, offset, length);
+        return sha1.digest();
+    }
+
+    public static byte[] sha1(ByteBuffer input){
+        MessageDigest sha1 = SHA1.get();
+        sha1.update(input);
+        return sha1.digest();
+    }
+
     public static String hex(byte[] bytes) {
         StringBuilder hexString = new StringBuilder(2 * bytes.length);
         for (byte b : bytes) {
@@ -22,6 +41,50 @@ public class Crypto {
         return hexString.toString();
     }
 
+    public static byte[] unhex(String hex) {
+        if(hex.length() % 2 != 0){
+            throw new IllegalArgumentException("Invalid hex: " + hex);
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for(int i = 0; i < bytes.length; i++){
+            int hi = Character.digit(hex.charAt(2 * i), 16);
+            int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+            if(hi < 0 || lo < 0){
+                throw new IllegalArgumentException("Invalid hex: " + hex);
+            }
+            bytes[i] = (byte) (hi << 4 | lo);
+        }
+        return bytes;
+    }
+
+    /**
+     * Decodes RFC 4648 base32 without padding, as used by magnet links.
+     */
+    public static byte[] base32(String base32) {
+        byte[] bytes = new byte[base32.length() * 5 / 8];
+        int buffer = 0;
+        int bits = 0;
+        int index = 0;
+        for(int i = 0; i < base32.length(); i++){
+            char c = Character.toUpperCase(base32.charAt(i));
+            int value;
+            if(c >= 'A' && c <= 'Z'){
+                value = c - 'A';
+            }else if(c >= '2' && c <= '7'){
+                value = c - '2' + 26;
+            }else{
+                throw new IllegalArgumentException("Invalid base32: " + base32);
+            }
+            buffer = buffer << 5 | value;
+            bits += 5;
+            if(bits >= 8){
+                bits -= 8;
+                bytes[index++] = (byte) (buffer >> bits);
+            }
+        }
+        return bytes;
+    }
+
     public static String sha1Hex(byte[] input){
         return hex(sha1(input));
     }
@@ -3,6 +3,8 @@ package org.bonede.cafebit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -11,105 +13,334 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
-public class PeerConn {
-    private Socket socket;
+public class PeerConn implements Closeable {
+    // blocking channel rather than socket streams, see BThreads
+    private SocketChannel socket;
 
 
+    // largest message accepted, a bitfield of 8M pieces
     private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int READ_AHEAD = BBufferArena.CONTROL;
+    // an unreachable peer holds its session this long at most, rather than the OS connect timeout
+    static final int CONNECT_TIMEOUT_MILLIS = 10_000;
     private ReadableByteChannel inputChannel;
     private WritableByteChannel outputChannel;
+    // both buffers are leased from the arena while there are bytes to decode or to send, and null
+    // otherwise; the locks keep close() from returning them while another thread is using them, one
+    // per direction so a thread can send while another is blocked reading
+    private final BBufferArena arena = BBufferArena.shared();
+    private final ReentrantLock inputLock = new ReentrantLock();
+    private final ReentrantLock outputLock = new ReentrantLock();
+    private volatile boolean closed;
+    // System.nanoTime of the last message header read, keep-alives included
+    private volatile long lastFrame = System.nanoTime();
+    // received bytes not yet decoded, between position and limit, direct so socket reads land in it
+    // without the JDK's temporary copy
     private ByteBuffer inputBuffer;
+    // PIECE payload bytes after the header returned by readFrame, not read yet
+    private int payloadRemaining;
+    private int pieceIndex;
+    private int pieceBegin;
+    private int frameLength;
+    // messages are encoded into outputBuffer and queued until flush(), block payloads are queued as
+    // they are, between the encoded runs, and go out in the same gathering write
     private ByteBuffer outputBuffer;
+    private final List<ByteBuffer> outbound = new ArrayList<>();
+    private int segmentStart;
 
     private static Logger logger = LoggerFactory.getLogger(PeerConn.class);
 
     private static byte[] magic = "BitTorrent protocol".getBytes();
+    private static final int HANDSHAKE_LENGTH = 68;
+
+    // BEP 10, bit 20 counted from the right of the reserved bytes
+    private static final int RESERVED_EXTENSION_BYTE = 5;
+    private static final int RESERVED_EXTENSION_BIT = 0x10;
+    private byte[] reserved;
+    private byte[] infoHash;
 
     public static PeerConn connect(String peerId,  InetSocketAddress addr, byte[] infoHash) throws IOException {
+        return connect(peerId, addr, infoHash, false);
+    }
+
+    /**
+     * Connects and handshakes, with extensions set the BEP 10 extension protocol bit is advertised.
+     */
+    public static PeerConn connect(String peerId,  InetSocketAddress addr, byte[] infoHash, boolean extensions) throws IOException {
         PeerConn conn = new PeerConn(addr);
-        conn.writeByte(19);
-        conn.writeBytes(magic);
-        conn.writeBytes(new byte[]{0, 0, 0, 0, 0, 0, 0, 0});
-        conn.writeBytes(infoHash);
-        conn.writeBytes(peerId.getBytes());
+        byte[] reserved = new byte[8];
+        if(extensions){
+            reserved[RESERVED_EXTENSION_BYTE] |= RESERVED_EXTENSION_BIT;
+        }
+        conn.reserve(HANDSHAKE_LENGTH).put((byte) magic.length).put(magic).put(reserved).put(infoHash).put(peerId.getBytes());
+        conn.flush();
 
         int magicLength = conn.readByte();
         byte[] magicBytes = conn.readBytes(magicLength);
         if(!Arrays.equals(magicBytes, magic)){
             throw new Bencode.BError("Invalid resp");
         }
-        conn.readBytes(8);
+        conn.reserved = conn.readBytes(8);
         byte[] infoHashResp = conn.readBytes(20);
         if(!Arrays.equals(infoHash, infoHashResp)){
             throw new Bencode.BError("Invalid resp");
         }
+        conn.infoHash = infoHash;
         conn.readBytes(20);
         logger.info("Peer connected {}", addr);
         return conn;
     }
 
+    /**
+     * Responder side of the handshake on an accepted connection, the reply is sent only for an info
+     * hash we serve.
+     */
+    public static PeerConn accept(String peerId, SocketChannel channel, Predicate<byte[]> serves) throws IOException {
+        PeerConn conn = new PeerConn(channel);
+        try {
+            int magicLength = conn.readByte();
+            byte[] magicBytes = conn.readBytes(magicLength);
+            if(!Arrays.equals(magicBytes, magic)){
+                throw new IOException("Invalid handshake");
+            }
+            conn.reserved = conn.readBytes(8);
+            conn.infoHash = conn.readBytes(20);
+            conn.readBytes(20);
+            if(!serves.test(conn.infoHash)){
+                throw new IOException("Unknown info hash " + Crypto.hex(conn.infoHash));
+            }
+            conn.outputLock.lock();
+            try {
+                conn.reserve(HANDSHAKE_LENGTH).put((byte) magic.length).put(magic).put(new byte[8]).put(conn.infoHash).put(peerId.getBytes());
+                conn.flush();
+            } finally {
+                conn.outputLock.unlock();
+            }
+        } catch (IOException | RuntimeException e) {
+            conn.close();
+            throw e;
+        }
+        logger.info("Peer accepted {}", channel.getRemoteAddress());
+        return conn;
+    }
+
+    public byte[] getInfoHash() {
+        return infoHash;
+    }
+
+    /**
+     * Whether the peer advertised the BEP 10 extension protocol in its handshake.
+     */
+    public boolean supportsExtensions() {
+        return (reserved[RESERVED_EXTENSION_BYTE] & RESERVED_EXTENSION_BIT) != 0;
+    }
 
     public void write(String string) throws IOException {
-        outputBuffer.clear();
-        outputBuffer.put(string.getBytes());
-        outputBuffer.flip();
-        outputChannel.write(ByteBuffer.wrap(string.getBytes()));
+        writeBytes(string.getBytes());
     }
 
     public void writeByte(int b) throws IOException {
-        outputBuffer.clear();
-        outputBuffer.put((byte) (b & 0xff));
-        outputBuffer.flip();
-        outputChannel.write(outputBuffer);
-
+        outputLock.lock();
+        try {
+            reserve(1).put((byte) (b & 0xff));
+            flush();
+        } finally {
+            outputLock.unlock();
+        }
     }
 
     public void writeInt(int b) throws IOException {
-        outputBuffer.clear();
-        outputBuffer.putInt(b);
-        outputBuffer.flip();
-        outputChannel.write(outputBuffer);
+        outputLock.lock();
+        try {
+            reserve(4).putInt(b);
+            flush();
+        } finally {
+            outputLock.unlock();
+        }
     }
 
     public void writeBytes(byte[] bytes) throws IOException {
-        outputBuffer.clear();
-        outputBuffer.put(bytes);
-        outputBuffer.flip();
-        outputChannel.write(outputBuffer);
+        outputLock.lock();
+        try {
+            reserve(bytes.length).put(bytes);
+            flush();
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    /**
+     * Room for n more bytes in the output buffer, queued bytes are flushed first when it is full.
+     * Called holding outputLock.
+     */
+    private ByteBuffer reserve(int n) throws IOException {
+        if(closed){
+            throw new ClosedChannelException();
+        }
+        if(outputBuffer != null && outputBuffer.remaining() < n){
+            flush();
+        }
+        if(outputBuffer == null){
+            outputBuffer = arena.lease(Math.max(n, BBufferArena.CONTROL));
+        }
+        return outputBuffer;
+    }
+
+    /**
+     * Ends the run of encoded bytes since the last segment, so a payload can follow it.
+     */
+    private void closeSegment(){
+        if(outputBuffer != null && outputBuffer.position() > segmentStart){
+            outbound.add(outputBuffer.duplicate().position(segmentStart).limit(outputBuffer.position()));
+            segmentStart = outputBuffer.position();
+        }
+    }
+
+    /**
+     * Writes every queued message, with a single gathering write when the channel supports it.
+     */
+    public void flush() throws IOException {
+        outputLock.lock();
+        try {
+            closeSegment();
+            if(outbound.isEmpty()){
+                return;
+            }
+            ByteBuffer[] buffers = outbound.toArray(new ByteBuffer[0]);
+            if(outputChannel instanceof GatheringByteChannel){
+                GatheringByteChannel channel = (GatheringByteChannel) outputChannel;
+                long remaining = 0;
+                for(ByteBuffer buffer : buffers){
+                    remaining += buffer.remaining();
+                }
+                while (remaining > 0){
+                    remaining -= channel.write(buffers);
+                }
+            }else{
+                for(ByteBuffer buffer : buffers){
+                    while (buffer.hasRemaining()){
+                        outputChannel.write(buffer);
+                    }
+                }
+            }
+        } finally {
+            releaseOutput();
+            outputLock.unlock();
+        }
+    }
+
+    private void releaseOutput(){
+        outbound.clear();
+        segmentStart = 0;
+        if(outputBuffer != null){
+            arena.release(outputBuffer);
+            outputBuffer = null;
+        }
+    }
+
+    /**
+     * Returns the input buffer once everything in it is decoded. Called holding inputLock.
+     */
+    private void releaseInput(boolean drainedOnly){
+        if(inputBuffer != null && (!drainedOnly || !inputBuffer.hasRemaining() && frameLength == 0)){
+            arena.release(inputBuffer);
+            inputBuffer = null;
+        }
+    }
+
+    /**
+     * Buffers at least n unread bytes. Reads ask for at most READ_AHEAD bytes past what is needed, so
+     * most of a block payload is left in the socket for {@link #readPayload(ByteBuffer)}.
+     */
+    private void fill(int n) throws IOException {
+        if(closed){
+            throw new ClosedChannelException();
+        }
+        if(inputBuffer == null){
+            inputBuffer = arena.lease(Math.max(n, READ_AHEAD)).limit(0);
+        }
+        if(inputBuffer.remaining() >= n){
+            return;
+        }
+        if(n > inputBuffer.capacity()){
+            // a message larger than the buffer, move to one that fits it
+            ByteBuffer larger = arena.lease(n);
+            larger.put(inputBuffer).flip();
+            arena.release(inputBuffer);
+            inputBuffer = larger;
+        }
+        inputBuffer.compact();
+        try {
+            while (inputBuffer.position() < n){
+                inputBuffer.limit(Math.min(inputBuffer.capacity(), Math.max(n, inputBuffer.position() + READ_AHEAD)));
+                if(inputChannel.read(inputBuffer) < 0){
+                    throw new EOFException("Connection closed by peer");
+                }
+            }
+        } finally {
+            inputBuffer.flip();
+        }
     }
 
     public int readByte() throws IOException {
-        inputBuffer.clear();
-        inputBuffer.limit(1);
-        inputChannel.read(inputBuffer);
-        inputBuffer.flip();
-        return inputBuffer.get();
+        inputLock.lock();
+        try {
+            fill(1);
+            return inputBuffer.get();
+        } finally {
+            inputLock.unlock();
+        }
     }
 
     public byte[] readBytes(int size) throws IOException {
-        inputBuffer.clear();
-        inputBuffer.limit(size);
-        byte[] bytes = new byte[size];
-        while ( inputBuffer.remaining() != 0){
-            inputChannel.read(inputBuffer);
-        }
-        inputBuffer.flip();
-        inputBuffer.get(bytes);
-        return bytes;
+        inputLock.lock();
+        try {
+            fill(size);
+            byte[] bytes = new byte[size];
+            inputBuffer.get(bytes);
+            return bytes;
+        } finally {
+            inputLock.unlock();
+        }
     }
+
     private String peerId;
 
     private PeerConn(InetSocketAddress addr) throws IOException {
-        socket = new Socket(addr.getAddress(), addr.getPort());
-        this.peerId = peerId;
-        inputBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-        outputBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-        inputChannel = Channels.newChannel(socket.getInputStream());
-        outputChannel = Channels.newChannel(socket.getOutputStream());
+        this(open(addr));
+    }
+
+    private static SocketChannel open(InetSocketAddress addr) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(addr, CONNECT_TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    private PeerConn(SocketChannel socket) {
+        this.socket = socket;
+        inputChannel = socket;
+        outputChannel = socket;
+    }
+
+    /**
+     * Connection over already connected channels, no handshake.
+     */
+    PeerConn(ReadableByteChannel inputChannel, WritableByteChannel outputChannel) {
+        this.inputChannel = inputChannel;
+        this.outputChannel = outputChannel;
     }
 
     public int readMsgLength() throws IOException {
@@ -117,18 +348,171 @@ public class PeerConn {
     }
 
     public int readInt() throws IOException {
-        byte[] bytes = readBytes(4);
-        return ByteBuffer.wrap(bytes).getInt();
+        inputLock.lock();
+        try {
+            fill(4);
+            return inputBuffer.getInt();
+        } finally {
+            inputLock.unlock();
+        }
+    }
+
+    static final int M_CHOKE = 0;
+    static final int M_BITFIELD = 5;
+    static final int M_UNCHOKE = 1;
+    static final int M_INTERESTED  = 2;
+    static final int M_NOT_INTERESTED = 3;
+    static final int M_REQUEST = 6;
+    static final int M_CANCEL = 8;
+    static final int M_HAVE = 4;
+    static final int M_PIECE = 7;
+    private static int M_EXTENDED = 20;
+    public static final int EXT_HANDSHAKE = 0;
+
+    /**
+     * Reads the next message without copying it out of the receive buffer. A PIECE is read up to its
+     * block, which must then be read with {@link #readPayload(ByteBuffer)} or {@link #skipPayload()}.
+     * Any other message is read whole, see {@link #payload()}.
+     * @return the message id, -1 for a keep-alive
+     */
+    public int readFrame() throws IOException {
+        inputLock.lock();
+        try {
+            if(payloadRemaining > 0){
+                throw new IllegalStateException("Payload not read: " + payloadRemaining);
+            }
+            if(frameLength > 0){
+                // the previous message's payload, when the caller didn't want it
+                inputBuffer.position(inputBuffer.position() + frameLength);
+                frameLength = 0;
+            }
+            int length = readInt();
+            lastFrame = System.nanoTime();
+            if(length < 0 || length > BUFFER_SIZE){
+                throw new IOException("Invalid message length: " + length);
+            }
+            if(length == 0){
+                return -1;
+            }
+            int id = readByte();
+            if(id == M_PIECE){
+                if(length < 9){
+                    throw new IOException("Invalid piece message length: " + length);
+                }
+                pieceIndex = readInt();
+                pieceBegin = readInt();
+                payloadRemaining = length - 9;
+                return M_PIECE;
+            }
+            fill(length - 1);
+            frameLength = length - 1;
+            return id;
+        } finally {
+            inputLock.unlock();
+        }
+    }
+
+    /**
+     * Payload of the message returned by readFrame, valid until the next read.
+     */
+    public ByteBuffer payload() {
+        inputLock.lock();
+        try {
+            ByteBuffer payload = inputBuffer.slice(inputBuffer.position(), frameLength);
+            inputBuffer.position(inputBuffer.position() + frameLength);
+            frameLength = 0;
+            return payload;
+        } finally {
+            inputLock.unlock();
+        }
+    }
+
+    /**
+     * System.nanoTime when the last message from the peer began arriving, or of the connection.
+     */
+    public long getLastFrame() {
+        return lastFrame;
     }
 
-    private static int M_BITFIELD = 5;
-    private static int M_UNCHOKE = 1;
-    private static int M_INTERESTED  = 2;
-    private static int M_REQUEST = 6;
-    private static int M_PIECE = 7;
+    public int getPieceIndex() {
+        return pieceIndex;
+    }
+
+    public int getPieceBegin() {
+        return pieceBegin;
+    }
+
+    /**
+     * Length of the block of the PIECE returned by readFrame.
+     */
+    public int getPayloadLength() {
+        return payloadRemaining;
+    }
+
+    /**
+     * Reads the block of the PIECE returned by readFrame into dst, which must have exactly its length
+     * remaining. Bytes already buffered are copied, the rest is read from the socket straight into dst.
+     */
+    public void readPayload(ByteBuffer dst) throws IOException {
+        inputLock.lock();
+        try {
+            if(closed){
+                throw new ClosedChannelException();
+            }
+            if(dst.remaining() != payloadRemaining){
+                throw new IllegalArgumentException("Payload is " + payloadRemaining + " bytes, buffer has room for " + dst.remaining());
+            }
+            int buffered = Math.min(payloadRemaining, inputBuffer.remaining());
+            int limit = inputBuffer.limit();
+            inputBuffer.limit(inputBuffer.position() + buffered);
+            dst.put(inputBuffer);
+            inputBuffer.limit(limit);
+            payloadRemaining -= buffered;
+            // nothing left to decode until the block is in, the rest of it needs no buffer
+            releaseInput(true);
+            while (dst.hasRemaining()){
+                int n = inputChannel.read(dst);
+                if(n < 0){
+                    throw new EOFException("Connection closed by peer");
+                }
+                payloadRemaining -= n;
+            }
+        } finally {
+            inputLock.unlock();
+        }
+    }
+
+    /**
+     * Drops the block of the PIECE returned by readFrame, for a block we no longer want.
+     */
+    public void skipPayload() throws IOException {
+        inputLock.lock();
+        try {
+            while (payloadRemaining > 0){
+                fill(1);
+                int n = Math.min(payloadRemaining, inputBuffer.remaining());
+                inputBuffer.position(inputBuffer.position() + n);
+                payloadRemaining -= n;
+            }
+            releaseInput(true);
+        } finally {
+            inputLock.unlock();
+        }
+    }
 
     public byte[] readBitfield() throws IOException {
+        // the most pieces a message of BUFFER_SIZE has bits for
+        return readBitfield((BUFFER_SIZE - 1) * 8);
+    }
+
+    /**
+     * Reads the BITFIELD of a torrent of pieceNum pieces, a longer one is rejected before it is read.
+     */
+    public byte[] readBitfield(int pieceNum) throws IOException {
         int messageLen = readMsgLength();
+        if(messageLen < 1 || messageLen > (pieceNum + 7) / 8 + 1){
+            throw new IOException("Invalid bitfield length: " + messageLen);
+        }
         int mid = readByte();
         if(mid != M_BITFIELD){
             throw new IOException("Message is not bit field: " + mid);
@@ -157,21 +541,204 @@ public class PeerConn {
         return bytes;
     }
 
+    /**
+     * Reads the next message, id followed by payload, an empty array for keep-alive.
+     */
+    public byte[] readMessage() throws IOException {
+        int len = readMsgLength();
+        if(len < 0 || len > BUFFER_SIZE){
+            throw new IOException("Invalid message length: " + len);
+        }
+        return readBytes(len);
+    }
+
+    public void writeMessage(int id, byte[] payload) throws IOException {
+        queueMessage(id, payload);
+        flush();
+    }
+
+    /**
+     * Queues a message for the next flush.
+     */
+    public void queueMessage(int id, byte[] payload) throws IOException {
+        outputLock.lock();
+        try {
+            reserve(5 + payload.length).putInt(payload.length + 1).put((byte) id).put(payload);
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    public void queueRequest(int pieceIndex, int begin, int blockSize) throws IOException {
+        outputLock.lock();
+        try {
+            reserve(17).putInt(13).put((byte) M_REQUEST).putInt(pieceIndex).putInt(begin).putInt(blockSize);
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    public void queueCancel(int pieceIndex, int begin, int blockSize) throws IOException {
+        outputLock.lock();
+        try {
+            reserve(17).putInt(13).put((byte) M_CANCEL).putInt(pieceIndex).putInt(begin).putInt(blockSize);
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    public void queueHave(int pieceIndex) throws IOException {
+        outputLock.lock();
+        try {
+            reserve(9).putInt(5).put((byte) M_HAVE).putInt(pieceIndex);
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    /**
+     * Queues a PIECE message, the block is written from the buffer as it is without copying, it must
+     * not change before the next flush.
+     */
+    public void queuePiece(int pieceIndex, int begin, ByteBuffer block) throws IOException {
+        outputLock.lock();
+        try {
+            reserve(13).putInt(9 + block.remaining()).put((byte) M_PIECE).putInt(pieceIndex).putInt(begin);
+            closeSegment();
+            outbound.add(block);
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    public void sendExtended(int extId, byte[] payload) throws IOException {
+        byte[] msg = new byte[payload.length + 1];
+        msg[0] = (byte) extId;
+        System.arraycopy(payload, 0, msg, 1, payload.length);
+        writeMessage(M_EXTENDED, msg);
+    }
+
+    /**
+     * Reads up to the next extended message and returns it positioned at the extended message id,
+     * other messages are skipped.
+     */
+    public ByteBuffer readExtended() throws IOException {
+        while (true){
+            byte[] msg = readMessage();
+            if(msg.length > 1 && msg[0] == M_EXTENDED){
+                return ByteBuffer.wrap(msg, 1, msg.length - 1);
+            }
+        }
+    }
+
+    /**
+     * Exchanges BEP 10 extension handshakes and returns the peer's handshake dict.
+     */
+    public Bencode.BValue extendedHandshake(Bencode.BValue handshake) throws IOException {
+        if(!supportsExtensions()){
+            throw new IOException("Peer doesn't support extensions");
+        }
+        sendExtended(EXT_HANDSHAKE, handshake.encode());
+        while (true){
+            ByteBuffer msg = readExtended();
+            if(msg.get() == EXT_HANDSHAKE){
+                byte[] payload = new byte[msg.remaining()];
+                msg.get(payload);
+                Bencode.BValue value = Bencode.parse(payload);
+                if(value.getTag() != Bencode.BValueTag.Dict){
+                    throw new IOException("Invalid extension handshake");
+                }
+                return value;
+            }
+        }
+    }
+
     public void sendInterested() throws IOException {
-        writeInt(1);
-        writeByte(M_INTERESTED);
+        outputLock.lock();
+        try {
+            reserve(5).putInt(1).put((byte) M_INTERESTED);
+            flush();
+        } finally {
+            outputLock.unlock();
+        }
     }
 
+    public void sendBitfield(byte[] bitfield) throws IOException {
+        writeMessage(M_BITFIELD, bitfield);
+    }
+
+    public void sendHave(int pieceIndex) throws IOException {
+        outputLock.lock();
+        try {
+            queueHave(pieceIndex);
+            flush();
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    public void sendChoke() throws IOException {
+        writeMessage(M_CHOKE, new byte[0]);
+    }
+
+    public void sendUnchoke() throws IOException {
+        writeMessage(M_UNCHOKE, new byte[0]);
+    }
+
+    /**
+     * Sends a PIECE message, the block goes from the files to the socket with transferTo without
+     * entering the heap. Channels other than a socket get a plain copy from the JDK.
+     */
+    public void sendPiece(int pieceIndex, int begin, int length, BStorage storage) throws IOException {
+        outputLock.lock();
+        try {
+            reserve(13).putInt(9 + length).put((byte) M_PIECE).putInt(pieceIndex).putInt(begin);
+            flush();
+            storage.transferTo(pieceIndex, begin, length, outputChannel);
+        } finally {
+            outputLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the connection and returns its buffers, a thread blocked on the connection fails first.
+     */
     public void close() throws IOException {
-        this.socket.close();
+        try {
+            if(socket != null){
+                socket.close();
+            }else{
+                inputChannel.close();
+                outputChannel.close();
+            }
+        } finally {
+            inputLock.lock();
+            try {
+                closed = true;
+                frameLength = 0;
+                releaseInput(false);
+            } finally {
+                inputLock.unlock();
+            }
+            outputLock.lock();
+            try {
+                releaseOutput();
+            } finally {
+                outputLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Sends a block request without waiting for the reply, for pipelining requests.
+     */
+    public void sendRequest(int pieceIndex, int begin, int blockSize) throws IOException {
+        queueRequest(pieceIndex, begin, blockSize);
+        flush();
     }
 
     public byte[] downloadBlock(int pieceIndex, int begin, int blockSize) throws IOException {
-        writeInt(13);
-        writeByte(M_REQUEST);
-        writeInt(pieceIndex);
-        writeInt(begin);
-        writeInt(blockSize);
+        sendRequest(pieceIndex, begin, blockSize);
         logger.info("download request sent piece {}, offset {}", pieceIndex, begin);
         return readBlock();
     }
@@ -0,0 +1,61 @@
+package org.bonede.cafebit;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BBufferArenaTest {
+
+    @Test
+    public void sizeClasses() {
+        BBufferArena arena = new BBufferArena();
+        ByteBuffer handshake = arena.lease(68);
+        ByteBuffer control = arena.lease(17);
+        ByteBuffer block = arena.lease(16 * 1024 + 13);
+        assertEquals(BBufferArena.HANDSHAKE, handshake.capacity());
+        assertEquals(BBufferArena.HANDSHAKE, control.capacity());
+        assertEquals(BBufferArena.BLOCK, block.capacity());
+        assertEquals(BBufferArena.CONTROL, arena.lease(200).capacity());
+        assertTrue(block.isDirect());
+        assertEquals(4, arena.getLeased());
+        // one slab per class so far
+        assertTrue(arena.getSlabBytes() <= 3 * 1024 * 1024);
+
+        // too large for any class, not pooled
+        ByteBuffer large = arena.lease(100_000);
+        assertEquals(100_000, large.capacity());
+        arena.release(large);
+        assertEquals(4, arena.getLeased());
+
+        block.putInt(42);
+        arena.release(block);
+        ByteBuffer again = arena.lease(16 * 1024);
+        assertSame(block, again);
+        assertEquals(0, again.position());
+        assertEquals(again.capacity(), again.limit());
+    }
+
+    @Test
+    public void slabsAreShared() {
+        BBufferArena arena = new BBufferArena();
+        ByteBuffer[] buffers = new ByteBuffer[1000];
+        for(int i = 0; i < buffers.length; i++){
+            buffers[i] = arena.lease(BBufferArena.CONTROL);
+            buffers[i].putInt(0, i);
+        }
+        // a thousand connections in a few slabs, each buffer its own memory
+        assertTrue(arena.getSlabBytes() <= 4 * 1024 * 1024);
+        for(int i = 0; i < buffers.length; i++){
+            assertEquals(i, buffers[i].getInt(0));
+            arena.release(buffers[i]);
+        }
+        assertEquals(0, arena.getLeased());
+        long slabs = arena.getSlabBytes();
+        for(int i = 0; i < buffers.length; i++){
+            buffers[i] = arena.lease(BBufferArena.CONTROL);
+        }
+        assertEquals(slabs, arena.getSlabBytes());
+    }
+}
@@ -0,0 +1,46 @@
+package org.bonede.cafebit;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BCatalogTest {
+
+    @Test
+    public void load() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("cafebit");
+        byte[] multi = BTorrentTest.multiFileTorrent(16, 10, 0, 30, 5);
+        byte[] a = BTorrentTest.v2Data(40000, 1);
+        byte[] v2 = BTorrentTest.v2Torrent(a, BTorrentTest.v2Data(1000, 2), BTorrentTest.v2Layer(a));
+        Files.write(dir.resolve("a.torrent"), multi);
+        Files.write(dir.resolve("b.torrent"), v2);
+        Files.write(dir.resolve("c.torrent"), "d4:infoi1e".getBytes());
+        Files.write(dir.resolve("d.txt"), multi);
+
+        BCatalog catalog = BCatalog.load(dir, 2);
+
+        assertEquals(2, catalog.size());
+        assertEquals(1, catalog.getFailed().size());
+        assertEquals("c.torrent", catalog.getFailed().get(0).getFileName().toString());
+
+        BCatalog.BEntry entry = catalog.getEntries().get(0);
+        BTorrent expected = new BTorrent(multi);
+        assertEquals("multi", entry.getName());
+        assertEquals(45, entry.getLength());
+        assertArrayEquals(expected.getInfoHash(), entry.getInfoHash());
+        assertFalse(entry.isLoaded());
+        assertSame(entry, catalog.get(expected.getInfoHash()));
+        assertEquals(3, entry.getTorrent().getPieceNum());
+        assertTrue(entry.isLoaded());
+        assertSame(entry.getTorrent(), entry.getTorrent());
+
+        BCatalog.BEntry v2Entry = catalog.get(new BTorrent(v2).getInfoHash());
+        assertEquals("v2", v2Entry.getName());
+        assertEquals(66536, v2Entry.getLength());
+        assertNull(catalog.get(new byte[20]));
+    }
+}
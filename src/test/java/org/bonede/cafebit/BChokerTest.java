@@ -0,0 +1,155 @@
+package org.bonede.cafebit;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BChokerTest {
+    private static final long MINUTE = 60_000_000_000L;
+
+    private static class TestPeer implements BChoker.Peer {
+        final double rate;
+        final long connected;
+        boolean interested = true;
+
+        TestPeer(double rate, long connected) {
+            this.rate = rate;
+            this.connected = connected;
+        }
+
+        @Override
+        public boolean isInterested() {
+            return interested;
+        }
+
+        @Override
+        public double getRate(long nanos) {
+            return rate;
+        }
+
+        @Override
+        public long getConnected() {
+            return connected;
+        }
+    }
+
+    private static List<TestPeer> peers(int n){
+        List<TestPeer> peers = new ArrayList<>();
+        for(int i = 0; i < n; i++){
+            peers.add(new TestPeer(i * 1000, 0));
+        }
+        return peers;
+    }
+
+    @Test
+    void fastestGetSlots() {
+        BChoker choker = new BChoker(4, new Random(1));
+        List<TestPeer> peers = peers(10);
+        long now = 10 * MINUTE;
+        Set<TestPeer> unchoke = choker.unchoke(peers, now);
+        assertEquals(5, unchoke.size());
+        assertTrue(unchoke.containsAll(peers.subList(6, 10)));
+    }
+
+    @Test
+    void uninterestedStayChoked() {
+        BChoker choker = new BChoker(4, new Random(1));
+        List<TestPeer> peers = peers(10);
+        peers.get(9).interested = false;
+        for(int i = 0; i < 5; i++){
+            peers.get(i).interested = false;
+        }
+        Set<TestPeer> unchoke = choker.unchoke(peers, 10 * MINUTE);
+        assertEquals(Set.copyOf(peers.subList(5, 9)), unchoke);
+    }
+
+    @Test
+    void optimisticSlotRotates() {
+        BChoker choker = new BChoker(2, new Random(3));
+        List<TestPeer> peers = peers(12);
+        long now = 10 * MINUTE;
+        Set<TestPeer> tried = new HashSet<>();
+        TestPeer optimistic = null;
+        for(int round = 0; round < 60; round++){
+            Set<TestPeer> unchoke = choker.unchoke(peers, now);
+            assertEquals(3, unchoke.size());
+            assertTrue(unchoke.containsAll(peers.subList(10, 12)));
+            unchoke.removeAll(peers.subList(10, 12));
+            TestPeer current = unchoke.iterator().next();
+            if(round % BChoker.OPTIMISTIC_ROUNDS != 0){
+                // kept for the whole period
+                assertSame(optimistic, current);
+            }
+            optimistic = current;
+            tried.add(current);
+            now += BChoker.ROUND_NANOS;
+        }
+        assertTrue(tried.size() >= 6, "tried " + tried.size());
+    }
+
+    @Test
+    void optimisticReplacedWhenGone() {
+        BChoker choker = new BChoker(1, new Random(5));
+        List<TestPeer> peers = peers(4);
+        Set<TestPeer> unchoke = choker.unchoke(peers, 10 * MINUTE);
+        unchoke.remove(peers.get(3));
+        TestPeer optimistic = unchoke.iterator().next();
+        optimistic.interested = false;
+        unchoke = choker.unchoke(peers, 10 * MINUTE + BChoker.ROUND_NANOS);
+        assertEquals(2, unchoke.size());
+        assertFalse(unchoke.contains(optimistic));
+    }
+
+    @Test
+    void replacementKeptForFullPeriod() {
+        BChoker choker = new BChoker(1, new Random(5));
+        List<TestPeer> peers = peers(12);
+        long now = 10 * MINUTE;
+        Set<TestPeer> unchoke = choker.unchoke(peers, now);
+        unchoke.remove(peers.get(11));
+        unchoke.iterator().next().interested = false;
+        // replaced in the middle of a period, the replacement gets a whole period of its own
+        now += BChoker.ROUND_NANOS;
+        unchoke = choker.unchoke(peers, now);
+        unchoke.remove(peers.get(11));
+        TestPeer replacement = unchoke.iterator().next();
+        for(int round = 1; round < BChoker.OPTIMISTIC_ROUNDS; round++){
+            now += BChoker.ROUND_NANOS;
+            assertTrue(choker.unchoke(peers, now).contains(replacement), "round " + round);
+        }
+    }
+
+    @Test
+    void newPeersFavored() {
+        BChoker choker = new BChoker(1, new Random(7));
+        long now = 10 * MINUTE;
+        List<TestPeer> peers = peers(11);
+        TestPeer newcomer = new TestPeer(0, now - 1000);
+        peers.add(newcomer);
+        int picked = 0;
+        int rounds = 3000;
+        for(int round = 0; round < rounds * BChoker.OPTIMISTIC_ROUNDS; round++){
+            if(round % BChoker.OPTIMISTIC_ROUNDS == 0 && choker.unchoke(peers, now).contains(newcomer)){
+                picked++;
+            }else if(round % BChoker.OPTIMISTIC_ROUNDS != 0){
+                choker.unchoke(peers, now);
+            }
+        }
+        // 3 of 13 weights against 1 of 11 for an old peer
+        assertEquals(3.0 / 13, (double) picked / rounds, 0.03);
+    }
+
+    @Test
+    void fewerPeersThanSlots() {
+        BChoker choker = new BChoker(4, new Random(1));
+        List<TestPeer> peers = peers(3);
+        assertEquals(Set.copyOf(peers), choker.unchoke(peers, 10 * MINUTE));
+        assertTrue(choker.unchoke(List.<TestPeer>of(), 10 * MINUTE).isEmpty());
+    }
+}
@@ -1,9 +1,23 @@
 package org.bonede.cafebit;
 
+import com.sun.net.httpserver.HttpServer;
 import org.junit.jupiter.api.Test;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -31,4 +45,155 @@ class BClientTest {
         BClient client = new BClient();
         client.download(new BTask(bTorrent, "/data/download"));
     }
-}
\ No newline at end of file
+
+    /**
+     * Tracker answering every announce with the given peers in compact form.
+     */
+    static HttpServer tracker(InetSocketAddress... peers) throws IOException {
+        ByteBuffer compact = ByteBuffer.allocate(peers.length * 6);
+        for(InetSocketAddress peer : peers){
+            compact.put(peer.getAddress().getAddress()).putShort((short) peer.getPort());
+        }
+        byte[] resp = Bencode.BValue.dictValue()
+                .put("interval", Bencode.BValue.intValue(1800))
+                .put("complete", Bencode.BValue.intValue(peers.length))
+                .put("incomplete", Bencode.BValue.intValue(0))
+                .put("min interval", Bencode.BValue.intValue(60))
+                .put("peers", Bencode.BValue.bytesValue(compact.array()))
+                .encode();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/announce", exchange -> {
+            exchange.sendResponseHeaders(200, resp.length);
+            exchange.getResponseBody().write(resp);
+            exchange.close();
+        });
+        server.start();
+        return server;
+    }
+
+    static String announce(HttpServer tracker) {
+        return "http://127.0.0.1:" + tracker.getAddress().getPort() + "/announce";
+    }
+
+    /**
+     * Peer seeding the given pieces of data, the torrent's content in one array. Requests that
+     * arrived together are answered in reverse order.
+     */
+    static InetSocketAddress seed(BTorrent torrent, byte[] data, BitSet pieces) throws IOException {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(() -> {
+            try (server; Socket socket = server.accept()) {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                in.readFully(new byte[68]);
+                out.write(19);
+                out.write("BitTorrent protocol".getBytes());
+                out.write(new byte[8]);
+                out.write(torrent.getInfoHash());
+                out.write("-XX0000-000000000000".getBytes());
+                byte[] bitfield = new byte[(torrent.getPieceNum() + 7) / 8];
+                for(int i = pieces.nextSetBit(0); i >= 0; i = pieces.nextSetBit(i + 1)){
+                    bitfield[i / 8] |= (byte) (0x80 >>> (i % 8));
+                }
+                out.writeInt(1 + bitfield.length);
+                out.write(5);
+                out.write(bitfield);
+                out.flush();
+                Deque<int[]> requests = new ArrayDeque<>();
+                while (true){
+                    byte[] msg = new byte[in.readInt()];
+                    in.readFully(msg);
+                    if(msg.length == 1 && msg[0] == 2){
+                        out.writeInt(1);
+                        out.write(1);
+                    }else if(msg.length == 13 && msg[0] == 6){
+                        ByteBuffer request = ByteBuffer.wrap(msg, 1, 12);
+                        requests.push(new int[]{request.getInt(), request.getInt(), request.getInt()});
+                    }
+                    if(in.available() > 0){
+                        continue;
+                    }
+                    for(int[] request; (request = requests.poll()) != null; ){
+                        out.writeInt(9 + request[2]);
+                        out.write(7);
+                        out.writeInt(request[0]);
+                        out.writeInt(request[1]);
+                        out.write(data, (int) ((long) request[0] * torrent.getPieceLength() + request[1]), request[2]);
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // downloader closed the connection
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+    }
+
+    @Test
+    void downloadFromLocalSeeds() throws IOException, InterruptedException {
+        downloadFromLocalSeeds(BThreads.Mode.Virtual);
+    }
+
+    @Test
+    void downloadOnEventLoops() throws IOException, InterruptedException {
+        downloadFromLocalSeeds(BThreads.Mode.EventLoop);
+    }
+
+    private static void downloadFromLocalSeeds(BThreads.Mode mode) throws IOException, InterruptedException {
+        Random random = new Random(7);
+        Path root = Files.createTempDirectory("cafebit");
+        Path dir = root.resolve("data");
+        Files.createDirectories(dir);
+        byte[] a = new byte[200_000];
+        byte[] b = new byte[150_000];
+        random.nextBytes(a);
+        random.nextBytes(b);
+        Files.write(dir.resolve("a.bin"), a);
+        Files.write(dir.resolve("b.bin"), b);
+        byte[] data = ByteBuffer.allocate(a.length + b.length).put(a).put(b).array();
+
+        BTorrent probe = new BTorrentBuilder(dir).pieceLength(32 * 1024).buildTorrent();
+        BitSet all = new BitSet();
+        all.set(0, probe.getPieceNum());
+        BitSet firstHalf = new BitSet();
+        firstHalf.set(0, probe.getPieceNum() / 2);
+        InetSocketAddress[] seeds = {seed(probe, data, all), seed(probe, data, firstHalf), seed(probe, data, all)};
+        HttpServer tracker = tracker(seeds);
+        try {
+            BTorrent bTorrent = new BTorrentBuilder(dir).pieceLength(32 * 1024).announce(announce(tracker)).buildTorrent();
+            Path dst = root.resolve("download");
+            BTask task = new BTask(bTorrent, dst.toString());
+            try(BClient client = new BClient(mode, 2)){
+                client.download(task);
+            }
+            assertArrayEquals(a, Files.readAllBytes(dst.resolve("data").resolve("a.bin")));
+            assertArrayEquals(b, Files.readAllBytes(dst.resolve("data").resolve("b.bin")));
+            assertEquals(bTorrent.getLength(), task.getDownloaded());
+        } finally {
+            tracker.stop(0);
+        }
+    }
+
+    @Test
+    void downloadHybrid() throws IOException, InterruptedException {
+        byte[] a = BTorrentTest.v2Data(40000, 1);
+        byte[] b = BTorrentTest.v2Data(1000, 2);
+        BTorrent probe = new BTorrent(BTorrentTest.hybridTorrent(a, b, null));
+        BitSet all = new BitSet();
+        all.set(0, probe.getPieceNum());
+        HttpServer tracker = tracker(seed(probe, BTorrentTest.hybridData(a, b), all));
+        try {
+            BTorrent bTorrent = new BTorrent(BTorrentTest.hybridTorrent(a, b, announce(tracker)));
+            Path dst = Files.createTempDirectory("cafebit");
+            BTask task = new BTask(bTorrent, dst.toString());
+            new BClient(BThreads.Mode.Virtual, 2).download(task);
+            assertArrayEquals(a, Files.readAllBytes(dst.resolve("hybrid").resolve("a")));
+            assertArrayEquals(b, Files.readAllBytes(dst.resolve("hybrid").resolve("b")));
+            assertFalse(Files.exists(dst.resolve("hybrid").resolve(".pad")));
+        } finally {
+            tracker.stop(0);
+        }
+    }
+}
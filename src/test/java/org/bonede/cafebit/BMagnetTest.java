@@ -0,0 +1,43 @@
+package org.bonede.cafebit;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BMagnetTest {
+
+    @Test
+    public void parseHex() {
+        BMagnet magnet = new BMagnet("magnet:?xt=urn:btih:c9e15763f722f23e98a29decdfae341b98d53056"
+                + "&dn=Cosmos+Laundromat&tr=udp%3A%2F%2Fexplodie.org%3A6969&tr=http%3A%2F%2Ftracker%2Fannounce");
+        assertEquals("c9e15763f722f23e98a29decdfae341b98d53056", Crypto.hex(magnet.getInfoHash()));
+        assertNull(magnet.getInfoHashV2());
+        assertEquals("Cosmos Laundromat", magnet.getName());
+        assertEquals(List.of("udp://explodie.org:6969", "http://tracker/announce"), magnet.getTrackers());
+    }
+
+    @Test
+    public void parseBase32() {
+        BMagnet magnet = new BMagnet("magnet:?xt=urn:btih:ZHQVOY7XELZD5GFCTXWN7LRUDOMNKMCW");
+        assertEquals("c9e15763f722f23e98a29decdfae341b98d53056", Crypto.hex(magnet.getInfoHash()));
+        assertNull(magnet.getName());
+        assertTrue(magnet.getTrackers().isEmpty());
+    }
+
+    @Test
+    public void parseV2() {
+        String hash = "caf1e1c30e81cb361b9ee167c4aa64228a7fa4fa9f6105232b28ad099f3a302e";
+        BMagnet magnet = new BMagnet("magnet:?xt=urn:btmh:1220" + hash + "&dn=bittorrent-v2-test");
+        assertEquals(hash, Crypto.hex(magnet.getInfoHashV2()));
+        assertEquals(hash.substring(0, 40), Crypto.hex(magnet.getInfoHash()));
+    }
+
+    @Test
+    public void invalid() {
+        assertThrows(BTorrent.BTorrentError.class, () -> new BMagnet("http://example.com"));
+        assertThrows(BTorrent.BTorrentError.class, () -> new BMagnet("magnet:?dn=name"));
+        assertThrows(BTorrent.BTorrentError.class, () -> new BMagnet("magnet:?xt=urn:btih:abcd"));
+    }
+}
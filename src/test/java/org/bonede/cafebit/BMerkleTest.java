@@ -0,0 +1,56 @@
+package org.bonede.cafebit;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BMerkleTest {
+
+    @Test
+    public void height() {
+        assertEquals(0, BMerkle.height(1));
+        assertEquals(1, BMerkle.height(2));
+        assertEquals(2, BMerkle.height(3));
+        assertEquals(10, BMerkle.height(1024));
+    }
+
+    @Test
+    public void verifyBlocks() {
+        int block = BMerkle.BLOCK_SIZE;
+        byte[] a = BTorrentTest.v2Data(40000, 1);
+        byte[] b = BTorrentTest.v2Data(1000, 2);
+        BTorrent bTorrent = new BTorrent(BTorrentTest.v2Torrent(a, b, BTorrentTest.v2Layer(a)));
+
+        BMerkle.BPieceVerifier last = bTorrent.newPieceVerifier(1);
+        assertEquals(1, last.getBlockNum());
+        assertTrue(last.addBlock(0, ByteBuffer.wrap(a, 2 * block, a.length - 2 * block)));
+        assertTrue(last.verify());
+
+        BMerkle.BPieceVerifier small = bTorrent.newPieceVerifier(2);
+        assertTrue(small.addBlock(0, ByteBuffer.wrap(b)));
+        assertTrue(small.verify());
+
+        byte[] bad = Arrays.copyOfRange(a, block, 2 * block);
+        bad[100] ^= 1;
+        BMerkle.BPieceVerifier first = bTorrent.newPieceVerifier(0);
+        first.addBlock(0, ByteBuffer.wrap(a, 0, block));
+        first.addBlock(1, ByteBuffer.wrap(bad));
+        assertTrue(first.isComplete());
+        assertFalse(first.verify());
+
+        // once the block layer is known the bad block is found, and further bad blocks are rejected on arrival
+        byte[] hashes = new byte[64];
+        System.arraycopy(BTorrentTest.sha256(Arrays.copyOfRange(a, 0, block)), 0, hashes, 0, 32);
+        System.arraycopy(BTorrentTest.sha256(Arrays.copyOfRange(a, block, 2 * block)), 0, hashes, 32, 32);
+        assertFalse(first.setBlockHashes(new byte[64]));
+        assertTrue(first.setBlockHashes(hashes));
+        assertTrue(first.isBlockReceived(0));
+        assertFalse(first.isBlockReceived(1));
+        assertFalse(first.addBlock(1, ByteBuffer.wrap(bad)));
+        assertTrue(first.addBlock(1, ByteBuffer.wrap(a, block, block)));
+        assertTrue(first.verify());
+    }
+}
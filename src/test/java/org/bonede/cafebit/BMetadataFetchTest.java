@@ -0,0 +1,146 @@
+package org.bonede.cafebit;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BMetadataFetchTest {
+
+    /**
+     * Peer serving the info dict over ut_metadata, or rejecting every request.
+     */
+    private static InetSocketAddress servePeer(byte[] info, byte[] infoHash, boolean reject) throws IOException {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(() -> {
+            try (server; Socket socket = server.accept()) {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                in.readFully(new byte[68]);
+                out.write(19);
+                out.write("BitTorrent protocol".getBytes());
+                out.write(new byte[]{0, 0, 0, 0, 0, 0x10, 0, 0});
+                out.write(infoHash);
+                out.write("-XX0000-000000000000".getBytes());
+                sendExtended(out, 0, Bencode.BValue.dictValue()
+                        .put("m", Bencode.BValue.dictValue().put("ut_metadata", Bencode.BValue.intValue(3)))
+                        .put("metadata_size", Bencode.BValue.intValue(info.length))
+                        .encode(), new byte[0]);
+                while (true){
+                    byte[] msg = new byte[in.readInt()];
+                    in.readFully(msg);
+                    if(msg.length < 2 || msg[0] != 20 || msg[1] != 3){
+                        continue;
+                    }
+                    int piece = (int) Bencode.parse(Arrays.copyOfRange(msg, 2, msg.length)).get("piece").getIntValue();
+                    Bencode.BValue resp = Bencode.BValue.dictValue()
+                            .put("msg_type", Bencode.BValue.intValue(reject ? 2 : 1))
+                            .put("piece", Bencode.BValue.intValue(piece));
+                    byte[] data = new byte[0];
+                    if(!reject){
+                        resp.put("total_size", Bencode.BValue.intValue(info.length));
+                        int offset = piece * BMetadataFetch.PIECE_SIZE;
+                        data = Arrays.copyOfRange(info, offset, Math.min(info.length, offset + BMetadataFetch.PIECE_SIZE));
+                    }
+                    // the fetcher advertised ut_metadata as 1
+                    sendExtended(out, 1, resp.encode(), data);
+                }
+            } catch (IOException e) {
+                // fetcher closed the connection
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+    }
+
+    private static void sendExtended(DataOutputStream out, int extId, byte[] dict, byte[] data) throws IOException {
+        out.writeInt(2 + dict.length + data.length);
+        out.write(20);
+        out.write(extId);
+        out.write(dict);
+        out.write(data);
+        out.flush();
+    }
+
+    private static byte[] info(byte[] torrent) {
+        Bencode.BTape tape = Bencode.parseTape(torrent);
+        int info = tape.get(tape.root(), "info");
+        return Arrays.copyOfRange(torrent, tape.getStart(info), tape.getStart(info) + tape.getLength(info));
+    }
+
+    @Test
+    public void fetch() throws IOException, InterruptedException {
+        // 2000 pieces make an info dict of three metadata pieces
+        BTorrent expected = new BTorrent(BTorrentTest.multiFileTorrent(16, 20000, 12000));
+        byte[] info = info(BTorrentTest.multiFileTorrent(16, 20000, 12000));
+        assertTrue(info.length > 2 * BMetadataFetch.PIECE_SIZE);
+        byte[] infoHash = expected.getInfoHash();
+        BMagnet magnet = new BMagnet("magnet:?xt=urn:btih:" + Crypto.hex(infoHash));
+
+        InetSocketAddress[] peers = {
+                servePeer(info, infoHash, true),
+                servePeer(info, infoHash, false),
+                servePeer(info, infoHash, false),
+        };
+        byte[] fetched = new BMetadataFetch("00112233445566778899", magnet).fetch(peers, 3, 10_000);
+        assertArrayEquals(info, fetched);
+
+        BTorrent bTorrent = BTorrent.fromInfo(fetched, "http://tracker/announce");
+        assertArrayEquals(infoHash, bTorrent.getInfoHash());
+        assertEquals("http://tracker/announce", bTorrent.getAnnounce());
+        assertEquals(32000, bTorrent.getLength());
+        assertEquals(2, bTorrent.getFiles().length);
+        assertNull(BTorrent.fromInfo(fetched, null).getAnnounce());
+    }
+
+    @Test
+    public void hashMismatch() throws IOException {
+        byte[] info = info(BTorrentTest.multiFileTorrent(16, 100));
+        byte[] wrongHash = new byte[20];
+        BMagnet magnet = new BMagnet("magnet:?xt=urn:btih:" + Crypto.hex(wrongHash));
+        InetSocketAddress[] peers = {servePeer(info, wrongHash, false)};
+        // the only peer is dropped for its data
+        IOException e = assertThrows(IOException.class,
+                () -> new BMetadataFetch("00112233445566778899", magnet).fetch(peers, 2, 10_000));
+        assertEquals("No peer could serve metadata", e.getMessage());
+    }
+
+    @Test
+    public void badPeerDropped() throws IOException, InterruptedException {
+        byte[] info = info(BTorrentTest.multiFileTorrent(16, 20000, 12000));
+        byte[] infoHash = Crypto.sha1(info);
+        BMagnet magnet = new BMagnet("magnet:?xt=urn:btih:" + Crypto.hex(infoHash));
+        byte[] corrupt = info.clone();
+        for(int i = 100; i < corrupt.length; i += BMetadataFetch.PIECE_SIZE){
+            corrupt[i] ^= 1;
+        }
+        for(int parallelism = 1; parallelism <= 3; parallelism++){
+            InetSocketAddress[] peers = {
+                    servePeer(corrupt, infoHash, false),
+                    servePeer(info, infoHash, false),
+                    servePeer(corrupt, infoHash, false),
+            };
+            byte[] fetched = new BMetadataFetch("00112233445566778899", magnet).fetch(peers, parallelism, 10_000);
+            assertArrayEquals(info, fetched);
+        }
+    }
+
+    @Test
+    public void allRejected() throws IOException {
+        byte[] info = info(BTorrentTest.multiFileTorrent(16, 100));
+        byte[] infoHash = Crypto.sha1(info);
+        BMagnet magnet = new BMagnet("magnet:?xt=urn:btih:" + Crypto.hex(infoHash));
+        InetSocketAddress[] peers = {servePeer(info, infoHash, true), servePeer(info, infoHash, true)};
+        assertThrows(IOException.class,
+                () -> new BMetadataFetch("00112233445566778899", magnet).fetch(peers, 2, 10_000));
+    }
+}
@@ -0,0 +1,180 @@
+package org.bonede.cafebit;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BPeerEngineTest {
+    private static final int CONNECTIONS = 50;
+    // larger than the engine's input buffer
+    private static final int LARGE = 40000;
+
+    /**
+     * Peer answering the handshake, sending a bitfield one byte at a time and a large message, then
+     * unchoking once it sees interested.
+     */
+    private static void servePeer(Socket socket, byte[] infoHash) {
+        try (socket) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            in.readFully(new byte[BPeerEngine.HANDSHAKE_LENGTH]);
+            out.write(19);
+            out.write("BitTorrent protocol".getBytes());
+            out.write(new byte[8]);
+            out.write(infoHash);
+            out.write("-XX0000-000000000000".getBytes());
+            byte[] bitfield = {0, 0, 0, 3, 5, (byte) 0xff, (byte) 0x80};
+            for(byte b : bitfield){
+                out.write(b);
+                out.flush();
+            }
+            out.writeInt(1 + LARGE);
+            out.write(7);
+            out.write(new byte[LARGE]);
+            // keep-alive
+            out.writeInt(0);
+            out.flush();
+            assertEquals(1, in.readInt());
+            assertEquals(2, in.read());
+            out.writeInt(1);
+            out.write(1);
+            out.flush();
+            in.read();
+        } catch (IOException e) {
+            // engine closed the connection
+        }
+    }
+
+    @Test
+    public void connect() throws IOException, InterruptedException {
+        byte[] infoHash = new byte[20];
+        infoHash[0] = 1;
+        ServerSocket server = new ServerSocket(0, CONNECTIONS, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            try (server) {
+                for(int i = 0; i < CONNECTIONS; i++){
+                    Socket socket = server.accept();
+                    new Thread(() -> servePeer(socket, infoHash)).start();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        });
+        acceptor.start();
+
+        Map<BPeerEngine.BPeer, List<String>> received = new ConcurrentHashMap<>();
+        CountDownLatch closed = new CountDownLatch(CONNECTIONS);
+        BPeerEngine.Handler handler = new BPeerEngine.Handler() {
+            @Override
+            public void onConnected(BPeerEngine.BPeer peer) {
+                received.put(peer, new CopyOnWriteArrayList<>());
+                peer.send(2, new byte[0]);
+            }
+
+            @Override
+            public void onMessage(BPeerEngine.BPeer peer, int id, ByteBuffer payload) {
+                received.get(peer).add(id + ":" + payload.remaining());
+                if(id == 1){
+                    peer.close();
+                }
+            }
+
+            @Override
+            public void onClosed(BPeerEngine.BPeer peer, Exception cause) {
+                assertNull(cause);
+                closed.countDown();
+            }
+        };
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        try (BPeerEngine engine = new BPeerEngine("00112233445566778899", 2)) {
+            for(int i = 0; i < CONNECTIONS; i++){
+                engine.connect(address, infoHash, handler);
+            }
+            assertTrue(closed.await(10, TimeUnit.SECONDS));
+        }
+        assertEquals(CONNECTIONS, received.size());
+        for(List<String> messages : received.values()){
+            assertEquals(List.of("5:2", "7:" + LARGE, "1:0"), messages);
+        }
+    }
+
+    @Test
+    public void infoHashMismatch() throws IOException, InterruptedException {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        new Thread(() -> {
+            try (server) {
+                servePeer(server.accept(), new byte[20]);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }).start();
+        CountDownLatch closed = new CountDownLatch(1);
+        Exception[] cause = new Exception[1];
+        try (BPeerEngine engine = new BPeerEngine("00112233445566778899", 1)) {
+            byte[] infoHash = new byte[20];
+            infoHash[0] = 1;
+            engine.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()), infoHash, new BPeerEngine.Handler() {
+                @Override
+                public void onConnected(BPeerEngine.BPeer peer) {
+                    fail("connected");
+                }
+
+                @Override
+                public void onMessage(BPeerEngine.BPeer peer, int id, ByteBuffer payload) {
+                }
+
+                @Override
+                public void onClosed(BPeerEngine.BPeer peer, Exception e) {
+                    cause[0] = e;
+                    closed.countDown();
+                }
+            });
+            assertTrue(closed.await(10, TimeUnit.SECONDS));
+        }
+        assertEquals("Info hash mismatch", cause[0].getMessage());
+    }
+
+    @Test
+    public void handshakeTimeout() throws IOException, InterruptedException {
+        // accepts, then never answers the handshake
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             BPeerEngine engine = new BPeerEngine("00112233445566778899", 1, 200_000_000L)) {
+            CountDownLatch closed = new CountDownLatch(1);
+            Exception[] cause = new Exception[1];
+            engine.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()), new byte[20], new BPeerEngine.Handler() {
+                @Override
+                public void onConnected(BPeerEngine.BPeer peer) {
+                    fail("connected");
+                }
+
+                @Override
+                public void onMessage(BPeerEngine.BPeer peer, int id, ByteBuffer payload) {
+                }
+
+                @Override
+                public void onClosed(BPeerEngine.BPeer peer, Exception e) {
+                    cause[0] = e;
+                    closed.countDown();
+                }
+            });
+            assertTrue(closed.await(5, TimeUnit.SECONDS));
+            assertInstanceOf(SocketTimeoutException.class, cause[0]);
+        }
+    }
+}
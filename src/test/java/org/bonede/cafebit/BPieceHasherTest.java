@@ -0,0 +1,38 @@
+package org.bonede.cafebit;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BPieceHasherTest {
+
+    @Test
+    public void outOfOrder() {
+        byte[] data = new byte[100];
+        new Random(7).nextBytes(data);
+        ByteBuffer piece = ByteBuffer.allocate(128);
+        BPieceHasher hasher = new BPieceHasher(piece, data.length, 32);
+
+        // blocks land at 64, 0, 96, 32, the digest only covers the contiguous prefix
+        int[] order = {64, 0, 96, 32};
+        for(int begin : order){
+            piece.position(begin);
+            piece.put(data, begin, Math.min(32, data.length - begin));
+            assertFalse(hasher.isComplete());
+            hasher.blockReceived(begin);
+        }
+        assertTrue(hasher.isComplete());
+        assertArrayEquals(Crypto.sha1(data), hasher.digest());
+
+        // a pooled digest starts clean
+        BPieceHasher next = new BPieceHasher(ByteBuffer.wrap(data), data.length, 64);
+        next.blockReceived(0);
+        next.blockReceived(64);
+        assertArrayEquals(Crypto.sha1(data), next.digest());
+        assertThrows(IllegalArgumentException.class, () -> new BPieceHasher(piece, 100, 32).blockReceived(10));
+        assertThrows(IllegalStateException.class, () -> new BPieceHasher(piece, 100, 32).digest());
+    }
+}
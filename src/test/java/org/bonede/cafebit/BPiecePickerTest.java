@@ -0,0 +1,46 @@
+package org.bonede.cafebit;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BPiecePickerTest {
+
+    @Test
+    public void pick() throws Exception {
+        BitSet have = new BitSet();
+        have.set(1);
+        BPiecePicker picker = new BPiecePicker(4, have);
+        byte[] all = {(byte) 0xf0};
+        byte[] first = {(byte) 0x80};
+        assertEquals(0, picker.next(all));
+        assertEquals(2, picker.next(all));
+        assertEquals(1, picker.getPending());
+
+        // piece 0 is in flight, the peer having only piece 0 waits for it to come back
+        CompletableFuture<Integer> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return picker.next(first);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(50);
+        assertFalse(waiting.isDone());
+        picker.retry(0);
+        assertEquals(0, waiting.get(5, TimeUnit.SECONDS));
+
+        picker.done(0);
+        assertEquals(-1, picker.next(first));
+        assertEquals(3, picker.next(all));
+        picker.done(2);
+        assertFalse(picker.isComplete());
+        picker.done(3);
+        assertTrue(picker.isComplete());
+        assertEquals(-1, picker.next(all));
+    }
+}
@@ -0,0 +1,51 @@
+package org.bonede.cafebit;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BRateTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    void steadyRate() {
+        BRate rate = new BRate();
+        assertEquals(0, rate.get(0));
+        // 16 KiB every 100 ms for a minute, 160 KiB/s
+        for(long t = 0; t < 60 * SECOND; t += SECOND / 10){
+            rate.add(16 * 1024, t);
+        }
+        assertEquals(160 * 1024, rate.get(60 * SECOND), 160 * 1024 * 0.06);
+    }
+
+    @Test
+    void windowNotFull() {
+        BRate rate = new BRate();
+        long start = 123 * SECOND + 500;
+        rate.add(1000, start);
+        assertEquals(1000, rate.get(start));
+        rate.add(1000, start + SECOND);
+        assertEquals(1000, rate.get(start + SECOND));
+    }
+
+    @Test
+    void oldBytesLeaveTheWindow() {
+        BRate rate = new BRate();
+        rate.add(BRate.WINDOW_SECONDS * 1000, 0);
+        assertEquals(1000, rate.get((BRate.WINDOW_SECONDS - 1) * SECOND));
+        assertEquals(0, rate.get(BRate.WINDOW_SECONDS * SECOND));
+        // a long pause and a new burst
+        rate.add(4000, 1000 * SECOND);
+        assertEquals(4000.0 / BRate.WINDOW_SECONDS, rate.get(1000 * SECOND));
+        assertEquals(0, rate.get(2000 * SECOND));
+    }
+
+    @Test
+    void negativeNanos() {
+        BRate rate = new BRate();
+        for(long t = -10 * SECOND; t < 10 * SECOND; t += SECOND){
+            rate.add(500, t);
+        }
+        assertEquals(500, rate.get(9 * SECOND), 500 * 0.06);
+    }
+}
@@ -0,0 +1,94 @@
+package org.bonede.cafebit;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BRecheckTest {
+
+    private static void writeRandom(Path path, int size, Random random) throws IOException {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        Files.createDirectories(path.getParent());
+        Files.write(path, bytes);
+    }
+
+    @Test
+    public void recheck() throws IOException, InterruptedException {
+        Random random = new Random(3);
+        Path root = Files.createTempDirectory("cafebit");
+        Path dir = root.resolve("data");
+        writeRandom(dir.resolve("a.bin"), 2500, random);
+        writeRandom(dir.resolve("b.bin"), 999, random);
+        writeRandom(dir.resolve("c.bin"), 7001, random);
+        BTorrent bTorrent = new BTorrentBuilder(dir).pieceLength(1024).threads(2).buildTorrent();
+
+        BitSet have = BRecheck.recheck(bTorrent, root, 3);
+        assertEquals(11, have.cardinality());
+
+        // a flipped byte in piece 3, which spans a.bin and b.bin
+        try(RandomAccessFile file = new RandomAccessFile(dir.resolve("b.bin").toFile(), "rw")){
+            file.seek(600);
+            int b = file.read();
+            file.seek(600);
+            file.write(b ^ 1);
+        }
+        // c.bin cut short in piece 9, the last piece is gone too
+        try(RandomAccessFile file = new RandomAccessFile(dir.resolve("c.bin").toFile(), "rw")){
+            file.setLength(6000);
+        }
+        have = BRecheck.recheck(bTorrent, root, 3);
+        BitSet expected = new BitSet();
+        expected.set(0, 11);
+        expected.clear(3);
+        expected.clear(9, 11);
+        assertEquals(expected, have);
+
+        assertTrue(BRecheck.recheck(bTorrent, root.resolve("missing"), 3).isEmpty());
+    }
+
+    @Test
+    public void recheckV2() throws IOException, InterruptedException {
+        byte[] a = BTorrentTest.v2Data(40000, 1);
+        byte[] b = BTorrentTest.v2Data(1000, 2);
+        BTorrent bTorrent = new BTorrent(BTorrentTest.v2Torrent(a, b, BTorrentTest.v2Layer(a)));
+        Path root = Files.createTempDirectory("cafebit");
+        Files.createDirectories(root.resolve("v2"));
+        a[35000] ^= 1;
+        Files.write(root.resolve("v2/a"), a);
+        Files.write(root.resolve("v2/b"), b);
+
+        BitSet have = BRecheck.recheck(bTorrent, root, 2);
+        BitSet expected = new BitSet();
+        expected.set(0);
+        expected.set(2);
+        assertEquals(expected, have);
+    }
+
+    @Test
+    public void recheckHybrid() throws IOException, InterruptedException {
+        byte[] a = BTorrentTest.v2Data(40000, 1);
+        byte[] b = BTorrentTest.v2Data(1000, 2);
+        BTorrent bTorrent = new BTorrent(BTorrentTest.hybridTorrent(a, b, null));
+        Path root = Files.createTempDirectory("cafebit");
+        Files.createDirectories(root.resolve("hybrid"));
+        Files.write(root.resolve("hybrid/a"), a);
+        Files.write(root.resolve("hybrid/b"), b);
+
+        BitSet expected = new BitSet();
+        expected.set(0, 3);
+        assertEquals(expected, BRecheck.recheck(bTorrent, root, 2));
+
+        a[35000] ^= 1;
+        Files.write(root.resolve("hybrid/a"), a);
+        expected.clear(1);
+        assertEquals(expected, BRecheck.recheck(bTorrent, root, 2));
+    }
+}
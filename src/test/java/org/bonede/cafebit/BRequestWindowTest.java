@@ -0,0 +1,75 @@
+package org.bonede.cafebit;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BRequestWindowTest {
+    private static final int BLOCK = 16 * 1024;
+
+    /**
+     * Keeps the window full over a link of the given rate and round trip for a while, replies leave
+     * the link one block at a time. Requests still in flight at the end are answered.
+     * @return the time at the end
+     */
+    private static long run(BRequestWindow window, long start, long seconds, double bytesPerSecond, long rttNanos) {
+        long blockNanos = (long) (BLOCK * 1e9 / bytesPerSecond);
+        ArrayDeque<long[]> inFlight = new ArrayDeque<>();
+        long now = start;
+        long linkFree = start;
+        int next = 0;
+        while(now < start + seconds * 1_000_000_000L){
+            while(window.hasRoom()){
+                window.requested(next / 16, next % 16 * BLOCK, now);
+                long arrival = Math.max(now + rttNanos, linkFree + blockNanos);
+                linkFree = arrival;
+                inFlight.add(new long[]{next++, arrival});
+            }
+            long[] reply = inFlight.poll();
+            now = reply[1];
+            assertTrue(window.received((int) reply[0] / 16, (int) reply[0] % 16 * BLOCK, BLOCK, now));
+        }
+        for(long[] reply; (reply = inFlight.poll()) != null; ){
+            now = reply[1];
+            assertTrue(window.received((int) reply[0] / 16, (int) reply[0] % 16 * BLOCK, BLOCK, now));
+        }
+        return now;
+    }
+
+    @Test
+    public void bandwidthDelayProduct() {
+        BRequestWindow window = new BRequestWindow(BLOCK);
+        assertEquals(BRequestWindow.INITIAL_SIZE, window.getSize());
+        // 4 MiB/s at 100 ms, 25.6 blocks in flight fill the link
+        long now = run(window, 0, 10, 4 * 1024 * 1024, 100_000_000L);
+        assertEquals(4 * 1024 * 1024, window.getRate(), 0.1 * 4 * 1024 * 1024);
+        assertTrue(window.getSize() >= 40 && window.getSize() <= 64, "size " + window.getSize());
+        assertEquals(100_000_000L, window.getMinRtt(), 1_000_000L);
+
+        // the link slows down to 1 MiB/s, the window follows
+        run(window, now, 20, 1024 * 1024, 100_000_000L);
+        assertTrue(window.getSize() >= 10 && window.getSize() <= 20, "size " + window.getSize());
+    }
+
+    @Test
+    public void matchByIndexAndBegin() {
+        BRequestWindow window = new BRequestWindow(BLOCK);
+        window.requested(3, 0, 0);
+        window.requested(3, BLOCK, 0);
+        window.requested(4, 0, 0);
+        window.requested(4, BLOCK, 0);
+        assertFalse(window.hasRoom());
+        assertFalse(window.received(3, 2 * BLOCK, BLOCK, 10));
+        assertTrue(window.received(4, 0, BLOCK, 10));
+        assertTrue(window.received(3, BLOCK, BLOCK, 10));
+        // a duplicate reply
+        assertFalse(window.received(3, BLOCK, BLOCK, 10));
+        assertEquals(2, window.getOutstanding());
+
+        window.clear();
+        assertTrue(window.isEmpty());
+        assertFalse(window.received(3, 0, BLOCK, 10));
+    }
+}
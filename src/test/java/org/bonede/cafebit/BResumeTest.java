@@ -0,0 +1,61 @@
+package org.bonede.cafebit;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BResumeTest {
+
+    @Test
+    public void resume() throws IOException, InterruptedException {
+        Random random = new Random(5);
+        Path root = Files.createTempDirectory("cafebit");
+        Path dir = root.resolve("data");
+        Files.createDirectories(dir);
+        byte[] a = new byte[2500];
+        byte[] b = new byte[7001];
+        random.nextBytes(a);
+        random.nextBytes(b);
+        Files.write(dir.resolve("a.bin"), a);
+        Files.write(dir.resolve("b.bin"), b);
+        BTorrent bTorrent = new BTorrentBuilder(dir).pieceLength(1024).buildTorrent();
+        Path file = root.resolve(".resume");
+
+        BResume resume = BResume.open(file, bTorrent, root);
+        assertFalse(resume.isLoaded());
+        assertTrue(resume.getHave().isEmpty());
+        BitSet have = new BitSet();
+        have.set(0, 5);
+        resume.reset(have);
+        resume.setHave(9);
+        resume.close();
+
+        resume = BResume.open(file, bTorrent, root);
+        assertTrue(resume.isLoaded());
+        have.set(9);
+        assertEquals(have, resume.getHave());
+        assertTrue(resume.getChanged().isEmpty());
+
+        // b.bin covers pieces 2 to 9
+        Files.setLastModifiedTime(dir.resolve("b.bin"), FileTime.fromMillis(0));
+        BitSet changed = new BitSet();
+        changed.set(2, 10);
+        assertEquals(changed, resume.getChanged());
+        resume.setHave(3);
+        assertTrue(resume.getChanged().isEmpty());
+        resume.close();
+
+        BTorrent other = new BTorrentBuilder(dir).pieceLength(2048).buildTorrent();
+        resume = BResume.open(file, other, root);
+        assertFalse(resume.isLoaded());
+        assertTrue(resume.getHave().isEmpty());
+        resume.close();
+    }
+}
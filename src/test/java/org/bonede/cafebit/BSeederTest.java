@@ -0,0 +1,181 @@
+package org.bonede.cafebit;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BSeederTest {
+
+    private static Path torrentDir(Path root, byte[] a, byte[] b) throws IOException {
+        Random random = new Random(11);
+        random.nextBytes(a);
+        random.nextBytes(b);
+        Path dir = root.resolve("data");
+        Files.createDirectories(dir);
+        Files.write(dir.resolve("a.bin"), a);
+        Files.write(dir.resolve("b.bin"), b);
+        return dir;
+    }
+
+    @Test
+    void downloadFromListeningClient() throws IOException, InterruptedException {
+        Path root = Files.createTempDirectory("cafebit");
+        byte[] a = new byte[120_000];
+        byte[] b = new byte[90_000];
+        Path dir = torrentDir(root, a, b);
+        try(BClient seeding = new BClient(BThreads.Mode.Virtual, 2)){
+            seeding.listen(0);
+            InetSocketAddress addr = new InetSocketAddress(InetAddress.getLoopbackAddress(), seeding.getListenPort());
+            HttpServer tracker = BClientTest.tracker(addr);
+            try {
+                BTorrent bTorrent = new BTorrentBuilder(dir).pieceLength(32 * 1024).announce(BClientTest.announce(tracker)).buildTorrent();
+                // all pieces are on disk, the task is only registered for seeding
+                BTask seed = new BTask(bTorrent, root.toString());
+                seeding.download(seed);
+
+                Path dst = root.resolve("download");
+                BTask task = new BTask(bTorrent, dst.toString());
+                try(BClient client = new BClient(BThreads.Mode.Virtual, 2)){
+                    client.download(task);
+                }
+                assertArrayEquals(a, Files.readAllBytes(dst.resolve("data").resolve("a.bin")));
+                assertArrayEquals(b, Files.readAllBytes(dst.resolve("data").resolve("b.bin")));
+                assertEquals(bTorrent.getLength(), seed.getUploaded());
+            } finally {
+                tracker.stop(0);
+            }
+        }
+    }
+
+    @Test
+    void announcesAndServesVerifiedPieces() throws IOException, InterruptedException {
+        Path root = Files.createTempDirectory("cafebit");
+        byte[] a = new byte[70_000];
+        byte[] b = new byte[10_000];
+        Path dir = torrentDir(root, a, b);
+        BTorrent bTorrent = new BTorrentBuilder(dir).pieceLength(32 * 1024).buildTorrent();
+        BTask task = new BTask(bTorrent, root.toString());
+        try(BSeeder seeder = new BSeeder("00112233445566778899", 0, BThreads.Mode.Virtual)){
+            BSeeder.BSeed seed = seeder.add(task, root, new BitSet());
+            InetSocketAddress addr = new InetSocketAddress(InetAddress.getLoopbackAddress(), seeder.getPort());
+            try(PeerConn conn = PeerConn.connect("99887766554433221100", addr, bTorrent.getInfoHash())){
+                assertArrayEquals(new byte[1], conn.readBitfield());
+                seed.setHave(2);
+                assertEquals(PeerConn.M_HAVE, conn.readFrame());
+                assertEquals(2, conn.payload().getInt());
+                conn.sendInterested();
+                conn.readUnchoke();
+                // the last piece spans both files
+                byte[] block = conn.downloadBlock(2, 1000, 10_000);
+                byte[] data = ByteBuffer.allocate(a.length + b.length).put(a).put(b).array();
+                int offset = 2 * 32 * 1024 + 1000;
+                assertArrayEquals(Arrays.copyOfRange(data, offset, offset + 10_000), block);
+                assertEquals(10_000, task.getUploaded());
+            }
+        }
+    }
+
+    @Test
+    void closesOnRequestForMissingPiece() throws IOException, InterruptedException {
+        Path root = Files.createTempDirectory("cafebit");
+        Path dir = torrentDir(root, new byte[70_000], new byte[10_000]);
+        BTorrent bTorrent = new BTorrentBuilder(dir).pieceLength(32 * 1024).buildTorrent();
+        BitSet have = new BitSet();
+        have.set(0);
+        try(BSeeder seeder = new BSeeder("00112233445566778899", 0, BThreads.Mode.Virtual)){
+            seeder.add(new BTask(bTorrent, root.toString()), root, have);
+            InetSocketAddress addr = new InetSocketAddress(InetAddress.getLoopbackAddress(), seeder.getPort());
+            try(PeerConn conn = PeerConn.connect("99887766554433221100", addr, bTorrent.getInfoHash())){
+                conn.readBitfield();
+                conn.sendInterested();
+                conn.readUnchoke();
+                conn.sendRequest(1, 0, 16 * 1024);
+                assertThrows(IOException.class, conn::readFrame);
+            }
+        }
+    }
+
+    @Test
+    void closesConnectionsOverLimit() throws IOException, InterruptedException {
+        Path root = Files.createTempDirectory("cafebit");
+        Path dir = torrentDir(root, new byte[70_000], new byte[10_000]);
+        BTorrent bTorrent = new BTorrentBuilder(dir).pieceLength(32 * 1024).buildTorrent();
+        try(BSeeder seeder = new BSeeder("00112233445566778899", 0, BThreads.Mode.Virtual, 1)){
+            seeder.add(new BTask(bTorrent, root.toString()), root, new BitSet());
+            InetSocketAddress addr = new InetSocketAddress(InetAddress.getLoopbackAddress(), seeder.getPort());
+            try(PeerConn conn = PeerConn.connect("99887766554433221100", addr, bTorrent.getInfoHash())){
+                conn.readBitfield();
+                assertThrows(IOException.class, () -> PeerConn.connect("99887766554433221101", addr, bTorrent.getInfoHash()));
+            }
+            // the slot is free again once the session ends
+            IOException last = null;
+            for(int i = 0; i < 50; i++){
+                try(PeerConn conn = PeerConn.connect("99887766554433221102", addr, bTorrent.getInfoHash())){
+                    conn.readBitfield();
+                    last = null;
+                    break;
+                } catch (IOException e) {
+                    last = e;
+                    Thread.sleep(20);
+                }
+            }
+            assertNull(last);
+        }
+    }
+
+    @Test
+    void closesSilentConnections() throws IOException, InterruptedException {
+        Path root = Files.createTempDirectory("cafebit");
+        Path dir = torrentDir(root, new byte[70_000], new byte[10_000]);
+        BTorrent bTorrent = new BTorrentBuilder(dir).pieceLength(32 * 1024).buildTorrent();
+        try(BSeeder seeder = new BSeeder("00112233445566778899", 0, BThreads.Mode.Virtual, 1, 200_000_000L, 400_000_000L)){
+            seeder.add(new BTask(bTorrent, root.toString()), root, new BitSet());
+            InetSocketAddress addr = new InetSocketAddress(InetAddress.getLoopbackAddress(), seeder.getPort());
+            // connects and says nothing, holding the only connection until the handshake times out
+            try(Socket silent = new Socket(addr.getAddress(), addr.getPort())){
+                silent.setSoTimeout(5_000);
+                assertEquals(-1, silent.getInputStream().read());
+            }
+            PeerConn conn = connectRetrying(addr, bTorrent);
+            conn.readBitfield();
+            // handshaken, then silent past the idle timeout
+            assertThrows(IOException.class, conn::readFrame);
+            conn.close();
+            connectRetrying(addr, bTorrent).close();
+        }
+    }
+
+    private static PeerConn connectRetrying(InetSocketAddress addr, BTorrent bTorrent) throws IOException, InterruptedException {
+        // the permit is given back once the old session has ended
+        for(int i = 0; ; i++){
+            try {
+                return PeerConn.connect("99887766554433221100", addr, bTorrent.getInfoHash());
+            } catch (IOException e) {
+                if(i == 50){
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    @Test
+    void rejectsUnknownTorrent() throws IOException {
+        try(BSeeder seeder = new BSeeder("00112233445566778899", 0, BThreads.Mode.Virtual)){
+            InetSocketAddress addr = new InetSocketAddress(InetAddress.getLoopbackAddress(), seeder.getPort());
+            assertThrows(IOException.class, () -> PeerConn.connect("99887766554433221100", addr, new byte[BTorrent.SHA1_LENGTH]));
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.bonede.cafebit;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BStorageTest {
+
+    @Test
+    public void spanFiles() throws IOException {
+        BTorrent bTorrent = new BTorrent(BTorrentTest.multiFileTorrent(16, 10, 0, 30, 5));
+        Path dir = Files.createTempDirectory("cafebit");
+        byte[] data = new byte[45];
+        for(int i = 0; i < data.length; i++){
+            data[i] = (byte) i;
+        }
+        BStorage storage = new BStorage(bTorrent, dir);
+        for(int i = 0; i < bTorrent.getPieceNum(); i++){
+            storage.write(i, 0, ByteBuffer.wrap(data, i * 16, bTorrent.getPieceLength(i)));
+        }
+
+        ByteBuffer block = ByteBuffer.allocate(20);
+        storage.read(0, 4, block);
+        assertArrayEquals(Arrays.copyOfRange(data, 4, 24), block.array());
+        storage.close();
+
+        assertEquals(10, Files.size(dir.resolve("multi/dir0/file0")));
+        assertEquals(0, Files.size(dir.resolve("multi/dir1/file1")));
+        assertEquals(30, Files.size(dir.resolve("multi/dir0/file2")));
+        assertArrayEquals(Arrays.copyOfRange(data, 40, 45), Files.readAllBytes(dir.resolve("multi/dir1/file3")));
+    }
+}
@@ -0,0 +1,74 @@
+package org.bonede.cafebit;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BTaskScopeTest {
+
+    @Test
+    public void cancel() throws Exception {
+        AtomicBoolean closed = new AtomicBoolean();
+        AtomicBoolean interrupted = new AtomicBoolean();
+        CountDownLatch started = new CountDownLatch(2);
+        BTaskScope scope = new BTaskScope(BThreads.factory(BThreads.Mode.Virtual, "test-"), 4);
+        scope.fork(() -> {
+            scope.register(() -> closed.set(true));
+            started.countDown();
+            new CountDownLatch(1).await();
+        });
+        scope.fork(() -> {
+            started.countDown();
+            try {
+                Thread.sleep(60_000);
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        scope.close();
+        assertTrue(closed.get());
+        assertTrue(interrupted.get());
+        assertTrue(scope.isCancelled());
+    }
+
+    @Test
+    public void fail() throws Exception {
+        BTaskScope scope = new BTaskScope(BThreads.platform("test-"), 2);
+        scope.fork(() -> {
+            throw new IOException("lost peer");
+        });
+        scope.fork(() -> scope.fail(new IOException("disk full")));
+        IOException e = assertThrows(IOException.class, scope::join);
+        assertEquals("disk full", e.getMessage());
+        // forks after cancellation don't start
+        AtomicBoolean ran = new AtomicBoolean();
+        scope.fork(() -> ran.set(true));
+        scope.close();
+        assertFalse(ran.get());
+    }
+
+    @Test
+    public void limit() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger max = new AtomicInteger();
+        try(BTaskScope scope = new BTaskScope(BThreads.factory(BThreads.Mode.Platform, "test-"), 3)){
+            for(int i = 0; i < 20; i++){
+                scope.fork(() -> {
+                    max.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    Thread.sleep(5);
+                    running.decrementAndGet();
+                });
+            }
+            scope.join();
+        }
+        assertTrue(max.get() <= 3);
+        assertEquals(0, running.get());
+    }
+}
@@ -0,0 +1,65 @@
+package org.bonede.cafebit;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BTorrentBuilderTest {
+
+    private static void writeRandom(Path path, int size, Random random) throws IOException {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        Files.createDirectories(path.getParent());
+        Files.write(path, bytes);
+    }
+
+    @Test
+    public void buildDirectory() throws IOException, InterruptedException {
+        Random random = new Random(42);
+        Path dir = Files.createTempDirectory("cafebit").resolve("data");
+        writeRandom(dir.resolve("a.bin"), 2500, random);
+        writeRandom(dir.resolve("b/empty.bin"), 0, random);
+        writeRandom(dir.resolve("b/c.bin"), 999, random);
+        writeRandom(dir.resolve("d.bin"), 7001, random);
+
+        BTorrent bTorrent = new BTorrentBuilder(dir)
+                .announce("http://tracker/announce")
+                .pieceLength(1024)
+                .threads(3)
+                .buildTorrent();
+
+        assertEquals("data", bTorrent.getName());
+        assertEquals("http://tracker/announce", bTorrent.getAnnounce());
+        assertEquals(10500, bTorrent.getLength());
+        assertEquals(11, bTorrent.getPieceNum());
+        assertEquals("data/b/c.bin", bTorrent.getFiles()[1].toString());
+
+        BStorage storage = new BStorage(bTorrent, dir.getParent());
+        for(int i = 0; i < bTorrent.getPieceNum(); i++){
+            ByteBuffer piece = ByteBuffer.allocate(bTorrent.getPieceLength(i));
+            storage.read(i, 0, piece);
+            assertTrue(bTorrent.checkPiece(i, Crypto.sha1(piece.array())), "piece " + i);
+        }
+        storage.close();
+    }
+
+    @Test
+    public void buildFile() throws IOException, InterruptedException {
+        Path file = Files.createTempDirectory("cafebit").resolve("single.bin");
+        writeRandom(file, 5000, new Random(7));
+
+        BTorrent bTorrent = new BTorrentBuilder(file).pieceLength(2048).buildTorrent();
+
+        assertFalse(bTorrent.isMultiFile());
+        assertNull(bTorrent.getAnnounce());
+        assertEquals(3, bTorrent.getPieceNum());
+        byte[] bytes = Files.readAllBytes(file);
+        assertTrue(bTorrent.checkPiece(2, Crypto.sha1(bytes, 4096, 904)));
+    }
+}
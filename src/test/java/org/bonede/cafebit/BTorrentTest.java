@@ -2,8 +2,10 @@ package org.bonede.cafebit;
 
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -23,4 +25,233 @@ class BTorrentTest {
         assertEquals("6e2275e604a0766656736e81ff10b55204ad8d35", Crypto.hex(bTorrent.getPieceAt(1)));
         assertEquals("f00d937a0213df1982bc8d097227ad9e909acc17", Crypto.hex(bTorrent.getPieceAt(2)));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void infoHashOfRawBytes() {
+        // keys out of order, re-encoding would change the bytes
+        String info = "d4:name1:a6:lengthi1e12:piece lengthi16384e6:pieces20:aaaaaaaaaaaaaaaaaaaae";
+        String torrent = "d8:announce3:url4:info" + info + "e";
+        BTorrent bTorrent = new BTorrent(new ByteArrayInputStream(torrent.getBytes()));
+
+        assertEquals(Crypto.sha1Hex(info.getBytes()), Crypto.hex(bTorrent.getInfoHash()));
+        assertSame(bTorrent.getInfoHash(), bTorrent.getInfoHash());
+        assertEquals(1, bTorrent.getLength());
+    }
+
+    @Test
+    public void pieces() throws IOException {
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("sample.torrent");
+        BTorrent bTorrent = new BTorrent(inputStream);
+        inputStream.close();
+
+        assertEquals(32768, bTorrent.getPieceLength(0));
+        assertEquals(92063 - 2 * 32768, bTorrent.getPieceLength(2));
+        assertTrue(bTorrent.checkPiece(1, bTorrent.getPieceAt(1)));
+        assertFalse(bTorrent.checkPiece(0, bTorrent.getPieceAt(1)));
+    }
+
+    @Test
+    public void largeTorrent() {
+        long length = 5L * 1024 * 1024 * 1024 + 100;
+        int pieceLength = 4 * 1024 * 1024;
+        int pieceNum = (int) ((length + pieceLength - 1) / pieceLength);
+        String torrent = "d8:announce3:url4:infod6:lengthi" + length + "e4:name1:a12:piece lengthi" + pieceLength
+                + "e6:pieces" + pieceNum * 20 + ":" + "a".repeat(pieceNum * 20) + "ee";
+        BTorrent bTorrent = new BTorrent(torrent.getBytes());
+
+        assertEquals(length, bTorrent.getLength());
+        assertEquals(1281, bTorrent.getPieceNum());
+        assertEquals(100, bTorrent.getPieceLength(1280));
+        assertEquals(length, new BTask(bTorrent, "").getLeft());
+    }
+
+    static byte[] multiFileTorrent(int pieceLength, long... lengths) {
+        Bencode.BValue files = Bencode.BValue.listValue();
+        long length = 0;
+        for(int i = 0; i < lengths.length; i++){
+            files.add(Bencode.BValue.dictValue()
+                    .put("length", Bencode.BValue.intValue(lengths[i]))
+                    .put("path", Bencode.BValue.listValue()
+                            .add(Bencode.BValue.bytesValue("dir" + i % 2))
+                            .add(Bencode.BValue.bytesValue("file" + i))));
+            length += lengths[i];
+        }
+        int pieceNum = (int) ((length + pieceLength - 1) / pieceLength);
+        Bencode.BValue info = Bencode.BValue.dictValue()
+                .put("name", Bencode.BValue.bytesValue("multi"))
+                .put("piece length", Bencode.BValue.intValue(pieceLength))
+                .put("pieces", Bencode.BValue.bytesValue(new byte[pieceNum * 20]))
+                .put("files", files);
+        return Bencode.BValue.dictValue()
+                .put("announce", Bencode.BValue.bytesValue("url"))
+                .put("info", info)
+                .encode();
+    }
+
+    @Test
+    public void multiFile() {
+        BTorrent bTorrent = new BTorrent(multiFileTorrent(16, 10, 0, 30, 5));
+
+        assertTrue(bTorrent.isMultiFile());
+        assertEquals(45, bTorrent.getLength());
+        assertEquals(3, bTorrent.getPieceNum());
+        assertEquals(13, bTorrent.getPieceLength(2));
+        BTorrent.BFile[] files = bTorrent.getFiles();
+        assertEquals("multi/dir0/file2", files[2].toString());
+        assertEquals(10, files[2].getOffset());
+        assertEquals(0, bTorrent.getFileIndex(9));
+        assertEquals(2, bTorrent.getFileIndex(10));
+        assertEquals(2, bTorrent.getFileIndex(39));
+        assertEquals(3, bTorrent.getFileIndex(40));
+
+        byte[] evil = new String(multiFileTorrent(16, 10)).replace("4:dir0", "2:..").getBytes();
+        assertThrows(BTorrent.BTorrentError.class, () -> new BTorrent(evil));
+    }
+
+    static byte[] sha256(byte[]... parts) {
+        java.security.MessageDigest sha256 = BMerkle.sha256();
+        for(byte[] part : parts){
+            sha256.update(part);
+        }
+        return sha256.digest();
+    }
+
+    static byte[] v2Data(int length, int seed) {
+        byte[] data = new byte[length];
+        new java.util.Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * v2 only torrent of file a (40000 bytes, 2 pieces) and file b (1000 bytes), piece length 32 KiB.
+     */
+    static byte[] v2Torrent(byte[] a, byte[] b, byte[] layer) {
+        int block = BMerkle.BLOCK_SIZE;
+        byte[] rootA = sha256(layer);
+        byte[] rootB = sha256(b);
+        Bencode.BValue tree = Bencode.BValue.dictValue()
+                .put("a", Bencode.BValue.dictValue().put("", Bencode.BValue.dictValue()
+                        .put("length", Bencode.BValue.intValue(a.length))
+                        .put("pieces root", Bencode.BValue.bytesValue(rootA))))
+                .put("b", Bencode.BValue.dictValue().put("", Bencode.BValue.dictValue()
+                        .put("length", Bencode.BValue.intValue(b.length))
+                        .put("pieces root", Bencode.BValue.bytesValue(rootB))));
+        Bencode.BValue info = Bencode.BValue.dictValue()
+                .put("name", Bencode.BValue.bytesValue("v2"))
+                .put("meta version", Bencode.BValue.intValue(2))
+                .put("piece length", Bencode.BValue.intValue(2 * block))
+                .put("file tree", tree);
+        return Bencode.BValue.dictValue()
+                .put("info", info)
+                .put("piece layers", Bencode.BValue.dictValue().put(Bencode.BKey.of(rootA), Bencode.BValue.bytesValue(layer)))
+                .encode();
+    }
+
+    /**
+     * Content of {@link #hybridTorrent}: file a, zeros padding it to a piece boundary, file b.
+     */
+    static byte[] hybridData(byte[] a, byte[] b) {
+        int pieceLength = 2 * BMerkle.BLOCK_SIZE;
+        int padded = (a.length + pieceLength - 1) / pieceLength * pieceLength;
+        byte[] data = new byte[padded + b.length];
+        System.arraycopy(a, 0, data, 0, a.length);
+        System.arraycopy(b, 0, data, padded, b.length);
+        return data;
+    }
+
+    /**
+     * Hybrid torrent of file a (40000 bytes), a padding file and file b (1000 bytes), piece length
+     * 32 KiB, so piece 1 ends with padding.
+     */
+    static byte[] hybridTorrent(byte[] a, byte[] b, String announce) {
+        int pieceLength = 2 * BMerkle.BLOCK_SIZE;
+        byte[] data = hybridData(a, b);
+        byte[] pieces = new byte[(data.length + pieceLength - 1) / pieceLength * BTorrent.SHA1_LENGTH];
+        for(int i = 0; i * pieceLength < data.length; i++){
+            byte[] hash = Crypto.sha1(data, i * pieceLength, Math.min(pieceLength, data.length - i * pieceLength));
+            System.arraycopy(hash, 0, pieces, i * BTorrent.SHA1_LENGTH, BTorrent.SHA1_LENGTH);
+        }
+        byte[] layer = v2Layer(a);
+        byte[] rootA = sha256(layer);
+        int pad = data.length - a.length - b.length;
+        Bencode.BValue files = Bencode.BValue.listValue()
+                .add(Bencode.BValue.dictValue()
+                        .put("length", Bencode.BValue.intValue(a.length))
+                        .put("path", Bencode.BValue.listValue().add(Bencode.BValue.bytesValue("a"))))
+                .add(Bencode.BValue.dictValue()
+                        .put("attr", Bencode.BValue.bytesValue("p"))
+                        .put("length", Bencode.BValue.intValue(pad))
+                        .put("path", Bencode.BValue.listValue().add(Bencode.BValue.bytesValue(".pad")).add(Bencode.BValue.bytesValue(String.valueOf(pad)))))
+                .add(Bencode.BValue.dictValue()
+                        .put("length", Bencode.BValue.intValue(b.length))
+                        .put("path", Bencode.BValue.listValue().add(Bencode.BValue.bytesValue("b"))));
+        Bencode.BValue tree = Bencode.BValue.dictValue()
+                .put("a", Bencode.BValue.dictValue().put("", Bencode.BValue.dictValue()
+                        .put("length", Bencode.BValue.intValue(a.length))
+                        .put("pieces root", Bencode.BValue.bytesValue(rootA))))
+                .put("b", Bencode.BValue.dictValue().put("", Bencode.BValue.dictValue()
+                        .put("length", Bencode.BValue.intValue(b.length))
+                        .put("pieces root", Bencode.BValue.bytesValue(sha256(b)))));
+        Bencode.BValue info = Bencode.BValue.dictValue()
+                .put("name", Bencode.BValue.bytesValue("hybrid"))
+                .put("meta version", Bencode.BValue.intValue(2))
+                .put("piece length", Bencode.BValue.intValue(pieceLength))
+                .put("files", files)
+                .put("file tree", tree)
+                .put("pieces", Bencode.BValue.bytesValue(pieces));
+        Bencode.BValue torrent = Bencode.BValue.dictValue()
+                .put("info", info)
+                .put("piece layers", Bencode.BValue.dictValue().put(Bencode.BKey.of(rootA), Bencode.BValue.bytesValue(layer)));
+        if(announce != null){
+            torrent.put("announce", Bencode.BValue.bytesValue(announce));
+        }
+        return torrent.encode();
+    }
+
+    static byte[] v2Layer(byte[] a) {
+        int block = BMerkle.BLOCK_SIZE;
+        byte[] h0 = sha256(Arrays.copyOfRange(a, 0, block));
+        byte[] h1 = sha256(Arrays.copyOfRange(a, block, 2 * block));
+        byte[] h2 = sha256(Arrays.copyOfRange(a, 2 * block, a.length));
+        byte[] piece0 = sha256(h0, h1);
+        byte[] piece1 = sha256(h2, new byte[32]);
+        byte[] layer = new byte[64];
+        System.arraycopy(piece0, 0, layer, 0, 32);
+        System.arraycopy(piece1, 0, layer, 32, 32);
+        return layer;
+    }
+
+    @Test
+    public void v2() {
+        byte[] a = v2Data(40000, 1);
+        byte[] b = v2Data(1000, 2);
+        byte[] bytes = v2Torrent(a, b, v2Layer(a));
+        BTorrent bTorrent = new BTorrent(bytes);
+
+        assertTrue(bTorrent.isV2());
+        assertEquals(32, bTorrent.getInfoHashV2().length);
+        assertArrayEquals(Arrays.copyOf(bTorrent.getInfoHashV2(), 20), bTorrent.getInfoHash());
+        assertEquals(3, bTorrent.getPieceNum());
+        assertEquals(7232, bTorrent.getPieceLength(1));
+        assertEquals(1000, bTorrent.getPieceLength(2));
+        assertEquals("v2/b", bTorrent.getFiles()[1].toString());
+        assertEquals(65536, bTorrent.getFiles()[1].getOffset());
+        assertThrows(BTorrent.BTorrentError.class, () -> bTorrent.checkPiece(0, new byte[20]));
+
+        assertEquals(7232, bTorrent.getPieceDataLength(1));
+
+        BTorrent hybrid = new BTorrent(hybridTorrent(a, b, null));
+        assertTrue(hybrid.isV2());
+        assertEquals(3, hybrid.getPieceNum());
+        // the padding is part of the v1 piece only
+        assertEquals(32 * 1024, hybrid.getPieceLength(1));
+        assertEquals(7232, hybrid.getPieceDataLength(1));
+        assertEquals(1000, hybrid.getPieceDataLength(2));
+        assertEquals(7232 / BMerkle.BLOCK_SIZE + 1, hybrid.newPieceVerifier(1).getBlockNum());
+
+        byte[] badLayer = v2Layer(a);
+        byte[] badBytes = v2Torrent(a, b, badLayer);
+        badBytes[badBytes.length - 3] ^= 1;
+        assertThrows(BTorrent.BTorrentError.class, () -> new BTorrent(badBytes));
+    }
+}
@@ -3,6 +3,7 @@ package org.bonede.cafebit;
 import org.junit.jupiter.api.Test;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -20,6 +21,16 @@ class BencodeTest {
     }
 //
 //
+    @Test
+    public void parseLong(){
+        assertEquals(107374182400L, Bencode.parse("i107374182400e".getBytes()).getIntValue());
+        assertEquals(Long.MAX_VALUE, Bencode.parse(("i" + Long.MAX_VALUE + "e").getBytes()).getIntValue());
+        Bencode.BTape tape = Bencode.parseTape("li-107374182400ee".getBytes());
+        assertEquals(-107374182400L, tape.getIntValue(tape.first(tape.root())));
+        assertThrows(Bencode.BError.class, () -> Bencode.parse("i9223372036854775808e".getBytes()));
+        assertEquals("i-9223372036854775808e", new String(Bencode.BValue.intValue(Long.MIN_VALUE).encode()));
+    }
+
     @Test
     public void parseBytes(){
         Bencode.Parser parser = new Bencode.Parser("1:1");
@@ -48,10 +59,18 @@ class BencodeTest {
         parser = new Bencode.Parser("lll4:spami42e1:12:1ei32eeee");
         parser.parse();
         assertTrue(parser.accepted());
-//
-//        parser = new Bencode.Parser("l4:spami42e1:12:1ei32elee");
-//        parser.parse();
-//        assertTrue(parser.accepted());
+
+        parser = new Bencode.Parser("l4:spami42e1:12:1ei32elee");
+        parser.parse();
+        assertTrue(parser.accepted());
+
+        parser = new Bencode.Parser("lli1eei2ed1:ai3eee");
+        parser.parse();
+        assertTrue(parser.accepted());
+        values = parser.getValue().getListValue();
+        assertEquals(1, values.get(0).getListValue().size());
+        assertEquals(2, values.get(1).getIntValue());
+        assertEquals(3, values.get(2).get("a").getIntValue());
     }
 
     @Test
@@ -101,6 +120,109 @@ class BencodeTest {
 
     }
 
+    @Test
+    public void parseTape(){
+        Bencode.BTape tape = Bencode.parseTape("d3:bari-42e3:fool4:spam0:d1:ai1eeee".getBytes());
+        int root = tape.root();
+        assertEquals(Bencode.BValueTag.Dict, tape.getTag(root));
+        assertEquals(4, tape.size(root));
+        assertEquals(-42, tape.getIntValue(tape.get(root, "bar")));
+        assertEquals(Bencode.BTape.NONE, tape.get(root, "baz"));
+
+        int foo = tape.get(root, "foo");
+        assertEquals(3, tape.size(foo));
+        int spam = tape.first(foo);
+        assertEquals("spam", tape.getString(spam));
+        int empty = tape.next(spam);
+        assertEquals(0, tape.getLength(empty));
+        int dict = tape.next(empty);
+        assertEquals(1, tape.getIntValue(tape.get(dict, "a")));
+        assertEquals(Bencode.BTape.NONE, tape.next(dict));
+        assertEquals("d1:ai1ee", new String(tape.getSource(), tape.getStart(dict), tape.getLength(dict)));
+
+        assertThrows(Bencode.BError.class, () -> Bencode.parseTape("d3:bare".getBytes()));
+        assertThrows(Bencode.BError.class, () -> Bencode.parseTape("li1e".getBytes()));
+    }
+
+    @Test
+    public void parseChunks(){
+        byte[] bytes = "d3:bar4:spam3:fooli42eee4:next".getBytes();
+        Bencode.Parser parser = new Bencode.Parser(1024);
+        for(int i = 0; i < 24; i += 5){
+            ByteBuffer chunk = ByteBuffer.wrap(bytes, i, Math.min(5, 24 - i));
+            Bencode.Parser.Status status = parser.feed(chunk);
+            assertEquals(i + 5 < 24 ? Bencode.Parser.Status.NeedInput : Bencode.Parser.Status.Complete, status);
+            assertFalse(chunk.hasRemaining());
+        }
+        assertTrue(parser.accepted());
+        assertArrayEquals("spam".getBytes(), parser.getValue().get("bar").getBytesValue());
+        assertEquals(42, parser.getValue().get("foo").getListValue().get(0).getIntValue());
+
+        parser = new Bencode.Parser(1024);
+        ByteBuffer input = ByteBuffer.wrap(bytes);
+        assertEquals(Bencode.Parser.Status.Complete, parser.feed(input));
+        assertEquals(24, input.position());
+    }
+
+    @Test
+    public void parseLargeBytes(){
+        byte[] payload = new byte[3 * 1024 * 1024];
+        for(int i = 0; i < payload.length; i++){
+            payload[i] = (byte) i;
+        }
+        byte[] prefix = ("l" + payload.length + ":").getBytes();
+        byte[] bytes = new byte[prefix.length + payload.length + 1];
+        System.arraycopy(prefix, 0, bytes, 0, prefix.length);
+        System.arraycopy(payload, 0, bytes, prefix.length, payload.length);
+        bytes[bytes.length - 1] = 'e';
+
+        assertArrayEquals(payload, Bencode.parse(bytes).getListValue().get(0).getBytesValue());
+
+        Bencode.Parser parser = new Bencode.Parser(payload.length);
+        for(int i = 0; i < bytes.length; i += 4096){
+            parser.feed(ByteBuffer.wrap(bytes, i, Math.min(4096, bytes.length - i)));
+        }
+        assertTrue(parser.accepted());
+        assertArrayEquals(payload, parser.getValue().getListValue().get(0).getBytesValue());
+
+        assertThrows(Bencode.BError.class, () -> Bencode.parse("4:abc".getBytes()));
+        // the length prefix of a pushed string is bounded before its buffer is allocated
+        assertThrows(Bencode.BError.class, () -> new Bencode.Parser(payload.length).feed(ByteBuffer.wrap("2147483000:".getBytes())));
+        assertThrows(Bencode.BError.class, () -> new Bencode.Parser(3).feed(ByteBuffer.wrap("4:abcd".getBytes())));
+    }
+
+    @Test
+    public void dictLookup(){
+        Bencode.BKey foo = Bencode.BKey.of("foo");
+        Bencode.BKey missing = Bencode.BKey.of("zzz");
+        for(String src : new String[]{"d1:ai1e3:bari2e3:fooi3e1:zi4ee", "d3:fooi3e1:ai1e1:zi4e3:bari2ee"}){
+            Bencode.BTape tape = Bencode.parseTape(src.getBytes());
+            assertEquals(3, tape.getIntValue(tape.get(tape.root(), foo)));
+            assertEquals(4, tape.getIntValue(tape.get(tape.root(), "z")));
+            assertEquals(Bencode.BTape.NONE, tape.get(tape.root(), missing));
+
+            Bencode.BValue value = Bencode.parse(src.getBytes());
+            assertEquals(3, value.get(foo).getIntValue());
+            assertEquals(1, value.get("a").getIntValue());
+            assertNull(value.get(missing));
+
+            // a dict built from the tape keeps its order, and how it is searched
+            value = tape.toValue(tape.root());
+            assertEquals(3, value.get(foo).getIntValue());
+            assertEquals(1, value.get("a").getIntValue());
+            assertEquals(4, value.get("z").getIntValue());
+            assertNull(value.get(missing));
+            assertArrayEquals(src.getBytes(), value.encode());
+        }
+        Bencode.BTape nested = Bencode.parseTape("d4:infod4:name1:x6:lengthi1eee".getBytes());
+        Bencode.BValue info = nested.toValue(nested.get(nested.root(), "info"));
+        assertEquals("x", new String(info.get("name").getBytesValue()));
+        assertEquals(1, info.get("length").getIntValue());
+        Bencode.BTape tape = Bencode.parseTape("li1ei2ei3ee".getBytes());
+        assertEquals(3, tape.getIntValue(tape.getItem(tape.root(), 2)));
+        assertEquals(Bencode.BTape.NONE, tape.getItem(tape.root(), 3));
+    }
+
     @Test
     public void parsePeers() throws IOException {
         String file = "/data/peers.bencode";
@@ -137,6 +259,22 @@ class BencodeTest {
         outputStream.close();
     }
 
-
-
-}
\ No newline at end of file
+    @Test
+    public void encodeBuffer() throws IOException {
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("sample.torrent");
+        byte[] bytes = inputStream.readAllBytes();
+        inputStream.close();
+        Bencode.BValue value = Bencode.parse(bytes);
+        assertEquals(bytes.length, value.encodedLength());
+        assertArrayEquals(bytes, value.encode());
+
+        Bencode.BValue dict = Bencode.BValue.dictValue()
+                .put("z", Bencode.BValue.intValue(-1230))
+                .put("a", Bencode.BValue.listValue().add(Bencode.BValue.bytesValue("")).add(Bencode.BValue.intValue(0)))
+                .put("m", Bencode.BValue.bytesValue("spam"));
+        assertEquals("d1:al0:i0ee1:m4:spam1:zi-1230ee", new String(dict.encode()));
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        dict.encode(buffer);
+        assertEquals(dict.encodedLength(), buffer.position());
+    }
+}
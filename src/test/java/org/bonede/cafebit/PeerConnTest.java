@@ -0,0 +1,280 @@
+package org.bonede.cafebit;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PeerConnTest {
+
+    /**
+     * Gathering channel taking at most chunk bytes per call, counting calls.
+     */
+    static class RecordingChannel implements GatheringByteChannel {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final int chunk;
+        int writes;
+
+        RecordingChannel(int chunk) {
+            this.chunk = chunk;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            writes++;
+            long n = 0;
+            for(int i = offset; i < offset + length && n < chunk; i++){
+                while(srcs[i].hasRemaining() && n < chunk){
+                    bytes.write(srcs[i].get());
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[]{src});
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final ReadableByteChannel NO_INPUT = new ReadableByteChannel() {
+        @Override
+        public int read(ByteBuffer dst) {
+            return -1;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @Test
+    public void coalesce() throws IOException {
+        RecordingChannel channel = new RecordingChannel(Integer.MAX_VALUE);
+        PeerConn conn = new PeerConn(NO_INPUT, channel);
+        for(int i = 0; i < 10; i++){
+            conn.queueRequest(3, i * 16384, 16384);
+        }
+        conn.queueHave(7);
+        conn.queueCancel(3, 0, 16384);
+        assertEquals(0, channel.writes);
+        conn.flush();
+        assertEquals(1, channel.writes);
+
+        ByteBuffer out = ByteBuffer.wrap(channel.bytes.toByteArray());
+        assertEquals(10 * 17 + 9 + 17, out.remaining());
+        for(int i = 0; i < 10; i++){
+            assertEquals(13, out.getInt());
+            assertEquals(6, out.get());
+            assertEquals(3, out.getInt());
+            assertEquals(i * 16384, out.getInt());
+            assertEquals(16384, out.getInt());
+        }
+        assertEquals(5, out.getInt());
+        assertEquals(4, out.get());
+        assertEquals(7, out.getInt());
+        assertEquals(13, out.getInt());
+        assertEquals(8, out.get());
+
+        conn.flush();
+        assertEquals(1, channel.writes);
+    }
+
+    @Test
+    public void gatherPayloads() throws IOException {
+        // short writes, the flush keeps going until everything is out
+        RecordingChannel channel = new RecordingChannel(1000);
+        PeerConn conn = new PeerConn(NO_INPUT, channel);
+        byte[] block = new byte[16384];
+        for(int i = 0; i < block.length; i++){
+            block[i] = (byte) i;
+        }
+        ByteBuffer payload = ByteBuffer.wrap(block);
+        conn.queueHave(1);
+        conn.queuePiece(2, 16384, payload);
+        conn.queueHave(2);
+        conn.flush();
+        assertEquals((9 + 13 + 16384 + 9 + 999) / 1000, channel.writes);
+        assertFalse(payload.hasRemaining());
+
+        ByteBuffer out = ByteBuffer.wrap(channel.bytes.toByteArray());
+        out.position(9);
+        assertEquals(9 + 16384, out.getInt());
+        assertEquals(7, out.get());
+        assertEquals(2, out.getInt());
+        assertEquals(16384, out.getInt());
+        byte[] received = new byte[16384];
+        out.get(received);
+        assertArrayEquals(block, received);
+        assertEquals(5, out.getInt());
+        assertEquals(4, out.get());
+        assertEquals(2, out.getInt());
+    }
+
+    /**
+     * Replays bytes in reads of at most chunk bytes, like a socket.
+     */
+    static class ChunkedChannel implements ReadableByteChannel {
+        private final ByteBuffer bytes;
+        private final int chunk;
+
+        ChunkedChannel(byte[] bytes, int chunk) {
+            this.bytes = ByteBuffer.wrap(bytes);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if(!bytes.hasRemaining()){
+                return -1;
+            }
+            int n = Math.min(chunk, Math.min(dst.remaining(), bytes.remaining()));
+            dst.put(bytes.slice().limit(n));
+            bytes.position(bytes.position() + n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static void piece(ByteBuffer out, int index, int begin, byte[] block) {
+        out.putInt(9 + block.length).put((byte) 7).putInt(index).putInt(begin).put(block);
+    }
+
+    @Test
+    public void readFrames() throws IOException {
+        byte[] a = new byte[16384];
+        byte[] b = new byte[5000];
+        for(int i = 0; i < a.length; i++){
+            a[i] = (byte) (i * 7);
+        }
+        for(int i = 0; i < b.length; i++){
+            b[i] = (byte) (i * 13);
+        }
+        ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        piece(in, 2, 16384, a);
+        in.putInt(0);
+        in.putInt(5).put((byte) 4).putInt(9);
+        piece(in, 3, 0, b);
+        in.putInt(1).put((byte) 1);
+        piece(in, 4, 0, a);
+        in.putInt(5).put((byte) 4).putInt(10);
+        byte[] bytes = new byte[in.position()];
+        in.flip().get(bytes);
+
+        for(int chunk : new int[]{1, 3, 1448, 64 * 1024}){
+            PeerConn conn = new PeerConn(new ChunkedChannel(bytes, chunk), new RecordingChannel(0));
+            ByteBuffer piece = ByteBuffer.allocateDirect(32768);
+            assertEquals(7, conn.readFrame());
+            assertEquals(2, conn.getPieceIndex());
+            assertEquals(16384, conn.getPieceBegin());
+            assertEquals(16384, conn.getPayloadLength());
+            conn.readPayload(piece.duplicate().position(16384));
+            assertEquals(-1, conn.readFrame());
+            assertEquals(4, conn.readFrame());
+            assertEquals(9, conn.payload().getInt());
+
+            assertEquals(7, conn.readFrame());
+            assertEquals(5000, conn.getPayloadLength());
+            ByteBuffer small = ByteBuffer.allocate(5000);
+            conn.readPayload(small);
+            assertArrayEquals(b, small.array());
+
+            // the unchoke's empty payload isn't asked for, the next block is skipped
+            assertEquals(1, conn.readFrame());
+            assertEquals(7, conn.readFrame());
+            conn.skipPayload();
+            assertEquals(4, conn.readFrame());
+            assertEquals(10, conn.payload().getInt());
+            assertThrows(EOFException.class, conn::readFrame);
+
+            byte[] received = new byte[16384];
+            piece.position(16384).get(received);
+            assertArrayEquals(a, received, "chunk " + chunk);
+            conn.close();
+        }
+    }
+
+    @Test
+    public void readBitfieldBounded() throws IOException {
+        ByteBuffer in = ByteBuffer.allocate(64);
+        in.putInt(3).put((byte) 5).put((byte) 0xff).put((byte) 0x80);
+        byte[] bytes = new byte[in.position()];
+        in.flip().get(bytes);
+        PeerConn conn = new PeerConn(new ChunkedChannel(bytes, 1448), new RecordingChannel(0));
+        assertArrayEquals(new byte[]{(byte) 0xff, (byte) 0x80}, conn.readBitfield(9));
+        conn.close();
+
+        // the length alone is rejected, before anything is allocated for it
+        byte[] huge = ByteBuffer.allocate(5).putInt(Integer.MAX_VALUE).put((byte) 5).array();
+        conn = new PeerConn(new ChunkedChannel(huge, 1448), new RecordingChannel(0));
+        assertThrows(IOException.class, conn::readBitfield);
+        conn.close();
+        PeerConn shorter = new PeerConn(new ChunkedChannel(bytes, 1448), new RecordingChannel(0));
+        assertThrows(IOException.class, () -> shorter.readBitfield(8));
+        shorter.close();
+    }
+
+    @Test
+    public void buffersLeasedWhileInUse() throws IOException {
+        BBufferArena arena = BBufferArena.shared();
+        long leased = arena.getLeased();
+        byte[] block = new byte[16384];
+        ByteBuffer in = ByteBuffer.allocate(2 * 16384);
+        piece(in, 0, 0, block);
+        in.putInt(5).put((byte) 4).putInt(1);
+        byte[] bytes = new byte[in.position()];
+        in.flip().get(bytes);
+
+        RecordingChannel out = new RecordingChannel(Integer.MAX_VALUE);
+        PeerConn conn = new PeerConn(new ChunkedChannel(bytes, 1448), out);
+        conn.queueRequest(0, 0, 16384);
+        assertEquals(leased + 1, arena.getLeased());
+        conn.flush();
+        assertEquals(leased, arena.getLeased());
+
+        assertEquals(7, conn.readFrame());
+        conn.readPayload(ByteBuffer.allocateDirect(16384));
+        // the block went straight into the piece, nothing is buffered
+        assertEquals(leased, arena.getLeased());
+        assertEquals(4, conn.readFrame());
+        assertEquals(leased + 1, arena.getLeased());
+        conn.close();
+        assertEquals(leased, arena.getLeased());
+        assertThrows(IOException.class, conn::readFrame);
+        assertEquals(leased, arena.getLeased());
+    }
+}